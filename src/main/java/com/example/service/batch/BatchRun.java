@@ -8,6 +8,13 @@ import java.util.*;
  * This class represents a batch run and retains a list of records uploaded in batches. Each uploaded batch
  * for this specific batch run is appended to the list. When batch run completes, the list is given to
  * {@link RecordStore#store(List)} instance in order to be stored permanently.
+ * [DESIGN DECISION]: Since COMPLETE and CANCEL commands may overtake the ADD commands of the same batch run,
+ * a batch run is settled only when it has been created, a terminal command has been received and all the chunks
+ * announced by the terminal command have been received.
+ * [DESIGN DECISION]: A checkpoint splits a batch run into commits which are each all-or-nothing. The records staged
+ * when all the chunks announced by a checkpoint have been received are committed and dropped from the batch run.
+ * A cancel only discards the chunks uploaded after the last checkpoint, the chunks which the pending checkpoints
+ * are waiting for are still received and committed.
  * [DESIGN DECISION]: This class is not thread safe since it's intended to be used by a single queue consumer thread.
  */
 class BatchRun<T> {
@@ -15,17 +22,98 @@ class BatchRun<T> {
     // [DESIGN DECISION]: ArrayList is chosen to store batches until the batch run is complete,
     // for the low complexity of adding and getting records (O(1)),
     private final ArrayList<T> records = new ArrayList<>();
+    private boolean created;
+    private BatchRunRequest.BatchRunCommand terminalCommand;
+    private int expectedChunks;
+    private int receivedChunks;
+    private int purgedChunks;
+    // the chunk counts announced by the checkpoints which are not reached yet, in the order they were received
+    private final ArrayDeque<Integer> checkpoints = new ArrayDeque<>();
 
     BatchRun(String batchRunId) {
         this.batchRunId = batchRunId;
     }
 
+    void markCreated() {
+        created = true;
+    }
+
     void addBatch(T[] records) {
-        this.records.addAll(Arrays.asList(records));
+        receivedChunks++;
+        // chunks arriving after a cancel are only counted, their records are discarded unless a checkpoint is
+        // waiting for them
+        if (!isCancelled() || !checkpoints.isEmpty()) {
+            this.records.addAll(Arrays.asList(records));
+        }
+    }
+
+    boolean isOpen() {
+        return terminalCommand == null;
+    }
+
+    boolean isCancelled() {
+        return terminalCommand == BatchRunRequest.BatchRunCommand.CANCEL;
+    }
+
+    void checkpoint(int chunkCount) {
+        checkpoints.add(chunkCount);
+    }
+
+    /**
+     * @return true if all the chunks announced by the oldest pending checkpoint have been received
+     */
+    boolean isCheckpointReached() {
+        return !checkpoints.isEmpty() && receivedChunks >= checkpoints.peek();
+    }
+
+    /**
+     * Removes the oldest pending checkpoint, the staged records are the records to commit for it.
+     * @return the chunk count announced by the checkpoint
+     */
+    int passCheckpoint() {
+        return checkpoints.remove();
+    }
+
+    /**
+     * @return the number of chunks still to receive for the pending checkpoints
+     */
+    int getChunksToCheckpoint() {
+        return checkpoints.isEmpty() ? 0 : Math.max(0, checkpoints.peekLast() - receivedChunks);
+    }
+
+    void complete(int expectedChunks) {
+        this.terminalCommand = BatchRunRequest.BatchRunCommand.COMPLETE;
+        this.expectedChunks = expectedChunks;
+    }
+
+    void cancel(int expectedChunks, int purgedChunks) {
+        this.terminalCommand = BatchRunRequest.BatchRunCommand.CANCEL;
+        this.expectedChunks = expectedChunks;
+        this.purgedChunks = purgedChunks;
+        if (checkpoints.isEmpty()) {
+            clear(); // release the staged records immediately
+        }
+    }
+
+    boolean isSettled() {
+        return created && terminalCommand != null && receivedChunks + purgedChunks >= expectedChunks;
+    }
+
+    String getBatchRunId() {
+        return batchRunId;
+    }
+
+    int getReceivedChunks() {
+        return receivedChunks;
+    }
+
+    int getNumberOfRecords() {
+        return records.size();
     }
 
     void clear() {
         records.clear();
+        records.trimToSize();
     }
 
     public void dump() {
@@ -33,7 +121,7 @@ class BatchRun<T> {
         records.forEach(System.out::println);
     }
 
-    void appendTo(RecordStore<T> recordStore) {
-        recordStore.store(records);
+    long appendTo(RecordStore<T> recordStore) {
+        return recordStore.store(records);
     }
 }
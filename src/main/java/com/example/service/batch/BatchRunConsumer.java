@@ -4,30 +4,81 @@ import com.example.service.store.RecordStore;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.concurrent.BlockingQueue;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Consumes the batch run requests in the queue.
  * [DESIGN DECISION]: This class is not thread safe since it's intended to be used by a single queue consumer thread.
+ * Only the commit versions of the completed batch runs can be read by other threads.
  */
 public class BatchRunConsumer<T> {
+    private static final int RETAINED_COMMIT_VERSIONS = 10_000;
     private final HashMap<String, BatchRun<T>> batchRuns = new HashMap<>();
-    private final BlockingQueue<BatchRunRequest<T>> batchRunRequests;
+    // [DESIGN DECISION]: The commit versions of the recently completed batch runs are retained, so that a
+    // producer can find out which store version contains its batch run, e.g. to read its own commit from a
+    // replica. A synchronized LinkedHashMap is enough since it is written once per commit.
+    private final Map<String, Long> commitVersions = Collections.synchronizedMap(
+            new LinkedHashMap<String, Long>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > RETAINED_COMMIT_VERSIONS;
+                }
+            });
+    private final BatchRunRequestQueue<T> batchRunRequests;
     private final RecordStore<T> recordStore;
+    private final BatchRunTracer tracer;
+    private final ChunkReleaseListener releaseListener;
     private final AtomicBoolean stopped = new AtomicBoolean();
     private final static Logger logger = LogManager.getLogger(BatchRunConsumer.class);
 
 
-    public BatchRunConsumer(BlockingQueue<BatchRunRequest<T>> batchRunRequests,
+    public BatchRunConsumer(BatchRunRequestQueue<T> batchRunRequests,
                             RecordStore<T> recordStore) {
+        this(batchRunRequests, recordStore, BatchRunTracer.DISABLED);
+    }
+
+    public BatchRunConsumer(BatchRunRequestQueue<T> batchRunRequests,
+                            RecordStore<T> recordStore,
+                            BatchRunTracer tracer) {
+        this(batchRunRequests, recordStore, tracer, ChunkReleaseListener.NONE);
+    }
+
+    public BatchRunConsumer(BatchRunRequestQueue<T> batchRunRequests,
+                            RecordStore<T> recordStore,
+                            BatchRunTracer tracer,
+                            ChunkReleaseListener releaseListener) {
         this.batchRunRequests = batchRunRequests;
         this.recordStore = recordStore;
+        this.tracer = tracer;
+        this.releaseListener = releaseListener;
+    }
+
+    /**
+     * [DESIGN DECISION]: When the requests are consumed by many consumers, each consumer has its own queue and all
+     * the requests of a batch run are routed to the same consumer by the hash of the batch run id, so that each
+     * batch run is still handled by a single thread. Batch runs handled by different consumers may be committed in
+     * a different order than they are completed.
+     * @return the index of the consumer which handles the given batch run
+     */
+    public static int partitionOf(String batchRunId, int numberOfConsumers) {
+        return (batchRunId.hashCode() & Integer.MAX_VALUE) % numberOfConsumers;
+    }
+
+    // [DESIGN DECISION]: COMPLETE and CANCEL requests may be received before the CREATE request of the same
+    // batch run, since they are prioritized. In that case the batch run is registered by the control command
+    // and it is marked as created when the CREATE request arrives.
+    private BatchRun<T> getOrRegisterBatchRun(String batchRunId) {
+        return batchRuns.computeIfAbsent(batchRunId, BatchRun::new);
     }
 
     private void createBatchRun(String batchRunId) {
-        batchRuns.put(batchRunId, new BatchRun<>(batchRunId));
+        BatchRun<T> batchRun = getOrRegisterBatchRun(batchRunId);
+        batchRun.markCreated();
+        settle(batchRun);
     }
 
     private void addBatch(String batchRunId, T[] records) {
@@ -35,41 +86,101 @@ public class BatchRunConsumer<T> {
 
         if (batchRun == null) {
             logger.warn("Cannot add batch for batch run {}", batchRunId);
+            // the chunk is dropped, so nothing of the batch run is held by the service anymore
+            releaseListener.onRelease(batchRunId, 0, true);
             return;
         }
 
+        tracer.record(batchRunId, BatchRunEvent.Stage.DEQUEUE, batchRun.getReceivedChunks() + 1, records.length, 0);
         batchRun.addBatch(records);
+        tracer.record(batchRunId, BatchRunEvent.Stage.STAGED, batchRun.getReceivedChunks(),
+                batchRun.getNumberOfRecords(), 0);
+        settle(batchRun);
     }
 
-    private void completeBatchRun(String batchRunId) {
-        BatchRun<T> batchRun = batchRuns.get(batchRunId);
+    private void checkpointBatchRun(String batchRunId, int chunkCount) {
+        BatchRun<T> batchRun = getOrRegisterBatchRun(batchRunId);
 
-        if (batchRun == null) {
+        if (!batchRun.isOpen()) {
+            logger.warn("Cannot checkpoint the batch run {}", batchRunId);
+            return;
+        }
+
+        batchRun.checkpoint(chunkCount);
+        settle(batchRun);
+    }
+
+    private void completeBatchRun(String batchRunId, int chunkCount) {
+        BatchRun<T> batchRun = getOrRegisterBatchRun(batchRunId);
+
+        if (!batchRun.isOpen()) {
             logger.warn("Cannot complete the batch run {}", batchRunId);
             return;
         }
 
-        batchRuns.remove(batchRunId);
-        batchRun.appendTo(recordStore);
-        batchRun.clear(); // clear the batches for memory reclaim
+        batchRun.complete(chunkCount);
+        settle(batchRun);
     }
 
-    private void cancelBatchRun(String batchRunId) {
-        BatchRun<T> batchRun = batchRuns.get(batchRunId);
+    private void cancelBatchRun(String batchRunId, int chunkCount) {
+        BatchRun<T> batchRun = getOrRegisterBatchRun(batchRunId);
 
-        if (batchRun == null) {
+        if (!batchRun.isOpen()) {
             logger.warn("Cannot cancel the batch run {}", batchRunId);
             return;
         }
 
+        // drop the chunks of this batch run which are still queued, so that their memory is reclaimed now, except
+        // the chunks which the pending checkpoints are waiting for
+        batchRun.cancel(chunkCount, batchRunRequests.purge(batchRunId, batchRun.getChunksToCheckpoint()));
+        settle(batchRun);
+    }
+
+    /**
+     * Commits the records of the reached checkpoints, then stores or discards the batch run once all of its chunks
+     * and its terminal command have been received.
+     */
+    private void settle(BatchRun<T> batchRun) {
+        while (batchRun.isCheckpointReached()) {
+            int chunkCount = batchRun.passCheckpoint();
+            // a checkpoint without new records since the previous one would only add an empty commit
+            if (batchRun.getNumberOfRecords() > 0) {
+                commit(batchRun, chunkCount);
+                batchRun.clear();
+                releaseListener.onRelease(batchRun.getBatchRunId(), batchRun.getReceivedChunks(), false);
+            }
+        }
+        if (!batchRun.isSettled()) return;
+
+        String batchRunId = batchRun.getBatchRunId();
         batchRuns.remove(batchRunId);
+        if (batchRun.isCancelled()) {
+            tracer.record(batchRunId, BatchRunEvent.Stage.DISCARDED, batchRun.getReceivedChunks(), 0, 0);
+        } else {
+            commitVersions.put(batchRunId, commit(batchRun, batchRun.getReceivedChunks()));
+        }
         batchRun.clear(); // clear the batches for memory reclaim
+        releaseListener.onRelease(batchRunId, batchRun.getReceivedChunks(), true);
+    }
+
+    private long commit(BatchRun<T> batchRun, int chunkCount) {
+        String batchRunId = batchRun.getBatchRunId();
+        int numberOfRecords = batchRun.getNumberOfRecords();
+        tracer.record(batchRunId, BatchRunEvent.Stage.COMMIT_START, chunkCount, numberOfRecords, 0);
+        long version = batchRun.appendTo(recordStore);
+        tracer.record(batchRunId, BatchRunEvent.Stage.COMMIT_END, chunkCount, numberOfRecords, 0);
+        return version;
     }
 
     private void consumeRequest() {
         try {
             BatchRunRequest<T> request = batchRunRequests.take();
-            logger.info("Consumer received command {} for batch run {}", request.command, request.batchRunId);
+            // [DESIGN DECISION]: The commands are not logged at INFO level since this is the hot path of the
+            // ingestion, the lifecycle of the batch runs is recorded by the tracer instead.
+            logger.trace("Consumer received command {} for batch run {}", request.command, request.batchRunId);
+            if (request.command != BatchRunRequest.BatchRunCommand.ADD) {
+                tracer.record(request.batchRunId, BatchRunEvent.Stage.DEQUEUE, 0, 0, 0);
+            }
 
             switch (request.command) {
                 case CREATE:
@@ -78,11 +189,14 @@ public class BatchRunConsumer<T> {
                 case ADD:
                     addBatch(request.batchRunId, request.records);
                     break;
+                case CHECKPOINT:
+                    checkpointBatchRun(request.batchRunId, request.chunkCount);
+                    break;
                 case COMPLETE:
-                    completeBatchRun(request.batchRunId);
+                    completeBatchRun(request.batchRunId, request.chunkCount);
                     break;
                 case CANCEL:
-                    cancelBatchRun(request.batchRunId);
+                    cancelBatchRun(request.batchRunId, request.chunkCount);
                     break;
                 default:
                     logger.warn("Unknown BatchRunRequest command for batch run {}", request.batchRunId);
@@ -93,6 +207,15 @@ public class BatchRunConsumer<T> {
         }
     }
 
+    /**
+     * @return the store version which contains the given completed batch run, or -1 if the batch run is not
+     * committed yet or it is not among the recently completed ones
+     */
+    public long getCommitVersion(String batchRunId) {
+        Long version = commitVersions.get(batchRunId);
+        return version == null ? -1 : version;
+    }
+
     public void stop() {
         stopped.set(true);
     }
@@ -0,0 +1,83 @@
+package com.example.service.batch;
+
+/**
+ * A lifecycle event of a batch run recorded by the {@link BatchRunTracer}.
+ */
+public final class BatchRunEvent {
+    public enum Stage {
+        // recorded by the provider
+        START, ENQUEUE, CHECKPOINT, COMPLETE, CANCEL,
+        // recorded by the consumer
+        DEQUEUE, STAGED, COMMIT_START, COMMIT_END, DISCARDED
+    }
+
+    private final long sequence;
+    private final String batchRunId;
+    private final Stage stage;
+    private final long nanoTime;
+    private final String threadName;
+    private final int chunk;
+    private final long records;
+    private final long bytes;
+
+    BatchRunEvent(long sequence, String batchRunId, Stage stage, long nanoTime, String threadName, int chunk,
+                  long records, long bytes) {
+        this.sequence = sequence;
+        this.batchRunId = batchRunId;
+        this.stage = stage;
+        this.nanoTime = nanoTime;
+        this.threadName = threadName;
+        this.chunk = chunk;
+        this.records = records;
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return the order of the event among all the recorded events
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getBatchRunId() {
+        return batchRunId;
+    }
+
+    public Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} of the event
+     */
+    public long getNanoTime() {
+        return nanoTime;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    /**
+     * @return the number of the chunk that the event is about, starting from one, or zero if it is not about a chunk
+     */
+    public int getChunk() {
+        return chunk;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * @return the payload bytes of the uploaded chunk, only known by the ENQUEUE events
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return stage + "[chunk=" + chunk + ", records=" + records + ", bytes=" + bytes + ", thread=" + threadName + "]";
+    }
+}
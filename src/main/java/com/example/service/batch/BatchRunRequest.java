@@ -10,30 +10,43 @@ public class BatchRunRequest<T> {
     final BatchRunCommand command;
     final String batchRunId;
     final T[] records;
+    // [DESIGN DECISION]: CHECKPOINT, COMPLETE and CANCEL requests travel in a prioritized lane and may overtake the
+    // ADD requests of their own batch run. They carry the number of ADD chunks queued before them, so the consumer
+    // can hold the command back until all of those chunks have been received.
+    final int chunkCount;
 
     enum BatchRunCommand {
-        CREATE, ADD, COMPLETE, CANCEL
+        CREATE, ADD, CHECKPOINT, COMPLETE, CANCEL;
+
+        boolean isControl() {
+            return this == CHECKPOINT || this == COMPLETE || this == CANCEL;
+        }
     }
 
-    private BatchRunRequest(BatchRunCommand command, String batchRunId, T[] records) {
+    private BatchRunRequest(BatchRunCommand command, String batchRunId, T[] records, int chunkCount) {
         this.command = command;
         this.batchRunId = batchRunId;
         this.records = records;
+        this.chunkCount = chunkCount;
     }
 
     public static <T> BatchRunRequest<T> newCreateBatchRunRequest(String batchRunId) {
-        return new BatchRunRequest<>(BatchRunCommand.CREATE, batchRunId, null);
+        return new BatchRunRequest<>(BatchRunCommand.CREATE, batchRunId, null, 0);
     }
 
     public static <T> BatchRunRequest<T> newAddBatchRunRequest(String batchRunId, T[] records) {
-        return new BatchRunRequest<>(BatchRunCommand.ADD, batchRunId, records);
+        return new BatchRunRequest<>(BatchRunCommand.ADD, batchRunId, records, 0);
+    }
+
+    public static <T> BatchRunRequest<T> newCheckpointBatchRunRequest(String batchRunId, int chunkCount) {
+        return new BatchRunRequest<>(BatchRunCommand.CHECKPOINT, batchRunId, null, chunkCount);
     }
 
-    public static <T> BatchRunRequest<T> newCompleteBatchRunRequest(String batchRunId) {
-        return new BatchRunRequest<>(BatchRunCommand.COMPLETE, batchRunId, null);
+    public static <T> BatchRunRequest<T> newCompleteBatchRunRequest(String batchRunId, int chunkCount) {
+        return new BatchRunRequest<>(BatchRunCommand.COMPLETE, batchRunId, null, chunkCount);
     }
 
-    public static <T> BatchRunRequest<T> newCancelBatchRunRequest(String batchRunId) {
-        return new BatchRunRequest<>(BatchRunCommand.CANCEL, batchRunId, null);
+    public static <T> BatchRunRequest<T> newCancelBatchRunRequest(String batchRunId, int chunkCount) {
+        return new BatchRunRequest<>(BatchRunCommand.CANCEL, batchRunId, null, chunkCount);
     }
 }
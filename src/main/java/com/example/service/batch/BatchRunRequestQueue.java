@@ -0,0 +1,100 @@
+package com.example.service.batch;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Queues batch run requests in two lanes: a control lane for CHECKPOINT, COMPLETE and CANCEL commands and a data
+ * lane for CREATE and ADD commands. The consumer always drains the control lane first, so completing or cancelling
+ * a batch run does not wait behind the bulk ADD chunks queued by other producers.
+ * [DESIGN DECISION]: CREATE travels in the data lane, so it always precedes the ADD chunks of its own batch run.
+ * The ordering of the control commands against their own ADD chunks is restored by the consumer with the help of
+ * {@link BatchRunRequest#chunkCount}.
+ * @param <T> type of records that the queued requests point to
+ */
+public class BatchRunRequestQueue<T> {
+    public enum Type {
+        /**
+         * CHECKPOINT, COMPLETE and CANCEL commands overtake the queued ADD chunks.
+         */
+        PRIORITIZED,
+        /**
+         * All the commands are consumed in the order they are queued, in a single lane.
+         */
+        FIFO
+    }
+
+    private final boolean prioritized;
+    private final BlockingQueue<BatchRunRequest<T>> controlLane;
+    private final BlockingQueue<BatchRunRequest<T>> dataLane;
+    // [DESIGN DECISION]: A semaphore counts the requests in both lanes so that the single consumer thread can
+    // block on both lanes at once. A permit is released after a request is put into its lane, so a successful
+    // acquire guarantees that a request is available, unless it has been purged in the meantime.
+    private final Semaphore pending = new Semaphore(0);
+
+    public BatchRunRequestQueue(int controlLaneCapacity, int dataLaneCapacity) {
+        this(Type.PRIORITIZED, controlLaneCapacity, dataLaneCapacity);
+    }
+
+    /**
+     * @param controlLaneCapacity the capacity of the control lane, which is added to the capacity of the single
+     *                            lane for the FIFO type
+     */
+    public BatchRunRequestQueue(Type type, int controlLaneCapacity, int dataLaneCapacity) {
+        this.prioritized = type == Type.PRIORITIZED;
+        if (!prioritized) {
+            dataLaneCapacity += controlLaneCapacity;
+            controlLaneCapacity = 1; // unused
+        }
+        // [DESIGN DECISION]: ArrayBlockingQueue is chosen because it performs better than LinkedBlockingQueue
+        // but with a predefined capacity specified.
+        this.controlLane = new ArrayBlockingQueue<>(controlLaneCapacity);
+        this.dataLane = new ArrayBlockingQueue<>(dataLaneCapacity);
+    }
+
+    public void put(BatchRunRequest<T> request) throws InterruptedException {
+        (prioritized && request.command.isControl() ? controlLane : dataLane).put(request);
+        pending.release();
+    }
+
+    public BatchRunRequest<T> take() throws InterruptedException {
+        while (true) {
+            pending.acquire();
+            BatchRunRequest<T> request = controlLane.poll();
+            if (request == null) {
+                request = dataLane.poll();
+            }
+            if (request != null) {
+                return request;
+            }
+            // the permit belonged to a purged request, wait for the next one
+        }
+    }
+
+    /**
+     * Removes the ADD requests of the given batch run which are still waiting in the data lane, so that the
+     * payloads of a cancelled batch run can be reclaimed without waiting for the consumer to reach them.
+     * @param retainedChunks the number of the oldest ADD requests of the batch run which are kept, e.g. since a
+     *                       checkpoint publishes them
+     * @return number of removed ADD requests
+     */
+    int purge(String batchRunId, int retainedChunks) {
+        int[] chunks = new int[1];
+        int[] purged = new int[1];
+        // the lane is iterated from its head, so the retained requests are the oldest ones
+        dataLane.removeIf(request -> {
+            if (request.command == BatchRunRequest.BatchRunCommand.ADD && request.batchRunId.equals(batchRunId)
+                    && chunks[0]++ >= retainedChunks) {
+                purged[0]++;
+                return true;
+            }
+            return false;
+        });
+        return purged[0];
+    }
+
+    public int size() {
+        return controlLane.size() + dataLane.size();
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.service.batch;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The recorded lifecycle events of a batch run in the order they happened, with the durations between the stages,
+ * e.g. {@code getDuration(ENQUEUE, DEQUEUE)} tells how long the chunks waited in the queue at most.
+ * [ASSUMPTION]: The oldest events of a long batch run may be overwritten in the ring buffer of the tracer,
+ * so a timeline may start in the middle of a batch run.
+ */
+public final class BatchRunTimeline {
+    private final String batchRunId;
+    private final List<BatchRunEvent> events;
+
+    BatchRunTimeline(String batchRunId, List<BatchRunEvent> events) {
+        this.batchRunId = batchRunId;
+        this.events = Collections.unmodifiableList(events);
+    }
+
+    public String getBatchRunId() {
+        return batchRunId;
+    }
+
+    public List<BatchRunEvent> getEvents() {
+        return events;
+    }
+
+    public boolean isEmpty() {
+        return events.isEmpty();
+    }
+
+    /**
+     * @return the time from the first event of the given stage to the last event of the other stage,
+     * or null if one of the stages is not recorded
+     */
+    public Duration getDuration(BatchRunEvent.Stage from, BatchRunEvent.Stage to) {
+        BatchRunEvent first = null;
+        BatchRunEvent last = null;
+        for (BatchRunEvent event : events) {
+            if (first == null && event.getStage() == from) first = event;
+            if (event.getStage() == to) last = event;
+        }
+        return first == null || last == null ? null : Duration.ofNanos(last.getNanoTime() - first.getNanoTime());
+    }
+
+    /**
+     * @return the longest time between an ENQUEUE event and the DEQUEUE event of the same chunk,
+     * which is the longest time a chunk has waited in the queue
+     */
+    public Duration getMaxQueueWait() {
+        long[] enqueueNanos = new long[events.size()];
+        int enqueued = 0;
+        int dequeued = 0;
+        long maxWait = 0;
+        // the queue is FIFO for the chunks of a batch run, so the n-th DEQUEUE of a chunk matches the n-th ENQUEUE
+        for (BatchRunEvent event : events) {
+            if (event.getStage() == BatchRunEvent.Stage.ENQUEUE) {
+                enqueueNanos[enqueued++] = event.getNanoTime();
+            } else if (event.getStage() == BatchRunEvent.Stage.DEQUEUE && event.getChunk() > 0
+                    && dequeued < enqueued) {
+                maxWait = Math.max(maxWait, event.getNanoTime() - enqueueNanos[dequeued++]);
+            }
+        }
+        return Duration.ofNanos(maxWait);
+    }
+
+    /**
+     * @return the payload bytes uploaded for the batch run
+     */
+    public long getUploadedBytes() {
+        return events.stream().filter(event -> event.getStage() == BatchRunEvent.Stage.ENQUEUE)
+                .mapToLong(BatchRunEvent::getBytes).sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("BatchRunTimeline[").append(batchRunId).append(']');
+        long startNanos = events.isEmpty() ? 0 : events.get(0).getNanoTime();
+        for (BatchRunEvent event : events) {
+            builder.append("\n  +").append((event.getNanoTime() - startNanos) / 1000).append(" us ").append(event);
+        }
+        return builder.toString();
+    }
+}
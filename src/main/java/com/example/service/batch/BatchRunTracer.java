@@ -0,0 +1,83 @@
+package com.example.service.batch;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records the lifecycle events of the batch runs, so that the timeline of a recent batch run can be inspected to
+ * find where it stalled: in the queue, while being staged or while being committed.
+ * [DESIGN DECISION]: The events are written into a fixed size ring buffer: a writer claims a slot with a single
+ * atomic increment and overwrites the oldest event, so recording never blocks and never grows the memory.
+ * Reading a timeline scans the whole buffer, which is fine since it is only done to investigate.
+ * [DESIGN DECISION]: Batch runs are sampled by the hash of their id, so that a sampled batch run is traced
+ * entirely by all the threads without sharing any state, and the other batch runs cost a single check.
+ */
+public class BatchRunTracer {
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+    /**
+     * A tracer which records nothing.
+     */
+    public static final BatchRunTracer DISABLED = new BatchRunTracer(1, 0);
+
+    private final AtomicReferenceArray<BatchRunEvent> events;
+    private final int mask;
+    private final int sampleEvery;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param capacity the number of retained events, rounded up to a power of two
+     * @param sampleEvery one of every sampleEvery batch runs is traced, 1 to trace all of them and 0 to trace none
+     */
+    public BatchRunTracer(int capacity, int sampleEvery) {
+        if (capacity < 1 || capacity > 1 << 30) throw new IllegalArgumentException("Invalid capacity " + capacity);
+        if (sampleEvery < 0) throw new IllegalArgumentException("Invalid sampling " + sampleEvery);
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.events = new AtomicReferenceArray<>(Math.max(size, 1));
+        this.mask = events.length() - 1;
+        this.sampleEvery = sampleEvery;
+    }
+
+    public boolean isSampled(String batchRunId) {
+        return sampleEvery != 0 && batchRunId != null
+                && (sampleEvery == 1 || (batchRunId.hashCode() & Integer.MAX_VALUE) % sampleEvery == 0);
+    }
+
+    public void record(String batchRunId, BatchRunEvent.Stage stage) {
+        record(batchRunId, stage, 0, 0, 0);
+    }
+
+    public void record(String batchRunId, BatchRunEvent.Stage stage, int chunk, long records, long bytes) {
+        if (!isSampled(batchRunId)) return;
+
+        long eventSequence = sequence.getAndIncrement();
+        events.lazySet((int) eventSequence & mask, new BatchRunEvent(eventSequence, batchRunId, stage,
+                System.nanoTime(), Thread.currentThread().getName(), chunk, records, bytes));
+    }
+
+    /**
+     * @return the retained events of the given batch run, empty if it is not sampled or its events are overwritten
+     */
+    public BatchRunTimeline getTimeline(String batchRunId) {
+        List<BatchRunEvent> timeline = new ArrayList<>();
+        if (isSampled(batchRunId)) {
+            for (int i = 0; i < events.length(); i++) {
+                BatchRunEvent event = events.get(i);
+                if (event != null && event.getBatchRunId().equals(batchRunId)) {
+                    timeline.add(event);
+                }
+            }
+            timeline.sort(Comparator.comparingLong(BatchRunEvent::getSequence));
+        }
+        return new BatchRunTimeline(batchRunId, timeline);
+    }
+
+    /**
+     * @return the number of events recorded so far, including the overwritten ones
+     */
+    public long getRecordedEvents() {
+        return sequence.get();
+    }
+}
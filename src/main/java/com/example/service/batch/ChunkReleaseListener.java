@@ -0,0 +1,20 @@
+package com.example.service.batch;
+
+/**
+ * Is told by a {@link BatchRunConsumer} when the uploaded chunks of a batch run are no longer held by the service,
+ * since they have been committed or discarded, e.g. to account for the memory of the requests in flight.
+ * [DESIGN DECISION]: The chunks are released in upload order, so a release is given as the number of chunks
+ * released so far instead of the chunks themselves. Listeners are called on the consumer thread and must not block.
+ */
+@FunctionalInterface
+public interface ChunkReleaseListener {
+    ChunkReleaseListener NONE = (batchRunId, releasedChunks, settled) -> {
+    };
+
+    /**
+     * @param releasedChunks the number of chunks of the batch run released so far
+     * @param settled        true if the batch run is committed or discarded entirely, including the chunks which
+     *                       were purged from the queue, or if a chunk of a settled or unknown batch run is dropped
+     */
+    void onRelease(String batchRunId, int releasedChunks, boolean settled);
+}
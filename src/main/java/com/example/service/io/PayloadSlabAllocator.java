@@ -0,0 +1,33 @@
+package com.example.service.io;
+
+import java.nio.ByteBuffer;
+import java.util.function.IntFunction;
+
+/**
+ * Allocates payloads as slices of large direct buffers, since allocating millions of small direct buffers one by
+ * one is much slower than decoding the records themselves.
+ * [DESIGN DECISION]: A slab is only released when none of its payloads is referenced any more, which is fine for
+ * records that are loaded to stay in the store. Large payloads get their own buffer so that they do not waste slabs.
+ * Not thread-safe, every loading thread has its own allocator.
+ */
+class PayloadSlabAllocator implements IntFunction<ByteBuffer> {
+    private static final int SLAB_SIZE = 1024 * 1024;
+    private static final int MAX_SLICED_SIZE = SLAB_SIZE / 16;
+
+    private ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+
+    @Override
+    public ByteBuffer apply(int size) {
+        if (size > MAX_SLICED_SIZE) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        if (slab.remaining() < size) {
+            slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+        }
+        int end = slab.position() + size;
+        slab.limit(end);
+        ByteBuffer payload = slab.slice();
+        slab.limit(slab.capacity()).position(end);
+        return payload;
+    }
+}
@@ -0,0 +1,214 @@
+package com.example.service.io;
+
+import com.example.service.price.PriceRecord;
+import com.example.service.price.PriceRecordCodec;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * The formats of the files that price records are loaded from and exported to.
+ * <ul>
+ * <li>BINARY: a header of the magic number "LVPS" and a format version (two ints), followed by records
+ * encoded by {@link PriceRecordCodec} until the end of the file. It keeps the whole payload.</li>
+ * <li>CSV: a header line and one "instrumentId,asOf,price" line per record, asOf in ISO local date time format.
+ * Only the price of the payload is kept, it is loaded back as an 8 bytes payload. An instrument id which contains
+ * a comma, a quote or a line break is quoted as in RFC 4180, with its quotes doubled.</li>
+ * </ul>
+ * [ASSUMPTION]: Instrument ids do not contain carriage returns, a line break within a quoted id is read back as a
+ * line feed.
+ */
+public enum PriceFileFormat {
+    BINARY(".lvps") {
+        @Override
+        public void read(ReadableByteChannel channel, IntFunction<ByteBuffer> payloadAllocator,
+                         Consumer<PriceRecord> consumer) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            buffer.flip(); // empty, in read mode
+            if (!fill(channel, buffer, HEADER_SIZE)) {
+                throw new IOException("Missing binary price file header");
+            }
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                throw new IOException("Not a binary price file of version " + FORMAT_VERSION);
+            }
+
+            while (true) {
+                int size = PriceRecordCodec.peekEncodedSize(buffer);
+                if (size >= 0 && size <= buffer.remaining()) {
+                    consumer.accept(PriceRecordCodec.decode(buffer, payloadAllocator));
+                    continue;
+                }
+                if (size > buffer.capacity()) {
+                    buffer = grow(buffer, size);
+                }
+                // at least the size of the record, or of its header when the size is not known yet
+                if (!fill(channel, buffer, size >= 0 ? size : buffer.remaining() + 1)) {
+                    if (buffer.hasRemaining()) throw new IOException("Truncated binary price file");
+                    return;
+                }
+            }
+        }
+
+        @Override
+        void writeHeader(ByteBuffer dst) {
+            dst.putInt(MAGIC).putInt(FORMAT_VERSION);
+        }
+    },
+
+    CSV(".csv") {
+        @Override
+        public void read(ReadableByteChannel channel, IntFunction<ByteBuffer> payloadAllocator,
+                         Consumer<PriceRecord> consumer) throws IOException {
+            BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(),
+                    READ_BUFFER_SIZE));
+            String line = reader.readLine(); // header
+            StringBuilder quotedId = new StringBuilder();
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                String instrumentId;
+                if (line.charAt(0) == '"') {
+                    quotedId.setLength(0);
+                    line = readQuotedId(line, reader, quotedId);
+                    instrumentId = quotedId.toString();
+                } else {
+                    int firstComma = line.indexOf(',');
+                    if (firstComma < 0) throw new IOException("Malformed price line: " + line);
+                    instrumentId = line.substring(0, firstComma);
+                    line = line.substring(firstComma + 1);
+                }
+                int comma = line.indexOf(',');
+                if (comma < 0) throw new IOException("Malformed price line: " + line);
+                ByteBuffer payload = payloadAllocator.apply(Double.BYTES)
+                        .putDouble(Double.parseDouble(line.substring(comma + 1)));
+                consumer.accept(new PriceRecord(instrumentId, LocalDateTime.parse(line.substring(0, comma)),
+                        payload));
+            }
+        }
+
+        /**
+         * Reads a quoted instrument id, which may continue on the following lines.
+         * @return the rest of the line after the comma which follows the id
+         */
+        private String readQuotedId(String line, BufferedReader reader, StringBuilder id) throws IOException {
+            int start = 1;
+            while (true) {
+                int quote = line.indexOf('"', start);
+                if (quote < 0) {
+                    id.append(line, start, line.length()).append('\n');
+                    line = reader.readLine();
+                    if (line == null) throw new IOException("Unterminated quoted instrument id: " + id);
+                    start = 0;
+                } else if (quote + 1 < line.length() && line.charAt(quote + 1) == '"') {
+                    id.append(line, start, quote + 1);
+                    start = quote + 2;
+                } else {
+                    id.append(line, start, quote);
+                    if (quote + 1 >= line.length() || line.charAt(quote + 1) != ',') {
+                        throw new IOException("Malformed price line: " + line);
+                    }
+                    return line.substring(quote + 2);
+                }
+            }
+        }
+
+        @Override
+        void writeHeader(ByteBuffer dst) {
+            dst.put(CSV_HEADER.getBytes(StandardCharsets.UTF_8));
+        }
+    };
+
+    static final int MAGIC = 0x4C565053; // "LVPS"
+    static final int FORMAT_VERSION = 1;
+    static final String CSV_HEADER = "instrumentId,asOf,price\n";
+    private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    private final String fileExtension;
+
+    PriceFileFormat(String fileExtension) {
+        this.fileExtension = fileExtension;
+    }
+
+    public String getFileExtension() {
+        return fileExtension;
+    }
+
+    /**
+     * @return the format of the given file by its extension, or null if it is not a price file
+     */
+    public static PriceFileFormat of(Path file) {
+        String fileName = file.getFileName().toString();
+        for (PriceFileFormat format : values()) {
+            if (fileName.endsWith(format.fileExtension)) return format;
+        }
+        return null;
+    }
+
+    /**
+     * Reads all the records from the channel, in the order they are written, and gives them to the consumer.
+     */
+    public void read(ReadableByteChannel channel, Consumer<PriceRecord> consumer) throws IOException {
+        read(channel, ByteBuffer::allocateDirect, consumer);
+    }
+
+    /**
+     * Reads all the records from the channel like {@link #read(ReadableByteChannel, Consumer)}, the payloads
+     * are copied into the buffers of the given allocator.
+     */
+    public abstract void read(ReadableByteChannel channel, IntFunction<ByteBuffer> payloadAllocator,
+                              Consumer<PriceRecord> consumer) throws IOException;
+
+    abstract void writeHeader(ByteBuffer dst);
+
+    /**
+     * @return the line of a record in the CSV format
+     */
+    static byte[] csvLine(PriceRecord priceRecord) {
+        return (csvField(priceRecord.instrumentId) + ','
+                + priceRecord.asOf.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME) + ','
+                + priceRecord.getPrice() + '\n').getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String csvField(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return '"' + value.replace("\"", "\"\"") + '"';
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Reads from the channel until the buffer has at least the given number of bytes remaining.
+     * The buffer is in read mode before and after the call.
+     * @return false if the end of the channel is reached first
+     */
+    private static boolean fill(ReadableByteChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        buffer.compact();
+        try {
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) return false;
+            }
+            return true;
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+        grown.put(buffer);
+        grown.flip();
+        return grown;
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.service.io;
+
+import com.example.service.price.PriceRecord;
+import com.example.service.price.PriceRecordCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes price records into a file of the given {@link PriceFileFormat}, which can be loaded back by
+ * {@link WarmStartLoader}. The records are buffered in a direct buffer and written to the file channel in
+ * large blocks.
+ */
+public class PriceFileWriter implements AutoCloseable {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final FileChannel channel;
+    private final PriceFileFormat format;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long numberOfRecords;
+
+    public PriceFileWriter(Path file, PriceFileFormat format) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.format = format;
+        format.writeHeader(buffer);
+    }
+
+    public void write(PriceRecord priceRecord) throws IOException {
+        if (format == PriceFileFormat.BINARY) {
+            reserve(PriceRecordCodec.encodedSize(priceRecord));
+            PriceRecordCodec.encode(priceRecord, buffer);
+        } else {
+            byte[] line = PriceFileFormat.csvLine(priceRecord);
+            reserve(line.length);
+            buffer.put(line);
+        }
+        numberOfRecords++;
+    }
+
+    public long getNumberOfRecords() {
+        return numberOfRecords;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void reserve(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) return;
+        flush();
+        if (buffer.capacity() < bytes) {
+            buffer = ByteBuffer.allocateDirect(bytes);
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.service.io;
+
+import com.example.service.price.PriceRecord;
+import com.example.service.price.PriceRecordCodec;
+import com.example.service.store.StoreSnapshot;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Exports the last price record of every instrument of a store snapshot to a channel, e.g. a file or a socket, in a
+ * {@link PriceFileFormat}. The downstream systems pull it as their end-of-day file, and it can be loaded back by
+ * {@link WarmStartLoader}.
+ * [DESIGN DECISION]: The records are read from a pinned snapshot, so the export sees a single commit and the
+ * commits go on while it streams.
+ * [DESIGN DECISION]: The payloads are not copied to the heap. The encoded records are gathered in a direct buffer,
+ * only their payloads from {@link #LARGE_PAYLOAD_SIZE} bytes on are written straight from their own buffers, since
+ * copying a small payload between direct buffers is cheaper than a separate buffer of a gathering write.
+ * Not thread-safe, an exporter is used by one export at a time.
+ */
+public class SnapshotExporter {
+    private final static Logger logger = LogManager.getLogger(SnapshotExporter.class);
+    static final int BUFFER_SIZE = 1024 * 1024;
+    static final int LARGE_PAYLOAD_SIZE = 4096;
+    // the buffers of a gathering write, the operating systems limit them to about a thousand
+    private static final int MAX_GATHERED_BUFFERS = 1024;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    // the slices of the buffer and the large payloads to write, in order
+    private final List<ByteBuffer> gathered = new ArrayList<>();
+    // the position of the buffer from which the next slice starts
+    private int sliceStart;
+
+    /**
+     * Writes the latest record as of the given date time of every instrument of the snapshot, in no particular
+     * order. The channel is not closed, it must be in blocking mode.
+     * @return the number of exported records
+     * @throws IllegalStateException if the snapshot is closed or expires during the export
+     */
+    public long export(StoreSnapshot<PriceRecord> snapshot, LocalDateTime asOf, WritableByteChannel channel,
+                       PriceFileFormat format) throws IOException {
+        Instant start = Instant.now();
+        buffer.clear();
+        gathered.clear();
+        sliceStart = 0;
+        format.writeHeader(buffer);
+        long numberOfRecords = 0;
+        for (Iterator<PriceRecord> iterator = snapshot.latestRecords(asOf); iterator.hasNext(); ) {
+            PriceRecord priceRecord = iterator.next();
+            if (format == PriceFileFormat.BINARY) {
+                writeBinary(priceRecord, channel);
+            } else {
+                byte[] line = PriceFileFormat.csvLine(priceRecord);
+                reserve(line.length, channel);
+                buffer.put(line);
+            }
+            numberOfRecords++;
+        }
+        flush(channel);
+        logger.info("Exported {} records of version {} as of {} in {} ms", numberOfRecords, snapshot.getVersion(),
+                asOf, Duration.between(start, Instant.now()).toMillis());
+        return numberOfRecords;
+    }
+
+    private void writeBinary(PriceRecord priceRecord, WritableByteChannel channel) throws IOException {
+        int payloadSize = priceRecord.getPayloadSize();
+        if (payloadSize < LARGE_PAYLOAD_SIZE) {
+            reserve(PriceRecordCodec.encodedSize(priceRecord), channel);
+            PriceRecordCodec.encodeHeader(priceRecord, buffer);
+            buffer.put(priceRecord.getPayload());
+            return;
+        }
+        reserve(PriceRecordCodec.encodedHeaderSize(priceRecord), channel);
+        PriceRecordCodec.encodeHeader(priceRecord, buffer);
+        cutSlice();
+        gathered.add(priceRecord.getPayload());
+        if (gathered.size() >= MAX_GATHERED_BUFFERS - 1) {
+            flush(channel);
+        }
+    }
+
+    private void reserve(int bytes, WritableByteChannel channel) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush(channel);
+        }
+    }
+
+    private void cutSlice() {
+        if (buffer.position() == sliceStart) return;
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(buffer.position()).position(sliceStart);
+        gathered.add(slice);
+        sliceStart = buffer.position();
+    }
+
+    /**
+     * Writes the gathered buffers and the rest of the buffer, then empties the buffer.
+     */
+    private void flush(WritableByteChannel channel) throws IOException {
+        cutSlice();
+        ByteBuffer[] buffers = gathered.toArray(new ByteBuffer[0]);
+        if (channel instanceof GatheringByteChannel) {
+            int offset = 0;
+            while (offset < buffers.length) {
+                ((GatheringByteChannel) channel).write(buffers, offset, buffers.length - offset);
+                while (offset < buffers.length && !buffers[offset].hasRemaining()) offset++;
+            }
+        } else {
+            for (ByteBuffer src : buffers) {
+                while (src.hasRemaining()) {
+                    channel.write(src);
+                }
+            }
+        }
+        gathered.clear();
+        buffer.clear();
+        sliceStart = 0;
+    }
+}
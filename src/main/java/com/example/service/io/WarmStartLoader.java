@@ -0,0 +1,164 @@
+package com.example.service.io;
+
+import com.example.service.price.PriceRecord;
+import com.example.service.store.RecordStore;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Loads price files directly into a record store with a single commit, e.g. to warm start a fresh service after a
+ * deploy instead of replaying its batch runs through the provider API. Either a single file or a directory of price
+ * files can be loaded; the files of a directory are loaded in the order of their names, and a record of a later file
+ * replaces the record of an earlier file with the same instrument id and date time.
+ * [DESIGN DECISION]: The loading is done in two parallel phases. First the files are parsed in parallel, one task
+ * per file, and the records are partitioned by the hash of their instrument id while they are parsed. Then the
+ * store indexes the partitions in parallel, so that all the records of an instrument are indexed by the same task
+ * in file order, and publishes all of them at once.
+ * [ASSUMPTION]: The loaded records fit in memory twice: once partitioned, once indexed by the store.
+ */
+public class WarmStartLoader {
+    private final static Logger logger = LogManager.getLogger(WarmStartLoader.class);
+
+    private final int parallelism;
+    private final int numberOfPartitions;
+
+    public WarmStartLoader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public WarmStartLoader(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be positive");
+        this.parallelism = parallelism;
+        // more partitions than threads, so that an instrument heavy partition does not delay the others
+        this.numberOfPartitions = parallelism * 4;
+    }
+
+    /**
+     * @param path a price file or a directory of price files, other files of the directory are ignored
+     * @return the number of loaded records
+     */
+    public long load(Path path, RecordStore<PriceRecord> store) throws IOException {
+        Instant start = Instant.now();
+        List<Path> files = listPriceFiles(path);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<Callable<List<List<PriceRecord>>>> parseTasks = new ArrayList<>(files.size());
+            files.forEach(file -> parseTasks.add(() -> parse(file)));
+            List<List<List<PriceRecord>>> parsedFiles = new ArrayList<>(files.size());
+            for (Future<List<List<PriceRecord>>> future : pool.invokeAll(parseTasks)) {
+                parsedFiles.add(getParsed(future));
+            }
+
+            List<Iterable<PriceRecord>> partitions = new ArrayList<>(numberOfPartitions);
+            long numberOfRecords = 0;
+            for (int i = 0; i < numberOfPartitions; i++) {
+                List<List<PriceRecord>> partition = new ArrayList<>(parsedFiles.size());
+                for (List<List<PriceRecord>> parsedFile : parsedFiles) {
+                    partition.add(parsedFile.get(i));
+                    numberOfRecords += parsedFile.get(i).size();
+                }
+                partitions.add(concat(partition));
+            }
+            logger.info("Parsed {} records of {} files in {} ms", numberOfRecords, files.size(),
+                    Duration.between(start, Instant.now()).toMillis());
+            if (numberOfRecords == 0) return 0;
+
+            long version = store.storePartitions(partitions, pool);
+            logger.info("Loaded {} records as version {} in {} ms", numberOfRecords, version,
+                    Duration.between(start, Instant.now()).toMillis());
+            return numberOfRecords;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading " + path);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    static List<Path> listPriceFiles(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            if (PriceFileFormat.of(path) == null) throw new IOException("Not a price file: " + path);
+            List<Path> files = new ArrayList<>(1);
+            files.add(path);
+            return files;
+        }
+        try (Stream<Path> paths = Files.list(path)) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(file -> PriceFileFormat.of(file) != null)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private List<List<PriceRecord>> parse(Path file) throws IOException {
+        List<List<PriceRecord>> partitions = new ArrayList<>(numberOfPartitions);
+        for (int i = 0; i < numberOfPartitions; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            PriceFileFormat.of(file).read(channel, new PayloadSlabAllocator(), priceRecord ->
+                    partitions.get((priceRecord.instrumentId.hashCode() & Integer.MAX_VALUE) % numberOfPartitions)
+                            .add(priceRecord));
+        } catch (IOException e) {
+            throw new IOException("Failed to load " + file, e);
+        }
+        return partitions;
+    }
+
+    private static List<List<PriceRecord>> getParsed(Future<List<List<PriceRecord>>> future)
+            throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // the fork join pool may wrap the failure of a task into runtime exceptions
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) throw (IOException) cause;
+            }
+            throw new IllegalStateException("Failed to parse price files", e.getCause());
+        }
+    }
+
+    /**
+     * @return a view of the given lists one after another, without copying them
+     */
+    private static Iterable<PriceRecord> concat(List<List<PriceRecord>> lists) {
+        return () -> new Iterator<PriceRecord>() {
+            private final Iterator<List<PriceRecord>> listIterator = lists.iterator();
+            private Iterator<PriceRecord> iterator = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!iterator.hasNext() && listIterator.hasNext()) {
+                    iterator = listIterator.next().iterator();
+                }
+                return iterator.hasNext();
+            }
+
+            @Override
+            public PriceRecord next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return iterator.next();
+            }
+        };
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.service.loadtest;
+
+import com.example.service.price.LastValuePriceService;
+import com.example.service.price.PriceRecord;
+import com.example.service.store.PriceRecordStore;
+import com.example.service.store.StripedPriceRecordStore;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates a reproducible load on a {@link LastValuePriceService} in the same JVM and reports the results, e.g.
+ * to compare the throughput and the latencies of two releases or to soak test the service for hours.
+ * Run it with key=value arguments, see {@link LoadSettings}:
+ * <pre>
+ * java -XX:MaxDirectMemorySize=4g -cp ... com.example.service.loadtest.LoadGenerator duration=5m csv=runs.csv
+ * </pre>
+ * The measured APIs are start, upload, complete, commit (from the call to complete until the batch run is
+ * visible), getLastPrice (latest) and getLastPriceAsOf (historic).
+ * [DESIGN DECISION]: The lookups are issued at a fixed rate and their latency is measured from the time they were
+ * scheduled rather than the time they were issued, so that a stall of the service shows up in the percentiles
+ * instead of silently lowering the rate (coordinated omission).
+ * [DESIGN DECISION]: Every thread has its own random generator seeded from the seed of the settings, so the same
+ * settings generate the same records and lookups, though their interleaving depends on the scheduling.
+ * [ASSUMPTION]: The GC time reported by the JVM is used as the total GC pause time, which is accurate for
+ * stop-the-world collectors and an upper bound for the concurrent ones.
+ */
+public final class LoadGenerator {
+    private final static Logger logger = LogManager.getLogger(LoadGenerator.class);
+    private static final LocalDateTime T0 = LocalDateTime.of(2021, 1, 1, 0, 0, 0);
+    private static final long COMMIT_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final LoadSettings settings;
+    private final String[] instrumentIds;
+    private final LatencyHistogram startLatency = new LatencyHistogram("start");
+    private final LatencyHistogram uploadLatency = new LatencyHistogram("upload");
+    private final LatencyHistogram completeLatency = new LatencyHistogram("complete");
+    private final LatencyHistogram commitLatency = new LatencyHistogram("commit");
+    private final LatencyHistogram latestLatency = new LatencyHistogram("getLastPrice");
+    private final LatencyHistogram historicLatency = new LatencyHistogram("getLastPriceAsOf");
+    private final AtomicLong batchRuns = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private final ConcurrentLinkedQueue<PendingCommit> pendingCommits = new ConcurrentLinkedQueue<>();
+    private final AtomicLong directPeakBytes = new AtomicLong();
+    private volatile boolean running;
+
+    private static final class PendingCommit {
+        private final String batchRunId;
+        private final long completedNanos;
+
+        private PendingCommit(String batchRunId, long completedNanos) {
+            this.batchRunId = batchRunId;
+            this.completedNanos = completedNanos;
+        }
+    }
+
+    public LoadGenerator(LoadSettings settings) {
+        this.settings = settings;
+        this.instrumentIds = new String[settings.instruments];
+        for (int i = 0; i < instrumentIds.length; i++) {
+            instrumentIds[i] = "I" + i;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadSettings settings = LoadSettings.parse(args);
+        LoadReport report = new LoadGenerator(settings).run();
+        report.print(System.out);
+        if (settings.csvFile != null) {
+            report.appendCsv(settings.csvFile);
+        }
+    }
+
+    public LoadReport run() throws InterruptedException {
+        LastValuePriceService service = LastValuePriceService.builder()
+                .recordStore(settings.store.equals("striped") ? new StripedPriceRecordStore() : new PriceRecordStore())
+                .consumers(settings.consumers)
+                .executionMode(settings.threads)
+                .build();
+        long[] gcBefore = gcTotals();
+        List<Thread> threads = new ArrayList<>();
+        running = true;
+        service.run();
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < settings.producers; i++) {
+                SplittableRandom random = new SplittableRandom(settings.seed + i);
+                int producer = i;
+                threads.add(startThread("load-producer-" + i, () -> produce(service, producer, random)));
+            }
+            double readRatePerReader = (settings.latestQps + settings.historicQps) / Math.max(1, settings.readers);
+            if (readRatePerReader > 0) {
+                for (int i = 0; i < settings.readers; i++) {
+                    SplittableRandom random = new SplittableRandom(settings.seed + 1000 + i);
+                    threads.add(startThread("load-reader-" + i, () -> read(service, readRatePerReader, random)));
+                }
+            }
+            Thread commitTracker = startThread("load-commit-tracker", () -> trackCommits(service));
+
+            monitor(start + settings.duration.toNanos());
+            running = false;
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            // let the completed batch runs become visible, so their commit latencies are measured too
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (!pendingCommits.isEmpty() && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            commitTracker.interrupt();
+            commitTracker.join();
+            long elapsedNanos = System.nanoTime() - start;
+
+            long[] gcAfter = gcTotals();
+            sampleDirectMemory();
+            return new LoadReport(settings, elapsedNanos, batchRuns.get(), records.get(),
+                    service.getStatistics().getNumberOfRecords(),
+                    Arrays.asList(startLatency, uploadLatency, completeLatency, commitLatency, latestLatency,
+                            historicLatency),
+                    gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1], directMemory().getMemoryUsed(),
+                    directPeakBytes.get());
+        } finally {
+            running = false;
+            threads.forEach(Thread::interrupt);
+            service.terminate();
+        }
+    }
+
+    private Thread startThread(String name, Runnable task) {
+        Thread thread = settings.threads.newThread(name, task);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Samples the direct memory and logs the progress until the deadline.
+     */
+    private void monitor(long deadline) throws InterruptedException {
+        long nextLog = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        long now;
+        while ((now = System.nanoTime()) < deadline) {
+            sampleDirectMemory();
+            if (now >= nextLog) {
+                logger.info("{} batch runs, {} records, {} lookups, direct memory {} bytes", batchRuns.get(),
+                        records.get(), latestLatency.getCount() + historicLatency.getCount(),
+                        directMemory().getMemoryUsed());
+                nextLog += TimeUnit.SECONDS.toNanos(10);
+            }
+            Thread.sleep(Math.max(1, Math.min(100, TimeUnit.NANOSECONDS.toMillis(deadline - now))));
+        }
+    }
+
+    private void produce(LastValuePriceService service, int producer, SplittableRandom random) {
+        long interval = settings.batchRunsPerSecond > 0 ? (long) (1e9 / settings.batchRunsPerSecond) : 0;
+        long nextBatchRun = System.nanoTime();
+        long sequence = 0;
+        while (running) {
+            if (interval > 0) {
+                long now = System.nanoTime();
+                if (now < nextBatchRun) {
+                    LockSupport.parkNanos(nextBatchRun - now);
+                    continue;
+                }
+                nextBatchRun += interval;
+            }
+
+            long callStart = System.nanoTime();
+            String batchRunId = service.start();
+            startLatency.record(System.nanoTime() - callStart);
+            if (batchRunId == null) break; // interrupted
+
+            for (int c = 0; c < settings.chunksPerBatchRun; c++) {
+                PriceRecord[] chunk = new PriceRecord[settings.chunkSize];
+                for (int r = 0; r < chunk.length; r++, sequence++) {
+                    chunk[r] = new PriceRecord(instrumentIds[random.nextInt(instrumentIds.length)],
+                            nextAsOf(producer, sequence, random),
+                            ByteBuffer.allocateDirect(settings.payloadSize).putDouble(random.nextDouble()));
+                }
+                callStart = System.nanoTime();
+                boolean uploaded = service.upload(batchRunId, chunk);
+                uploadLatency.record(System.nanoTime() - callStart);
+                if (!uploaded) return;
+            }
+
+            callStart = System.nanoTime();
+            boolean completed = service.complete(batchRunId);
+            long completedNanos = System.nanoTime();
+            completeLatency.record(completedNanos - callStart);
+            if (!completed) return;
+            pendingCommits.add(new PendingCommit(batchRunId, completedNanos));
+            batchRuns.incrementAndGet();
+            records.addAndGet((long) settings.chunkSize * settings.chunksPerBatchRun);
+        }
+    }
+
+    private LocalDateTime nextAsOf(int producer, long sequence, SplittableRandom random) {
+        long windowSeconds = Math.max(1, settings.asOfWindow.getSeconds());
+        switch (settings.asOfDistribution) {
+            case SEQUENTIAL:
+                return T0.plusSeconds(sequence * settings.producers + producer);
+            case LATEST_SKEWED:
+                // exponential with a mean of a tenth of the window, back from the end of the window
+                long back = (long) (-Math.log(1 - random.nextDouble()) * windowSeconds / 10);
+                return T0.plusSeconds(windowSeconds - 1 - Math.min(back, windowSeconds - 1));
+            default:
+                return T0.plusSeconds(random.nextLong(windowSeconds));
+        }
+    }
+
+    private void read(LastValuePriceService service, double ratePerSecond, SplittableRandom random) {
+        long interval = Math.max(1, (long) (1e9 / ratePerSecond));
+        double latestRatio = settings.latestQps / (settings.latestQps + settings.historicQps);
+        long windowSeconds = Math.max(1, settings.asOfWindow.getSeconds());
+        long scheduled = System.nanoTime();
+        while (running) {
+            long now = System.nanoTime();
+            if (now < scheduled) {
+                LockSupport.parkNanos(scheduled - now);
+                continue;
+            }
+            String instrumentId = instrumentIds[random.nextInt(instrumentIds.length)];
+            if (random.nextDouble() < latestRatio) {
+                service.getLastPrice(instrumentId);
+                latestLatency.record(System.nanoTime() - scheduled);
+            } else {
+                service.getLastPrice(instrumentId, T0.plusSeconds(random.nextLong(windowSeconds)));
+                historicLatency.record(System.nanoTime() - scheduled);
+            }
+            scheduled += interval;
+        }
+    }
+
+    private void trackCommits(LastValuePriceService service) {
+        while (!Thread.currentThread().isInterrupted()) {
+            for (Iterator<PendingCommit> iterator = pendingCommits.iterator(); iterator.hasNext(); ) {
+                PendingCommit pendingCommit = iterator.next();
+                if (service.getCommitVersion(pendingCommit.batchRunId) >= 0) {
+                    commitLatency.record(System.nanoTime() - pendingCommit.completedNanos);
+                    iterator.remove();
+                }
+            }
+            LockSupport.parkNanos(COMMIT_POLL_NANOS);
+        }
+    }
+
+    private void sampleDirectMemory() {
+        directPeakBytes.accumulateAndGet(directMemory().getMemoryUsed(), Math::max);
+    }
+
+    private static BufferPoolMXBean directMemory() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) return pool;
+        }
+        throw new IllegalStateException("No direct buffer pool");
+    }
+
+    /**
+     * @return the total number and time in milliseconds of the collections so far
+     */
+    private static long[] gcTotals() {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, collector.getCollectionCount());
+            totals[1] += Math.max(0, collector.getCollectionTime());
+        }
+        return totals;
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.service.loadtest;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The results of a {@link LoadGenerator} run: throughput, latency percentiles of each API, GC and direct memory.
+ * It is printed for humans and appended as a single CSV row, so that the runs of different releases can be compared.
+ */
+public final class LoadReport {
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+
+    private final LoadSettings settings;
+    private final Instant finishedAt;
+    private final long elapsedNanos;
+    private final long batchRuns;
+    private final long records;
+    private final long storedRecords;
+    private final List<LatencyHistogram> latencies;
+    private final long gcCount;
+    private final long gcTimeMillis;
+    private final long directUsedBytes;
+    private final long directPeakBytes;
+
+    LoadReport(LoadSettings settings, long elapsedNanos, long batchRuns, long records, long storedRecords,
+               List<LatencyHistogram> latencies, long gcCount, long gcTimeMillis, long directUsedBytes,
+               long directPeakBytes) {
+        this.settings = settings;
+        this.finishedAt = Instant.now();
+        this.elapsedNanos = elapsedNanos;
+        this.batchRuns = batchRuns;
+        this.records = records;
+        this.storedRecords = storedRecords;
+        this.latencies = Collections.unmodifiableList(new ArrayList<>(latencies));
+        this.gcCount = gcCount;
+        this.gcTimeMillis = gcTimeMillis;
+        this.directUsedBytes = directUsedBytes;
+        this.directPeakBytes = directPeakBytes;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public long getBatchRuns() {
+        return batchRuns;
+    }
+
+    public long getStoredRecords() {
+        return storedRecords;
+    }
+
+    public double getRecordsPerSecond() {
+        return records * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * @return the number of calls measured for the given API, see {@link LoadGenerator} for the names
+     */
+    public long getCount(String api) {
+        return latency(api).getCount();
+    }
+
+    public double getPercentileMicros(String api, double percentile) {
+        return latency(api).getPercentileMicros(percentile);
+    }
+
+    public long getGcCount() {
+        return gcCount;
+    }
+
+    public long getGcTimeMillis() {
+        return gcTimeMillis;
+    }
+
+    public long getDirectPeakBytes() {
+        return directPeakBytes;
+    }
+
+    private LatencyHistogram latency(String api) {
+        for (LatencyHistogram histogram : latencies) {
+            if (histogram.getName().equals(api)) return histogram;
+        }
+        throw new IllegalArgumentException("Unknown API " + api);
+    }
+
+    public void print(PrintStream out) {
+        double seconds = elapsedNanos / 1e9;
+        out.println("Load test " + settings);
+        out.printf(Locale.ROOT, "Ran %.1f s: %d batch runs, %d records, %.0f records/s, %d records stored%n",
+                seconds, batchRuns, records, getRecordsPerSecond(), storedRecords);
+        out.printf(Locale.ROOT, "%-16s %10s %10s %10s %10s %10s %10s%n", "API", "calls", "calls/s",
+                "p50 us", "p99 us", "p99.9 us", "max us");
+        for (LatencyHistogram histogram : latencies) {
+            out.printf(Locale.ROOT, "%-16s %10d %10.0f %10.1f %10.1f %10.1f %10.1f%n", histogram.getName(),
+                    histogram.getCount(), histogram.getCount() / seconds, histogram.getPercentileMicros(50),
+                    histogram.getPercentileMicros(99), histogram.getPercentileMicros(99.9),
+                    histogram.getMaxNanos() / 1e3);
+        }
+        out.printf(Locale.ROOT, "GC: %d collections, %d ms. Direct memory: %.1f MB used, %.1f MB peak%n",
+                gcCount, gcTimeMillis, directUsedBytes / 1048576.0, directPeakBytes / 1048576.0);
+    }
+
+    /**
+     * Appends the report as a row to the given CSV file, the header is written first if the file is new.
+     */
+    public void appendCsv(Path file) throws IOException {
+        boolean newFile = !Files.exists(file) || Files.size(file) == 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            if (newFile) {
+                writer.write(csvHeader());
+                writer.newLine();
+            }
+            writer.write(csvRow());
+            writer.newLine();
+        }
+    }
+
+    String csvHeader() {
+        StringBuilder header = new StringBuilder("finished_at,label,duration_s,producers,consumers,store,instruments,"
+                + "chunk_size,as_of_distribution,seed,batch_runs,records,records_per_s,stored_records");
+        for (LatencyHistogram histogram : latencies) {
+            String api = histogram.getName();
+            header.append(',').append(api).append("_count");
+            for (double percentile : PERCENTILES) {
+                header.append(',').append(api).append("_p").append(percentileName(percentile)).append("_us");
+            }
+            header.append(',').append(api).append("_max_us");
+        }
+        return header.append(",gc_count,gc_time_ms,direct_used_bytes,direct_peak_bytes").toString();
+    }
+
+    String csvRow() {
+        StringBuilder row = new StringBuilder();
+        row.append(finishedAt).append(',').append(settings.label.replace(',', ' '))
+                .append(',').append(format(elapsedNanos / 1e9))
+                .append(',').append(settings.producers).append(',').append(settings.consumers)
+                .append(',').append(settings.store).append(',').append(settings.instruments)
+                .append(',').append(settings.chunkSize).append(',').append(settings.asOfDistribution)
+                .append(',').append(settings.seed).append(',').append(batchRuns).append(',').append(records)
+                .append(',').append(format(getRecordsPerSecond())).append(',').append(storedRecords);
+        for (LatencyHistogram histogram : latencies) {
+            row.append(',').append(histogram.getCount());
+            for (double percentile : PERCENTILES) {
+                row.append(',').append(format(histogram.getPercentileMicros(percentile)));
+            }
+            row.append(',').append(format(histogram.getMaxNanos() / 1e3));
+        }
+        return row.append(',').append(gcCount).append(',').append(gcTimeMillis)
+                .append(',').append(directUsedBytes).append(',').append(directPeakBytes).toString();
+    }
+
+    private static String percentileName(double percentile) {
+        return percentile == Math.rint(percentile) ? String.valueOf((long) percentile)
+                : String.valueOf(percentile).replace(".", "");
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+}
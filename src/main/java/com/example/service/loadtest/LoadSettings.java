@@ -0,0 +1,165 @@
+package com.example.service.loadtest;
+
+import com.example.service.price.ExecutionMode;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable settings of a {@link LoadGenerator} run, given as key=value pairs, e.g.
+ * {@code producers=4 instruments=10000 asOfDistribution=LATEST_SKEWED duration=5m csv=runs.csv}.
+ * Durations are given as 500ms, 30s, 5m, 1h or in ISO-8601 format.
+ * [DESIGN DECISION]: The settings are kept as the given strings too, so that a report can print exactly what a run
+ * was configured with and the same run can be repeated with the same seed.
+ */
+public final class LoadSettings {
+    public enum AsOfDistribution {
+        /**
+         * Every record of a producer is later than the previous one, so no record is ever replaced.
+         */
+        SEQUENTIAL,
+        /**
+         * Uniform within the asOf window, records are replaced once the window is filled.
+         */
+        UNIFORM,
+        /**
+         * Exponentially skewed towards the end of the asOf window, like prices which are mostly recent.
+         */
+        LATEST_SKEWED
+    }
+
+    private static final List<String> KEYS = Arrays.asList("producers", "chunkSize", "chunksPerBatchRun",
+            "batchRunsPerSecond", "instruments", "payloadSize", "asOfDistribution", "asOfWindow", "readers",
+            "latestQps", "historicQps", "duration", "store", "consumers", "threads", "seed", "csv", "label");
+
+    /**
+     * The number of threads which upload batch runs.
+     */
+    public final int producers;
+    public final int chunkSize;
+    public final int chunksPerBatchRun;
+    /**
+     * The maximum rate of batch runs of each producer, zero for no limit.
+     */
+    public final double batchRunsPerSecond;
+    public final int instruments;
+    public final int payloadSize;
+    public final AsOfDistribution asOfDistribution;
+    public final Duration asOfWindow;
+    /**
+     * The number of threads which look up prices, the read rates are shared by them.
+     */
+    public final int readers;
+    public final double latestQps;
+    public final double historicQps;
+    public final Duration duration;
+    /**
+     * The store engine: "single" for a single lock store, "striped" for a striped store.
+     */
+    public final String store;
+    public final int consumers;
+    /**
+     * The threads of the producers, the readers and the service, with virtual threads many thousands of producers
+     * and readers can block at the same time.
+     */
+    public final ExecutionMode threads;
+    public final long seed;
+    /**
+     * The file which a result row is appended to, or null.
+     */
+    public final Path csvFile;
+    public final String label;
+    private final Map<String, String> values;
+
+    private LoadSettings(Map<String, String> values) {
+        this.values = values;
+        producers = Integer.parseInt(get("producers", "2"));
+        chunkSize = Integer.parseInt(get("chunkSize", "1000"));
+        chunksPerBatchRun = Integer.parseInt(get("chunksPerBatchRun", "10"));
+        batchRunsPerSecond = Double.parseDouble(get("batchRunsPerSecond", "10"));
+        instruments = Integer.parseInt(get("instruments", "1000"));
+        payloadSize = Integer.parseInt(get("payloadSize", "64"));
+        asOfDistribution = AsOfDistribution.valueOf(get("asOfDistribution", AsOfDistribution.UNIFORM.name()));
+        asOfWindow = parseDuration(get("asOfWindow", "10m"));
+        readers = Integer.parseInt(get("readers", "2"));
+        latestQps = Double.parseDouble(get("latestQps", "2000"));
+        historicQps = Double.parseDouble(get("historicQps", "1000"));
+        duration = parseDuration(get("duration", "30s"));
+        store = get("store", "single");
+        consumers = Integer.parseInt(get("consumers", "1"));
+        threads = ExecutionMode.valueOf(get("threads", ExecutionMode.PLATFORM_THREADS.name()));
+        seed = Long.parseLong(get("seed", "42"));
+        String csv = get("csv", null);
+        csvFile = csv == null ? null : Paths.get(csv);
+        label = get("label", "");
+
+        if (producers < 1 || chunkSize < 1 || chunksPerBatchRun < 1 || instruments < 1 || consumers < 1) {
+            throw new IllegalArgumentException("Counts must be positive: " + this);
+        }
+        if (payloadSize < Double.BYTES) {
+            throw new IllegalArgumentException("The payload must hold at least the price: " + this);
+        }
+        if (!store.equals("single") && !store.equals("striped")) {
+            throw new IllegalArgumentException("Unknown store engine " + store);
+        }
+    }
+
+    public static LoadSettings defaults() {
+        return new LoadSettings(Collections.emptyMap());
+    }
+
+    /**
+     * @param args key=value pairs which override the defaults
+     */
+    public static LoadSettings parse(String... args) {
+        LoadSettings settings = defaults();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0) throw new IllegalArgumentException("Expected key=value but got " + arg);
+            settings = settings.with(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        return settings;
+    }
+
+    public LoadSettings with(String key, String value) {
+        if (!KEYS.contains(key)) throw new IllegalArgumentException("Unknown setting " + key + ", expected " + KEYS);
+        Map<String, String> newValues = new LinkedHashMap<>(values);
+        newValues.put(key, value);
+        return new LoadSettings(newValues);
+    }
+
+    private String get(String key, String defaultValue) {
+        return values.getOrDefault(key, defaultValue);
+    }
+
+    private static final Pattern SHORT_DURATION = Pattern.compile("(\\d+)(ms|s|m|h)");
+
+    static Duration parseDuration(String value) {
+        Matcher matcher = SHORT_DURATION.matcher(value);
+        if (!matcher.matches()) return Duration.parse(value);
+        long amount = Long.parseLong(matcher.group(1));
+        switch (matcher.group(2)) {
+            case "ms":
+                return Duration.ofMillis(amount);
+            case "s":
+                return Duration.ofSeconds(amount);
+            case "m":
+                return Duration.ofMinutes(amount);
+            default:
+                return Duration.ofHours(amount);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LoadSettings" + values;
+    }
+}
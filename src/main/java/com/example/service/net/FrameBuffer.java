@@ -0,0 +1,52 @@
+package com.example.service.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A growable direct buffer which frames are written into before they are sent to a channel.
+ * [DESIGN DECISION]: Direct buffers are used so that the socket writes do not need an extra copy
+ * from the heap. The buffer only grows, since connections tend to send frames of similar sizes.
+ * [DESIGN DECISION]: This class is not thread safe, the owners guard it with a lock.
+ */
+final class FrameBuffer {
+    private ByteBuffer buffer;
+
+    FrameBuffer(int initialCapacity) {
+        buffer = ByteBuffer.allocateDirect(initialCapacity);
+    }
+
+    /**
+     * Starts a frame whose body will take at most the given number of bytes.
+     * @return the position of the frame which should be given to {@link #endFrame(int)}
+     */
+    int beginFrame(int headerSize, int bodySize) {
+        ensureRemaining(PriceProtocol.LENGTH_SIZE + headerSize + bodySize);
+        int start = buffer.position();
+        buffer.putInt(0); // the length is filled in by endFrame
+        return start;
+    }
+
+    void endFrame(int start) {
+        buffer.putInt(start, buffer.position() - start - PriceProtocol.LENGTH_SIZE);
+    }
+
+    /**
+     * @return the buffer in write mode, positioned after the last written frame
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    private void ensureRemaining(int bytes) {
+        if (buffer.remaining() >= bytes) return;
+
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < bytes) {
+            capacity *= 2;
+        }
+        ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
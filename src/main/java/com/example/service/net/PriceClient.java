@@ -0,0 +1,355 @@
+package com.example.service.net;
+
+import com.example.service.price.PriceProvider;
+import com.example.service.price.PriceRecord;
+import com.example.service.price.PriceRecordCodec;
+import com.example.service.price.PriceRequester;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Connects to a {@link PriceServer} and offers the provider and requester APIs of the remote service.
+ * Every request has an asynchronous variant, so that many requests can be in flight on the same connection.
+ * The synchronous variants behave like the in-JVM API: provider methods return false (or null) when the service
+ * rejects the request or the connection fails, lookups return null when there is no price.
+ * [DESIGN DECISION]: A single reader thread decodes all the responses and completes the matching futures.
+ * The requests are written by the calling threads under a lock.
+ */
+public class PriceClient implements PriceProvider, PriceRequester, AutoCloseable {
+    private final static Logger logger = LogManager.getLogger(PriceClient.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final FrameBuffer output = new FrameBuffer(BUFFER_SIZE);
+    private final AtomicInteger requestIds = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, PendingResponse<?>> pendingResponses = new ConcurrentHashMap<>();
+    private final Thread readerThread;
+    private final CopyOnWriteArrayList<LongConsumer> versionListeners = new CopyOnWriteArrayList<>();
+    private volatile IOException failure;
+
+    private static final class PendingResponse<R> {
+        private final CompletableFuture<R> future = new CompletableFuture<>();
+        private final ResponseDecoder<R> decoder;
+
+        private PendingResponse(ResponseDecoder<R> decoder) {
+            this.decoder = decoder;
+        }
+
+        private void complete(byte status, ByteBuffer body) {
+            try {
+                future.complete(decoder.decode(status, body));
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface ResponseDecoder<R> {
+        R decode(byte status, ByteBuffer body);
+    }
+
+    private PriceClient(SocketChannel channel) {
+        this.channel = channel;
+        this.readerThread = new Thread(this::runReader, "price-client-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    public static PriceClient connect(InetSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        return new PriceClient(channel);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        try {
+            readerThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ---------- Asynchronous API ----------
+
+    public CompletableFuture<String> startAsync() {
+        return send(PriceProtocol.START, 0, null,
+                (status, body) -> status == PriceProtocol.OK ? PriceRecordCodec.getString(body) : null);
+    }
+
+    public CompletableFuture<Boolean> uploadAsync(String batchRunId, PriceRecord[] priceRecords) {
+        int bodySize = PriceRecordCodec.encodedSize(batchRunId) + Integer.BYTES;
+        for (PriceRecord priceRecord : priceRecords) {
+            bodySize += PriceRecordCodec.encodedSize(priceRecord);
+        }
+        return send(PriceProtocol.UPLOAD, bodySize, body -> {
+            PriceRecordCodec.putString(body, batchRunId);
+            body.putInt(priceRecords.length);
+            for (PriceRecord priceRecord : priceRecords) {
+                PriceRecordCodec.encode(priceRecord, body);
+            }
+        }, PriceClient::isOk);
+    }
+
+    public CompletableFuture<Boolean> checkpointAsync(String batchRunId) {
+        return send(PriceProtocol.CHECKPOINT, PriceRecordCodec.encodedSize(batchRunId),
+                body -> PriceRecordCodec.putString(body, batchRunId), PriceClient::isOk);
+    }
+
+    public CompletableFuture<Boolean> completeAsync(String batchRunId) {
+        return send(PriceProtocol.COMPLETE, PriceRecordCodec.encodedSize(batchRunId),
+                body -> PriceRecordCodec.putString(body, batchRunId), PriceClient::isOk);
+    }
+
+    public CompletableFuture<Boolean> cancelAsync(String batchRunId) {
+        return send(PriceProtocol.CANCEL, PriceRecordCodec.encodedSize(batchRunId),
+                body -> PriceRecordCodec.putString(body, batchRunId), PriceClient::isOk);
+    }
+
+    /**
+     * @param asOf the date time of the requested price, or null for the current time of the server
+     */
+    public CompletableFuture<PriceRecord> getLastPriceAsync(String instrumentId, LocalDateTime asOf) {
+        return send(PriceProtocol.GET_LAST_PRICE,
+                PriceRecordCodec.encodedSize(instrumentId) + PriceProtocol.optionalDateTimeSize(asOf),
+                body -> {
+                    PriceRecordCodec.putString(body, instrumentId);
+                    PriceProtocol.putOptionalDateTime(body, asOf);
+                },
+                (status, body) -> status == PriceProtocol.OK ? PriceRecordCodec.decode(body) : null);
+    }
+
+    /**
+     * Looks up the prices of many instruments with a single request.
+     * @param asOf the date time of the requested prices, or null for the current time of the server
+     * @return the price records in the order of the given ids, with null elements for the missing prices
+     */
+    public CompletableFuture<PriceRecord[]> getLastPricesAsync(String[] instrumentIds, LocalDateTime asOf) {
+        int bodySize = PriceProtocol.optionalDateTimeSize(asOf) + Integer.BYTES;
+        for (String instrumentId : instrumentIds) {
+            bodySize += PriceRecordCodec.encodedSize(instrumentId);
+        }
+        return send(PriceProtocol.GET_LAST_PRICES, bodySize, body -> {
+            PriceProtocol.putOptionalDateTime(body, asOf);
+            body.putInt(instrumentIds.length);
+            for (String instrumentId : instrumentIds) {
+                PriceRecordCodec.putString(body, instrumentId);
+            }
+        }, (status, body) -> {
+            // every element has at least its found flag
+            PriceRecord[] priceRecords = new PriceRecord[PriceRecordCodec.getCount(body, Byte.BYTES)];
+            for (int i = 0; i < priceRecords.length; i++) {
+                priceRecords[i] = body.get() == 0 ? null : PriceRecordCodec.decode(body);
+            }
+            return priceRecords;
+        });
+    }
+
+    /**
+     * Subscribes to the commit versions published by the server, e.g. to invalidate a near-cache. The listener
+     * is called with the latest version known by the server and then with every new version, on the reader thread.
+     * @return the latest version known by the server at the time of the subscription
+     */
+    public long subscribeVersions(LongConsumer listener) {
+        versionListeners.add(listener);
+        long version = join(send(PriceProtocol.SUBSCRIBE, 0, null, (status, body) -> body.getLong()));
+        listener.accept(version);
+        return version;
+    }
+
+    // ---------- Provider API ----------
+
+    @Override
+    public String start() {
+        return await(startAsync(), null);
+    }
+
+    @Override
+    public boolean upload(String batchRunId, PriceRecord[] priceRecords) {
+        if (batchRunId == null) return false;
+        return await(uploadAsync(batchRunId, priceRecords), false);
+    }
+
+    @Override
+    public boolean checkpoint(String batchRunId) {
+        if (batchRunId == null) return false;
+        return await(checkpointAsync(batchRunId), false);
+    }
+
+    @Override
+    public boolean complete(String batchRunId) {
+        if (batchRunId == null) return false;
+        return await(completeAsync(batchRunId), false);
+    }
+
+    @Override
+    public boolean cancel(String batchRunId) {
+        if (batchRunId == null) return false;
+        return await(cancelAsync(batchRunId), false);
+    }
+
+    // ---------- Requester API ----------
+
+    @Override
+    public PriceRecord getLastPrice(String instrumentId) {
+        if (instrumentId == null) return null;
+        return join(getLastPriceAsync(instrumentId, null));
+    }
+
+    @Override
+    public PriceRecord getLastPrice(String instrumentId, LocalDateTime asOf) {
+        if (instrumentId == null || asOf == null) return null;
+        return join(getLastPriceAsync(instrumentId, asOf));
+    }
+
+    // ---------- Internals ----------
+
+    private static boolean isOk(byte status, ByteBuffer body) {
+        return status == PriceProtocol.OK;
+    }
+
+    private static <R> R await(CompletableFuture<R> future, R failedResult) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            logger.error("Remote provider call failed: {}", e.getCause().toString());
+            return failedResult;
+        }
+    }
+
+    private static <R> R join(CompletableFuture<R> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw new UncheckedIOException((IOException) e.getCause());
+            }
+            throw e;
+        }
+    }
+
+    private <R> CompletableFuture<R> send(byte opcode, int bodySize, Consumer<ByteBuffer> bodyWriter,
+                                          ResponseDecoder<R> decoder) {
+        int requestId = requestIds.incrementAndGet();
+        PendingResponse<R> pendingResponse = new PendingResponse<>(decoder);
+        // register before writing, the response may arrive before the write returns
+        pendingResponses.put(requestId, pendingResponse);
+        if (failure != null) {
+            failPendingResponses(failure);
+            return pendingResponse.future;
+        }
+
+        writeLock.lock();
+        try {
+            int start = output.beginFrame(PriceProtocol.REQUEST_HEADER_SIZE, bodySize);
+            ByteBuffer buffer = output.buffer();
+            buffer.put(opcode).putInt(requestId);
+            if (bodyWriter != null) {
+                bodyWriter.accept(buffer);
+            }
+            output.endFrame(start);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        } catch (IOException | RuntimeException e) {
+            output.buffer().clear();
+            pendingResponses.remove(requestId);
+            pendingResponse.future.completeExceptionally(e);
+        } finally {
+            writeLock.unlock();
+        }
+        return pendingResponse.future;
+    }
+
+    private void runReader() {
+        ByteBuffer input = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try {
+            while (true) {
+                if (channel.read(input) < 0) {
+                    throw new EOFException("Connection closed by the server");
+                }
+                input.flip();
+                while (input.remaining() >= PriceProtocol.LENGTH_SIZE) {
+                    int length = input.getInt(input.position());
+                    if (input.remaining() < PriceProtocol.LENGTH_SIZE + length) break;
+
+                    int frameEnd = input.position() + PriceProtocol.LENGTH_SIZE + length;
+                    ByteBuffer frame = input.duplicate();
+                    frame.position(input.position() + PriceProtocol.LENGTH_SIZE);
+                    frame.limit(frameEnd);
+                    input.position(frameEnd);
+                    handleResponse(frame);
+                }
+                input = compact(input);
+            }
+        } catch (IOException e) {
+            failure = e;
+            failPendingResponses(e);
+        }
+    }
+
+    /**
+     * Compacts the input buffer and grows it if the next frame does not fit.
+     */
+    private static ByteBuffer compact(ByteBuffer input) {
+        int required = input.remaining() >= PriceProtocol.LENGTH_SIZE
+                ? PriceProtocol.LENGTH_SIZE + input.getInt(input.position()) : 0;
+        input.compact();
+        if (required <= input.capacity()) return input;
+
+        ByteBuffer grown = ByteBuffer.allocateDirect(required);
+        input.flip();
+        grown.put(input);
+        return grown;
+    }
+
+    private void handleResponse(ByteBuffer frame) {
+        byte opcode = frame.get();
+        int requestId = frame.getInt();
+        byte status = frame.get();
+        if (opcode == PriceProtocol.VERSION) {
+            long version = frame.getLong();
+            versionListeners.forEach(listener -> listener.accept(version));
+            return;
+        }
+        PendingResponse<?> pendingResponse = pendingResponses.remove(requestId);
+        if (pendingResponse == null) {
+            logger.warn("Received a response for an unknown request {}", requestId);
+            return;
+        }
+        if (status == PriceProtocol.BAD_REQUEST) {
+            pendingResponse.future.completeExceptionally(new IllegalArgumentException("Server rejected request"));
+        } else {
+            pendingResponse.complete(status, frame);
+        }
+    }
+
+    private void failPendingResponses(IOException cause) {
+        pendingResponses.values().removeIf(pendingResponse -> {
+            pendingResponse.future.completeExceptionally(cause);
+            return true;
+        });
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.service.net;
+
+import com.example.service.price.PriceRecordCodec;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+
+/**
+ * Defines the length-prefixed binary protocol spoken between {@link PriceServer} and {@link PriceClient}.
+ * Every frame starts with an int length which does not include the length field itself:
+ * <pre>
+ * request:  length | opcode (byte) | requestId (int) | body
+ * response: length | opcode (byte) | requestId (int) | status (byte) | body
+ * </pre>
+ * Request and response bodies per opcode (strings and records are encoded by {@link PriceRecordCodec}):
+ * <pre>
+ * START            -                                      | batchRunId
+ * UPLOAD           batchRunId, count (int), records       | -
+ * COMPLETE         batchRunId                             | -
+ * CANCEL           batchRunId                             | -
+ * GET_LAST_PRICE   instrumentId, optional asOf            | record (status OK) or nothing (status NOT_FOUND)
+ * GET_LAST_PRICES  optional asOf, count (int), ids        | count (int), per id: found (byte) + record
+ * SUBSCRIBE        -                                      | latest commit version (long)
+ * VERSION          (pushed by the server, request id 0)   | commit version (long)
+ * CHECKPOINT       batchRunId                             | -
+ * </pre>
+ * After a SUBSCRIBE request, the server pushes a VERSION frame to the connection whenever a new commit
+ * version is published, which lets clients invalidate their caches without polling.
+ * An optional asOf is encoded as a presence byte followed by the date time when present. A missing asOf
+ * means the current time of the server.
+ * [DESIGN DECISION]: Every response echoes the request id, so a client can pipeline many requests on a single
+ * connection and match the responses even though the server may answer lookups before earlier provider commands.
+ */
+public final class PriceProtocol {
+    public static final byte START = 1;
+    public static final byte UPLOAD = 2;
+    public static final byte COMPLETE = 3;
+    public static final byte CANCEL = 4;
+    public static final byte GET_LAST_PRICE = 5;
+    public static final byte GET_LAST_PRICES = 6;
+    public static final byte SUBSCRIBE = 7;
+    public static final byte VERSION = 8;
+    public static final byte CHECKPOINT = 9;
+
+    public static final byte OK = 0;
+    public static final byte NOT_FOUND = 1;
+    // the service rejected the request, e.g. an unknown batch run id
+    public static final byte FAILED = 2;
+    // the request could not be decoded
+    public static final byte BAD_REQUEST = 3;
+
+    public static final int LENGTH_SIZE = Integer.BYTES;
+    public static final int REQUEST_HEADER_SIZE = Byte.BYTES + Integer.BYTES;
+    public static final int RESPONSE_HEADER_SIZE = REQUEST_HEADER_SIZE + Byte.BYTES;
+    // a chunk of 1000 records with ~1 KB payloads fits easily into a frame
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    private PriceProtocol() {
+    }
+
+    static int optionalDateTimeSize(LocalDateTime dateTime) {
+        return dateTime == null ? Byte.BYTES : Byte.BYTES + Long.BYTES + Integer.BYTES;
+    }
+
+    static void putOptionalDateTime(ByteBuffer dst, LocalDateTime dateTime) {
+        if (dateTime == null) {
+            dst.put((byte) 0);
+        } else {
+            dst.put((byte) 1);
+            PriceRecordCodec.putDateTime(dst, dateTime);
+        }
+    }
+
+    static LocalDateTime getOptionalDateTime(ByteBuffer src) {
+        return src.get() == 0 ? null : PriceRecordCodec.getDateTime(src);
+    }
+}
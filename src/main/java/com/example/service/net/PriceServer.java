@@ -0,0 +1,491 @@
+package com.example.service.net;
+
+import com.example.service.price.ExecutionMode;
+import com.example.service.price.LastValuePriceService;
+import com.example.service.price.PriceProvider;
+import com.example.service.price.PriceRecord;
+import com.example.service.price.PriceRecordCodec;
+import com.example.service.price.PriceRequester;
+import com.example.service.store.CommitListener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.LocalDateTime;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Exposes a {@link PriceProvider} and a {@link PriceRequester} to other processes over TCP, using the binary
+ * protocol defined by {@link PriceProtocol}.
+ * [DESIGN DECISION]: A single selector thread does all the socket I/O with direct buffers. Price lookups are
+ * answered on the selector thread, which saves a hand-off per lookup. They take the read lock of the store, so they
+ * wait while a consumer holds the write lock for a commit, and all the connections stall for the duration of that
+ * commit. Provider commands may block for much longer while the request queue is full or an upload waits to be
+ * admitted, so they are executed by a worker executor, serially per connection to keep their order.
+ * [DESIGN DECISION]: A server over a {@link LastValuePriceService} registers itself as a commit listener of the
+ * service until it is closed, so that the subscribers receive every commit version without further wiring. Over
+ * any other requester, the versions are published with {@link #publishVersion(long)}.
+ * [ASSUMPTION]: Commits are short compared to the latency that the readers expect, e.g. batch runs which publish
+ * large uploads in parts by checkpoints. Otherwise the lookups should be moved to the worker executor as well.
+ * [DESIGN DECISION]: A connection which has too many provider commands in progress, or too many response bytes
+ * that the client does not read, is not read from until it catches up. By this way, a fast producer gets
+ * backpressure through TCP instead of making the server buffer its uploads.
+ */
+public class PriceServer implements AutoCloseable {
+    private final static Logger logger = LogManager.getLogger(PriceServer.class);
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_PENDING_COMMANDS = 64;
+    private static final int MAX_PENDING_RESPONSE_BYTES = 4 * 1024 * 1024;
+
+    private final PriceProvider priceProvider;
+    private final PriceRequester priceRequester;
+    private final Executor commandExecutor;
+    private final ExecutorService ownedExecutor;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    // tasks handed over to the selector thread by the worker threads
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final Thread selectorThread;
+    private final AtomicLong latestVersion = new AtomicLong();
+    // the service which calls the commit listener, null over any other requester
+    private final LastValuePriceService service;
+    private final CommitListener<PriceRecord> commitListener = (version, priceRecords) -> publishVersion(version);
+    private volatile boolean running;
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final SerialExecutor commands = new SerialExecutor(commandExecutor);
+        private final AtomicInteger pendingCommands = new AtomicInteger();
+        private final AtomicBoolean serviceScheduled = new AtomicBoolean();
+        private final ReentrantLock outputLock = new ReentrantLock();
+        private final FrameBuffer output = new FrameBuffer(WRITE_BUFFER_SIZE);
+        private ByteBuffer input = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private volatile int pendingResponseBytes;
+        // accessed by the selector thread only
+        private boolean versionSubscriber;
+
+        private Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.key = channel.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        private boolean isBusy() {
+            return pendingCommands.get() >= MAX_PENDING_COMMANDS || pendingResponseBytes > MAX_PENDING_RESPONSE_BYTES;
+        }
+    }
+
+    public PriceServer(PriceProvider priceProvider, PriceRequester priceRequester,
+                       InetSocketAddress address) throws IOException {
+        this(priceProvider, priceRequester, address, ExecutionMode.PLATFORM_THREADS);
+    }
+
+    /**
+     * @param executionMode the threads of the executor owned by the server which executes the provider commands,
+     *                      with virtual threads a command blocked on a full request queue does not hold a thread
+     */
+    public PriceServer(PriceProvider priceProvider, PriceRequester priceRequester,
+                       InetSocketAddress address, ExecutionMode executionMode) throws IOException {
+        this(priceProvider, priceRequester, address, null, executionMode.newExecutor("price-server-command"));
+    }
+
+    /**
+     * @param commandExecutor executes the provider commands, a cached thread pool owned by the server is used
+     *                        when it is null
+     */
+    public PriceServer(PriceProvider priceProvider, PriceRequester priceRequester,
+                       InetSocketAddress address, Executor commandExecutor) throws IOException {
+        this(priceProvider, priceRequester, address, commandExecutor,
+                commandExecutor == null ? Executors.newCachedThreadPool() : null);
+    }
+
+    private PriceServer(PriceProvider priceProvider, PriceRequester priceRequester, InetSocketAddress address,
+                        Executor commandExecutor, ExecutorService ownedExecutor) throws IOException {
+        this.priceProvider = priceProvider;
+        this.priceRequester = priceRequester;
+        this.ownedExecutor = ownedExecutor;
+        this.commandExecutor = commandExecutor == null ? ownedExecutor : commandExecutor;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.selectorThread = new Thread(this::runSelector, "price-server-selector");
+        selectorThread.setDaemon(true);
+        this.service = priceRequester instanceof LastValuePriceService ? (LastValuePriceService) priceRequester : null;
+        if (service != null) {
+            // registered before the version is read, so that no commit in between is missed
+            service.addCommitListener(commitListener);
+            latestVersion.accumulateAndGet(service.getCommitVersion(), Math::max);
+        }
+    }
+
+    public void start() {
+        running = true;
+        selectorThread.start();
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    /**
+     * Pushes a new commit version to the connections which have subscribed to the versions, e.g. when it is
+     * called by a commit listener of the service. It does not block, the frames are sent by the selector thread.
+     */
+    public void publishVersion(long version) {
+        if (latestVersion.accumulateAndGet(version, Math::max) != version || !running) return;
+
+        selectorTasks.add(() -> {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = key.attachment() instanceof Connection ? (Connection) key.attachment() : null;
+                if (connection == null || !connection.versionSubscriber) continue;
+                respond(connection, PriceProtocol.VERSION, 0, PriceProtocol.OK, Long.BYTES,
+                        body -> body.putLong(version));
+                try {
+                    service(connection);
+                } catch (IOException e) {
+                    close(connection);
+                }
+            }
+        });
+        selector.wakeup();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (service != null) {
+            service.removeCommitListener(commitListener);
+        }
+        selector.wakeup();
+        try {
+            selectorThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+        serverChannel.close();
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdownNow();
+        }
+    }
+
+    private void runSelector() {
+        logger.debug("Price server listening on {}", serverChannel.socket().getLocalSocketAddress());
+
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                logger.error("Price server selector failed", e);
+                break;
+            }
+
+            Runnable task;
+            while ((task = selectorTasks.poll()) != null) {
+                task.run();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) continue;
+
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isReadable() && connection.channel.read(connection.input) < 0) {
+                        close(connection);
+                    } else {
+                        service(connection);
+                    }
+                } catch (IOException e) {
+                    logger.debug("Closing connection after an I/O failure: {}", e.getMessage());
+                    close(connection);
+                }
+            }
+        }
+
+        logger.debug("Price server stopped");
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) return;
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            new Connection(channel);
+        } catch (IOException e) {
+            logger.error("Cannot accept connection", e);
+        }
+    }
+
+    private void close(Connection connection) {
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            logger.debug("Cannot close connection: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Handles the received frames, writes the pending responses and updates the interest of the connection.
+     * Runs on the selector thread only.
+     */
+    private void service(Connection connection) throws IOException {
+        if (!connection.key.isValid()) return;
+
+        if (!processInput(connection)) {
+            close(connection);
+            return;
+        }
+        flush(connection);
+
+        int interestOps = connection.isBusy() ? 0 : SelectionKey.OP_READ;
+        if (connection.pendingResponseBytes > 0) {
+            interestOps |= SelectionKey.OP_WRITE;
+        }
+        connection.key.interestOps(interestOps);
+    }
+
+    /**
+     * Requests the selector thread to service the connection, used by the worker threads.
+     */
+    private void scheduleService(Connection connection) {
+        if (connection.serviceScheduled.compareAndSet(false, true)) {
+            selectorTasks.add(() -> {
+                connection.serviceScheduled.set(false);
+                try {
+                    service(connection);
+                } catch (IOException e) {
+                    close(connection);
+                }
+            });
+            selector.wakeup();
+        }
+    }
+
+    private void flush(Connection connection) throws IOException {
+        connection.outputLock.lock();
+        try {
+            ByteBuffer output = connection.output.buffer();
+            output.flip();
+            connection.channel.write(output);
+            output.compact();
+            connection.pendingResponseBytes = output.position();
+        } finally {
+            connection.outputLock.unlock();
+        }
+    }
+
+    /**
+     * @return false if the connection sent a frame which violates the protocol
+     */
+    private boolean processInput(Connection connection) {
+        ByteBuffer input = connection.input;
+        input.flip();
+        int required = 0;
+
+        while (!connection.isBusy() && input.remaining() >= PriceProtocol.LENGTH_SIZE) {
+            int length = input.getInt(input.position());
+            if (length < PriceProtocol.REQUEST_HEADER_SIZE || length > PriceProtocol.MAX_FRAME_SIZE) {
+                logger.warn("Received a frame of invalid length {}", length);
+                return false;
+            }
+            if (input.remaining() < PriceProtocol.LENGTH_SIZE + length) {
+                required = PriceProtocol.LENGTH_SIZE + length;
+                break;
+            }
+
+            int frameEnd = input.position() + PriceProtocol.LENGTH_SIZE + length;
+            ByteBuffer frame = input.duplicate();
+            frame.position(input.position() + PriceProtocol.LENGTH_SIZE);
+            frame.limit(frameEnd);
+            input.position(frameEnd);
+            handleFrame(connection, frame);
+        }
+
+        input.compact();
+        if (required > input.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(required);
+            input.flip();
+            grown.put(input);
+            connection.input = grown;
+        }
+        return true;
+    }
+
+    private void handleFrame(Connection connection, ByteBuffer frame) {
+        byte opcode = frame.get();
+        int requestId = frame.getInt();
+
+        try {
+            switch (opcode) {
+                case PriceProtocol.GET_LAST_PRICE: {
+                    String instrumentId = PriceRecordCodec.getString(frame);
+                    LocalDateTime asOf = PriceProtocol.getOptionalDateTime(frame);
+                    respondRecord(connection, opcode, requestId, lookup(instrumentId, asOf));
+                    break;
+                }
+                case PriceProtocol.GET_LAST_PRICES: {
+                    LocalDateTime asOf = PriceProtocol.getOptionalDateTime(frame);
+                    PriceRecord[] priceRecords = new PriceRecord[PriceRecordCodec.getCount(frame,
+                            PriceRecordCodec.MIN_STRING_SIZE)];
+                    for (int i = 0; i < priceRecords.length; i++) {
+                        priceRecords[i] = lookup(PriceRecordCodec.getString(frame), asOf);
+                    }
+                    respondRecords(connection, opcode, requestId, priceRecords);
+                    break;
+                }
+                case PriceProtocol.SUBSCRIBE:
+                    connection.versionSubscriber = true;
+                    respond(connection, opcode, requestId, PriceProtocol.OK, Long.BYTES,
+                            body -> body.putLong(latestVersion.get()));
+                    break;
+                case PriceProtocol.START:
+                    submitCommand(connection, () -> {
+                        String batchRunId = priceProvider.start();
+                        if (batchRunId == null) {
+                            respond(connection, opcode, requestId, PriceProtocol.FAILED, 0, null);
+                        } else {
+                            respond(connection, opcode, requestId, PriceProtocol.OK,
+                                    PriceRecordCodec.encodedSize(batchRunId),
+                                    body -> PriceRecordCodec.putString(body, batchRunId));
+                        }
+                    });
+                    break;
+                case PriceProtocol.UPLOAD: {
+                    String batchRunId = PriceRecordCodec.getString(frame);
+                    PriceRecord[] priceRecords = new PriceRecord[PriceRecordCodec.getCount(frame,
+                            PriceRecordCodec.MIN_ENCODED_SIZE)];
+                    for (int i = 0; i < priceRecords.length; i++) {
+                        priceRecords[i] = PriceRecordCodec.decode(frame);
+                    }
+                    submitCommand(connection, () -> respondStatus(connection, opcode, requestId,
+                            priceProvider.upload(batchRunId, priceRecords)));
+                    break;
+                }
+                case PriceProtocol.CHECKPOINT: {
+                    String batchRunId = PriceRecordCodec.getString(frame);
+                    submitCommand(connection, () -> respondStatus(connection, opcode, requestId,
+                            priceProvider.checkpoint(batchRunId)));
+                    break;
+                }
+                case PriceProtocol.COMPLETE: {
+                    String batchRunId = PriceRecordCodec.getString(frame);
+                    submitCommand(connection, () -> respondStatus(connection, opcode, requestId,
+                            priceProvider.complete(batchRunId)));
+                    break;
+                }
+                case PriceProtocol.CANCEL: {
+                    String batchRunId = PriceRecordCodec.getString(frame);
+                    submitCommand(connection, () -> respondStatus(connection, opcode, requestId,
+                            priceProvider.cancel(batchRunId)));
+                    break;
+                }
+                default:
+                    logger.warn("Received unknown opcode {}", opcode);
+                    respond(connection, opcode, requestId, PriceProtocol.BAD_REQUEST, 0, null);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            logger.warn("Received a malformed request with opcode {}", opcode);
+            respond(connection, opcode, requestId, PriceProtocol.BAD_REQUEST, 0, null);
+        }
+    }
+
+    private PriceRecord lookup(String instrumentId, LocalDateTime asOf) {
+        return asOf == null ? priceRequester.getLastPrice(instrumentId) : priceRequester.getLastPrice(instrumentId, asOf);
+    }
+
+    private void submitCommand(Connection connection, Runnable command) {
+        connection.pendingCommands.incrementAndGet();
+        connection.commands.execute(() -> {
+            try {
+                command.run();
+            } catch (RuntimeException e) {
+                logger.error("Provider command failed", e);
+            } finally {
+                connection.pendingCommands.decrementAndGet();
+                scheduleService(connection);
+            }
+        });
+    }
+
+    private void respondStatus(Connection connection, byte opcode, int requestId, boolean succeeded) {
+        respond(connection, opcode, requestId, succeeded ? PriceProtocol.OK : PriceProtocol.FAILED, 0, null);
+    }
+
+    private void respondRecord(Connection connection, byte opcode, int requestId, PriceRecord priceRecord) {
+        if (priceRecord == null) {
+            respond(connection, opcode, requestId, PriceProtocol.NOT_FOUND, 0, null);
+        } else {
+            respond(connection, opcode, requestId, PriceProtocol.OK, PriceRecordCodec.encodedSize(priceRecord),
+                    body -> PriceRecordCodec.encode(priceRecord, body));
+        }
+    }
+
+    private void respondRecords(Connection connection, byte opcode, int requestId, PriceRecord[] priceRecords) {
+        int bodySize = Integer.BYTES + priceRecords.length;
+        for (PriceRecord priceRecord : priceRecords) {
+            if (priceRecord != null) {
+                bodySize += PriceRecordCodec.encodedSize(priceRecord);
+            }
+        }
+        respond(connection, opcode, requestId, PriceProtocol.OK, bodySize, body -> {
+            body.putInt(priceRecords.length);
+            for (PriceRecord priceRecord : priceRecords) {
+                body.put((byte) (priceRecord == null ? 0 : 1));
+                if (priceRecord != null) {
+                    PriceRecordCodec.encode(priceRecord, body);
+                }
+            }
+        });
+    }
+
+    private void respond(Connection connection, byte opcode, int requestId, byte status,
+                         int bodySize, Consumer<ByteBuffer> bodyWriter) {
+        connection.outputLock.lock();
+        try {
+            int start = connection.output.beginFrame(PriceProtocol.RESPONSE_HEADER_SIZE, bodySize);
+            ByteBuffer output = connection.output.buffer();
+            output.put(opcode).putInt(requestId).put(status);
+            if (bodyWriter != null) {
+                bodyWriter.accept(output);
+            }
+            connection.output.endFrame(start);
+            connection.pendingResponseBytes = output.position();
+        } finally {
+            connection.outputLock.unlock();
+        }
+    }
+}
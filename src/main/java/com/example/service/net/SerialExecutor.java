@@ -0,0 +1,49 @@
+package com.example.service.net;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the submitted tasks one at a time and in submission order on a shared delegate executor.
+ * [DESIGN DECISION]: The provider commands of a connection must be executed in the order they are received,
+ * since an upload has to be queued before the completion of its batch run, but they must not block the selector
+ * thread. A serial executor per connection gives that ordering without dedicating a thread to each connection.
+ */
+final class SerialExecutor implements Executor {
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Executor delegate;
+
+    SerialExecutor(Executor delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            delegate.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        } finally {
+            scheduled.set(false);
+            // a task may have been added after the last poll but before the flag is cleared
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
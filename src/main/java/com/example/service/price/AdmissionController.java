@@ -0,0 +1,311 @@
+package com.example.service.price;
+
+import com.example.service.batch.ChunkReleaseListener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admits the uploaded chunks by their estimated size in memory, so that the records in flight, which are queued or
+ * staged by a consumer, stay within a global limit and a limit per batch run. An upload which does not fit waits
+ * until the consumers commit or discard enough chunks, up to a maximum wait after which it is rejected.
+ * [DESIGN DECISION]: The queues are bounded by the number of requests, which allows a queue full of large chunks
+ * to exhaust the direct memory and throttles a queue full of tiny chunks for no reason. The bytes are released when
+ * the consumer reports the chunks as committed or discarded, not when they are dequeued, since a chunk is staged
+ * until its batch run is committed.
+ * [DESIGN DECISION]: While the uploads of other batch runs are waiting, a batch run is not admitted beyond an equal
+ * share of the global limit, so that the released bytes go to the waiting batch runs instead of a fast producer.
+ * [DESIGN DECISION]: A chunk which is larger than a limit is admitted when nothing else is in flight for the limit,
+ * so that it does not wait forever. A batch run which stages more than its limit before it is completed must
+ * checkpoint, since its staged chunks are not released otherwise.
+ */
+public class AdmissionController implements ChunkReleaseListener {
+    private final static Logger logger = LogManager.getLogger(AdmissionController.class);
+    // [ASSUMPTION]: The heap bytes of a record besides its payload: the record, its instrument id and its date time
+    static final int RECORD_OVERHEAD_BYTES = 96;
+
+    /**
+     * Immutable settings of the admission, the defaults never delay an upload.
+     */
+    public static class Settings {
+        public final long maxInFlightBytes;
+        public final long maxInFlightBytesPerBatchRun;
+        public final Duration maxWait;
+
+        public Settings(long maxInFlightBytes, long maxInFlightBytesPerBatchRun, Duration maxWait) {
+            this.maxInFlightBytes = maxInFlightBytes;
+            this.maxInFlightBytesPerBatchRun = maxInFlightBytesPerBatchRun;
+            this.maxWait = maxWait;
+        }
+
+        public static Settings defaults() {
+            return new Settings(Long.MAX_VALUE, Long.MAX_VALUE, Duration.ofSeconds(30));
+        }
+
+        public Settings withMaxInFlightBytes(long maxInFlightBytes) {
+            return new Settings(maxInFlightBytes, maxInFlightBytesPerBatchRun, maxWait);
+        }
+
+        public Settings withMaxInFlightBytesPerBatchRun(long maxInFlightBytesPerBatchRun) {
+            return new Settings(maxInFlightBytes, maxInFlightBytesPerBatchRun, maxWait);
+        }
+
+        public Settings withMaxWait(Duration maxWait) {
+            return new Settings(maxInFlightBytes, maxInFlightBytesPerBatchRun, maxWait);
+        }
+    }
+
+    /**
+     * The chunks of a batch run in flight. Guarded by the lock of the controller.
+     */
+    private static final class Usage {
+        private long inFlightBytes;
+        // the bytes of the admitted chunks in upload order
+        private long[] chunkBytes = new long[16];
+        private int chunks;
+        private int releasedChunks;
+        private int waitingUploads;
+        // the batch run is committed or discarded, so no more chunks are admitted for it
+        private boolean settled;
+
+        private void add(long bytes) {
+            if (chunks == chunkBytes.length) {
+                chunkBytes = Arrays.copyOf(chunkBytes, chunks * 2);
+            }
+            chunkBytes[chunks++] = bytes;
+            inFlightBytes += bytes;
+        }
+
+        /**
+         * @return the bytes of the chunks released by this call
+         */
+        private long release(int releasedChunks) {
+            long bytes = 0;
+            for (int end = Math.min(releasedChunks, chunks); this.releasedChunks < end; this.releasedChunks++) {
+                bytes += chunkBytes[this.releasedChunks];
+            }
+            inFlightBytes -= bytes;
+            return bytes;
+        }
+
+        /**
+         * Takes back the most recent admitted chunk of the given size which is not released yet.
+         */
+        private boolean remove(long bytes) {
+            for (int i = chunks - 1; i >= releasedChunks; i--) {
+                if (chunkBytes[i] == bytes) {
+                    System.arraycopy(chunkBytes, i + 1, chunkBytes, i, chunks - i - 1);
+                    chunks--;
+                    inFlightBytes -= bytes;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final Settings settings;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    // the batch runs with chunks in flight or waiting uploads, until they are settled
+    private final Map<String, Usage> usages = new HashMap<>();
+    private volatile long inFlightBytes;
+    private volatile int waitingUploads;
+    private long delayedUploads;
+    private long rejectedUploads;
+    private long waitedNanos;
+
+    public AdmissionController(Settings settings) {
+        this.settings = settings;
+    }
+
+    public Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return the estimated bytes of the given records in memory
+     */
+    static long estimatedBytes(PriceRecord[] priceRecords) {
+        long bytes = 0;
+        for (PriceRecord priceRecord : priceRecords) {
+            bytes += priceRecord.getPayloadSize() + RECORD_OVERHEAD_BYTES;
+        }
+        return bytes;
+    }
+
+    /**
+     * Admits the next chunk of a batch run, waiting while it does not fit into the limits.
+     * @return false if the chunk did not fit within the maximum wait or if the batch run was settled meanwhile
+     */
+    boolean acquire(String batchRunId, long bytes) throws InterruptedException {
+        lock.lockInterruptibly();
+        Usage usage = null;
+        try {
+            usage = usages.computeIfAbsent(batchRunId, id -> new Usage());
+            if (!canAdmit(usage, bytes)) {
+                long start = System.nanoTime();
+                long remainingNanos = settings.maxWait.toNanos();
+                delayedUploads++;
+                usage.waitingUploads++;
+                waitingUploads++;
+                try {
+                    while (!usage.settled && !canAdmit(usage, bytes)) {
+                        if (remainingNanos <= 0) {
+                            rejectedUploads++;
+                            logger.warn("Rejected a chunk of {} bytes of batch run {} after {} ms, {} bytes in "
+                                            + "flight for the batch run and {} bytes in total", bytes, batchRunId,
+                                    settings.maxWait.toMillis(), usage.inFlightBytes, inFlightBytes);
+                            return false;
+                        }
+                        remainingNanos = released.awaitNanos(remainingNanos);
+                    }
+                } finally {
+                    usage.waitingUploads--;
+                    waitingUploads--;
+                    waitedNanos += System.nanoTime() - start;
+                    // the fair share of the other waiting uploads may have grown
+                    released.signalAll();
+                }
+            }
+            if (usage.settled) {
+                logger.warn("Rejected a chunk of the settled batch run {}", batchRunId);
+                return false;
+            }
+            usage.add(bytes);
+            inFlightBytes += bytes;
+            return true;
+        } finally {
+            if (usage != null) {
+                removeIfUnused(batchRunId, usage);
+            }
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets a batch run which is settled or has nothing in flight, once no upload of it is waiting anymore.
+     * [DESIGN DECISION]: A batch run which has released chunks is kept until it is settled, since the consumer
+     * counts the released chunks from the first chunk of the batch run.
+     */
+    private void removeIfUnused(String batchRunId, Usage usage) {
+        if (usage.waitingUploads == 0 && (usage.settled || usage.chunks == 0)) {
+            usages.remove(batchRunId, usage);
+        }
+    }
+
+    private boolean canAdmit(Usage usage, long bytes) {
+        if (usage.inFlightBytes > 0 && usage.inFlightBytes + bytes > settings.maxInFlightBytesPerBatchRun) {
+            return false;
+        }
+        if (inFlightBytes > 0 && inFlightBytes + bytes > settings.maxInFlightBytes) return false;
+        boolean othersWaiting = waitingUploads > usage.waitingUploads;
+        return !othersWaiting || usage.inFlightBytes == 0
+                || usage.inFlightBytes + bytes <= settings.maxInFlightBytes / usages.size();
+    }
+
+    /**
+     * Takes back an admitted chunk of a batch run, which could not be queued, e.g. since the batch run was completed
+     * or cancelled while the upload was waiting.
+     */
+    void abort(String batchRunId, long bytes) {
+        lock.lock();
+        try {
+            Usage usage = usages.get(batchRunId);
+            if (usage == null || usage.settled || !usage.remove(bytes)) return;
+            inFlightBytes -= bytes;
+            removeIfUnused(batchRunId, usage);
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void onRelease(String batchRunId, int releasedChunks, boolean settled) {
+        lock.lock();
+        try {
+            Usage usage = usages.get(batchRunId);
+            if (usage == null) return;
+            long bytes = settled ? usage.inFlightBytes : usage.release(releasedChunks);
+            inFlightBytes -= bytes;
+            if (settled) {
+                usage.inFlightBytes = 0;
+                usage.settled = true;
+                removeIfUnused(batchRunId, usage);
+                // the waiting uploads of the batch run are rejected
+                released.signalAll();
+            } else if (bytes > 0) {
+                released.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the estimated bytes of the chunks which are queued or staged, and not committed or discarded yet
+     */
+    public long getInFlightBytes() {
+        return inFlightBytes;
+    }
+
+    public long getInFlightBytes(String batchRunId) {
+        lock.lock();
+        try {
+            Usage usage = usages.get(batchRunId);
+            return usage == null ? 0 : usage.inFlightBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of uploads which are waiting to be admitted now
+     */
+    public int getWaitingUploads() {
+        return waitingUploads;
+    }
+
+    /**
+     * @return the number of uploads which had to wait to be admitted, including the rejected ones
+     */
+    public long getDelayedUploads() {
+        lock.lock();
+        try {
+            return delayedUploads;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of uploads which did not fit within the maximum wait
+     */
+    public long getRejectedUploads() {
+        lock.lock();
+        try {
+            return rejectedUploads;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the total time that the uploads waited to be admitted
+     */
+    public Duration getWaitTime() {
+        lock.lock();
+        try {
+            return Duration.ofNanos(waitedNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
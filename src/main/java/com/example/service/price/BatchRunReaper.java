@@ -0,0 +1,141 @@
+package com.example.service.price;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cancels the batch runs abandoned by their producers, so that the records staged for them are discarded.
+ * A batch run is expired when no upload is made for it for longer than the idle timeout, or when it is older
+ * than the maximum age. When the payload bytes staged for all active batch runs exceed the staging budget,
+ * the batch runs with the lowest priority are cancelled until the staged bytes fit into the budget again.
+ * [ASSUMPTION]: Producers cannot prioritize their batch runs, so the batch run which is idle for the longest
+ * time is considered to have the lowest priority.
+ * [DESIGN DECISION]: The reaper cancels batch runs through the provider API, so the CANCEL request takes the
+ * prioritized control lane and the consumer thread stays the only owner of the staged records.
+ */
+public class BatchRunReaper implements Runnable {
+    private final static Logger logger = LogManager.getLogger(BatchRunReaper.class);
+    private final PriceProviderImpl priceProvider;
+    private final Settings settings;
+    private final AtomicLong expiredRuns = new AtomicLong();
+    private final AtomicLong evictedRuns = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+
+    /**
+     * Immutable settings of the reaper, the defaults never cancel a batch run which is still in use.
+     */
+    public static class Settings {
+        public final Duration idleTimeout;
+        public final Duration maxAge;
+        public final long stagedBytesBudget;
+        public final Duration period;
+
+        public Settings(Duration idleTimeout, Duration maxAge, long stagedBytesBudget, Duration period) {
+            this.idleTimeout = idleTimeout;
+            this.maxAge = maxAge;
+            this.stagedBytesBudget = stagedBytesBudget;
+            this.period = period;
+        }
+
+        public static Settings defaults() {
+            return new Settings(Duration.ofMinutes(10), Duration.ofHours(2), Long.MAX_VALUE, Duration.ofSeconds(1));
+        }
+
+        public Settings withIdleTimeout(Duration idleTimeout) {
+            return new Settings(idleTimeout, maxAge, stagedBytesBudget, period);
+        }
+
+        public Settings withMaxAge(Duration maxAge) {
+            return new Settings(idleTimeout, maxAge, stagedBytesBudget, period);
+        }
+
+        public Settings withStagedBytesBudget(long stagedBytesBudget) {
+            return new Settings(idleTimeout, maxAge, stagedBytesBudget, period);
+        }
+
+        public Settings withPeriod(Duration period) {
+            return new Settings(idleTimeout, maxAge, stagedBytesBudget, period);
+        }
+    }
+
+    public BatchRunReaper(PriceProviderImpl priceProvider, Settings settings) {
+        this.priceProvider = priceProvider;
+        this.settings = settings;
+    }
+
+    public Settings getSettings() {
+        return settings;
+    }
+
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        long idleTimeout = settings.idleTimeout.toNanos();
+        long maxAge = settings.maxAge.toNanos();
+        List<Map.Entry<String, BatchRunState>> alive = new ArrayList<>();
+
+        for (Map.Entry<String, BatchRunState> entry : priceProvider.getActiveBatchRuns().entrySet()) {
+            BatchRunState state = entry.getValue();
+            // a batch run whose upload waits to be admitted is held back by the service, not abandoned
+            boolean idle = !state.isWaiting() && now - state.getLastActivityNanos() > idleTimeout;
+            if (idle || now - state.getStartedNanos() > maxAge) {
+                if (reap(entry.getKey(), state)) {
+                    expiredRuns.incrementAndGet();
+                    logger.warn("Cancelled the abandoned batch run {}", entry.getKey());
+                }
+            } else {
+                alive.add(entry);
+            }
+        }
+
+        if (priceProvider.getStagedBytes() <= settings.stagedBytesBudget) return;
+
+        alive.sort(Comparator.comparingLong(entry -> entry.getValue().getLastActivityNanos()));
+        for (Map.Entry<String, BatchRunState> entry : alive) {
+            if (priceProvider.getStagedBytes() <= settings.stagedBytesBudget) break;
+            if (reap(entry.getKey(), entry.getValue())) {
+                evictedRuns.incrementAndGet();
+                logger.warn("Cancelled the batch run {} to keep staged bytes within the budget of {} bytes",
+                        entry.getKey(), settings.stagedBytesBudget);
+            }
+        }
+    }
+
+    private boolean reap(String batchRunId, BatchRunState state) {
+        // the staged bytes are no longer counted once the batch run is closed by the cancel
+        long stagedBytes = state.getStagedBytes();
+        if (!priceProvider.cancel(batchRunId)) return false;
+
+        reclaimedBytes.addAndGet(stagedBytes);
+        return true;
+    }
+
+    /**
+     * @return number of batch runs cancelled because they were idle or too old
+     */
+    public long getExpiredRuns() {
+        return expiredRuns.get();
+    }
+
+    /**
+     * @return number of batch runs cancelled because the staged bytes exceeded the budget
+     */
+    public long getEvictedRuns() {
+        return evictedRuns.get();
+    }
+
+    public long getReclaimedRuns() {
+        return expiredRuns.get() + evictedRuns.get();
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.service.price;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps track of an active batch run on the producer side: the number of uploaded chunks, the payload bytes
+ * uploaded since the last checkpoint and the timestamps that the {@link BatchRunReaper} needs to detect abandoned
+ * batch runs.
+ * [DESIGN DECISION]: The batch run is closed by the first COMPLETE or CANCEL, which may race with the uploads of the
+ * producer and with the reaper. The closed flag, the number of reserved chunks and the number of checkpoints being
+ * queued are kept in a single atomic word, so that the close is a single compare-and-set: an upload or a checkpoint
+ * either happens before it and is announced by the terminal command, or fails.
+ * [DESIGN DECISION]: The staged bytes are kept per chunk, since a checkpoint only publishes the chunks reserved
+ * before it, while the uploads which reserve their chunks meanwhile stay staged.
+ */
+class BatchRunState {
+    private static final long CLOSED = 1L << 62;
+    private static final long CHECKPOINT = 1L << 32;
+    private static final long CHUNKS = CHECKPOINT - 1;
+
+    private final long startedNanos;
+    private volatile long lastActivityNanos;
+    // closed flag | checkpoints being queued | reserved chunks
+    private final AtomicLong word = new AtomicLong();
+    private final AtomicInteger waitingUploads = new AtomicInteger();
+    // guards the staged bytes, and the close waits on it for the checkpoints being queued
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition checkpointQueued = lock.newCondition();
+    // the payload bytes of the staged chunks by chunk number
+    private final TreeMap<Integer, Long> stagedChunkBytes = new TreeMap<>();
+    // the chunks below are published by a checkpoint, their bytes are not staged anymore
+    private int publishedChunks;
+    // the staged bytes are no longer counted once the batch run is closed
+    private boolean stagingClosed;
+    private volatile long stagedBytes;
+
+    BatchRunState(long nowNanos) {
+        this.startedNanos = nowNanos;
+        this.lastActivityNanos = nowNanos;
+    }
+
+    void recordActivity(long nowNanos) {
+        lastActivityNanos = nowNanos;
+    }
+
+    /**
+     * Registers an upload which waits to be admitted, the batch run is not idle meanwhile.
+     */
+    void beginWait() {
+        waitingUploads.incrementAndGet();
+    }
+
+    void endWait(long nowNanos) {
+        lastActivityNanos = nowNanos;
+        waitingUploads.decrementAndGet();
+    }
+
+    boolean isWaiting() {
+        return waitingUploads.get() > 0;
+    }
+
+    private static boolean hasCheckpoints(long word) {
+        return (word & ~CLOSED) >= CHECKPOINT;
+    }
+
+    /**
+     * Reserves the number of the next chunk, before the chunk is queued.
+     * @return the number of the reserved chunk, or -1 if the batch run is closed
+     */
+    int reserveChunk(long nowNanos) {
+        long current;
+        do {
+            current = word.get();
+            if ((current & CLOSED) != 0) return -1;
+        } while (!word.compareAndSet(current, current + 1));
+        lastActivityNanos = nowNanos;
+        return (int) (current & CHUNKS);
+    }
+
+    /**
+     * Adds the payload bytes of a reserved chunk.
+     * @return false if the chunk was published by a checkpoint or the batch run was closed meanwhile, so the bytes
+     * are not counted
+     */
+    boolean addStagedBytes(int chunk, long bytes) {
+        lock.lock();
+        try {
+            if (stagingClosed || chunk < publishedChunks) return false;
+            stagedChunkBytes.put(chunk, bytes);
+            stagedBytes += bytes;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Registers a checkpoint being queued, which holds off the close until {@link #endCheckpoint(int)}.
+     * @return the number of chunks which the checkpoint publishes, or -1 if the batch run is closed
+     */
+    int beginCheckpoint(long nowNanos) {
+        long current;
+        do {
+            current = word.get();
+            if ((current & CLOSED) != 0) return -1;
+        } while (!word.compareAndSet(current, current + CHECKPOINT));
+        lastActivityNanos = nowNanos;
+        return (int) (current & CHUNKS);
+    }
+
+    /**
+     * @param chunkCount the number of chunks returned by {@link #beginCheckpoint(long)}
+     * @return the payload bytes of the chunks which are published by this checkpoint and were staged until now
+     */
+    long endCheckpoint(int chunkCount) {
+        lock.lock();
+        try {
+            long bytes = 0;
+            if (!stagingClosed) {
+                Map<Integer, Long> published = stagedChunkBytes.headMap(chunkCount);
+                for (long chunkBytes : published.values()) {
+                    bytes += chunkBytes;
+                }
+                published.clear();
+                publishedChunks = Math.max(publishedChunks, chunkCount);
+                stagedBytes -= bytes;
+            }
+            word.addAndGet(-CHECKPOINT);
+            checkpointQueued.signalAll();
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the batch run for a COMPLETE or CANCEL, after the checkpoints being queued.
+     * [DESIGN DECISION]: A checkpoint may block while the queue is full, so the close waits for it on a condition
+     * instead of spinning, which would burn a core or the carrier of a virtual thread meanwhile.
+     * @return the number of chunks reserved before the close, or -1 if the batch run is already closed
+     */
+    int close() {
+        while (true) {
+            long current = word.get();
+            if ((current & CLOSED) != 0) return -1;
+            if (hasCheckpoints(current)) {
+                // a checkpoint is being queued, it must reach the queue before the terminal command
+                lock.lock();
+                try {
+                    while (hasCheckpoints(word.get())) {
+                        checkpointQueued.awaitUninterruptibly();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } else if (word.compareAndSet(current, current | CLOSED)) {
+                return (int) (current & CHUNKS);
+            }
+        }
+    }
+
+    /**
+     * @return the staged bytes of the closed batch run, which are no longer counted
+     */
+    long drainStagedBytes() {
+        lock.lock();
+        try {
+            long bytes = stagedBytes;
+            stagingClosed = true;
+            stagedChunkBytes.clear();
+            stagedBytes = 0;
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isClosed() {
+        return (word.get() & CLOSED) != 0;
+    }
+
+    int getUploadedChunks() {
+        return (int) (word.get() & CHUNKS);
+    }
+
+    long getStagedBytes() {
+        return stagedBytes;
+    }
+
+    long getStartedNanos() {
+        return startedNanos;
+    }
+
+    long getLastActivityNanos() {
+        return lastActivityNanos;
+    }
+}
@@ -0,0 +1,224 @@
+package com.example.service.price;
+
+import com.example.service.store.CommitListener;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A client-side near-cache in front of another {@link PriceRequester}, e.g. a remote one. The cached results are
+ * tagged with the commit version of the store that they were read at. When a new version is published through
+ * {@link #publishVersion(long)}, all the cached results are invalidated at once. Between commits, repeated
+ * lookups are answered from the cache without calling the delegate.
+ * [DESIGN DECISION]: The version is read before the delegate is called and the result is tagged with it, so a
+ * result which may predate a concurrently published version is never served as current. A cached result is only
+ * served while its tag equals the latest published version.
+ * [DESIGN DECISION]: Hits only read a ConcurrentHashMap and update the access statistics of the entry without
+ * synchronization, so the LRU and LFU orders are approximate. Eviction runs on the miss path when the cache
+ * overflows and removes a tenth of the entries at once, which amortizes its cost.
+ * [DESIGN DECISION]: A cache in front of a {@link LastValuePriceService} registers itself as a commit listener of
+ * the service, so it is invalidated by every commit without further wiring, until it is closed. In front of a
+ * remote requester, the versions must be published by the caller, e.g.
+ * {@code client.subscribeVersions(cache::publishVersion)}.
+ * [ASSUMPTION]: Prices are not published with an asOf in the future, so the latest price of an instrument
+ * only changes with a new commit.
+ */
+public class CachingPriceRequester implements PriceRequester, AutoCloseable {
+    private final PriceRequester delegate;
+    private final int maximumSize;
+    private final EvictionPolicy evictionPolicy;
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final AtomicLong version = new AtomicLong();
+    // the service which calls the commit listener, null in front of any other requester
+    private final LastValuePriceService service;
+    private final CommitListener<PriceRecord> commitListener =
+            (committedVersion, priceRecords) -> publishVersion(committedVersion);
+
+    public enum EvictionPolicy {
+        LRU, LFU
+    }
+
+    private static final class Key {
+        private final String instrumentId;
+        // null for the latest price
+        private final LocalDateTime asOf;
+
+        private Key(String instrumentId, LocalDateTime asOf) {
+            this.instrumentId = instrumentId;
+            this.asOf = asOf;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return instrumentId.equals(key.instrumentId) && Objects.equals(asOf, key.asOf);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * instrumentId.hashCode() + Objects.hashCode(asOf);
+        }
+    }
+
+    private static final class Entry {
+        // null when the delegate has no price for the key, misses are cached as well
+        private final PriceRecord priceRecord;
+        private final long version;
+        private volatile long lastAccessNanos;
+        private volatile int accessCount;
+
+        private Entry(PriceRecord priceRecord, long version) {
+            this.priceRecord = priceRecord;
+            this.version = version;
+            this.lastAccessNanos = System.nanoTime();
+        }
+
+        private void recordAccess() {
+            lastAccessNanos = System.nanoTime();
+            accessCount++; // racy on purpose, the count is an eviction hint only
+        }
+    }
+
+    private static final class Candidate {
+        private final Key key;
+        private final Entry entry;
+        private final boolean stale;
+        // the last access time for LRU, the access count for LFU
+        private final long rank;
+
+        private Candidate(Key key, Entry entry, boolean stale, long rank) {
+            this.key = key;
+            this.entry = entry;
+            this.stale = stale;
+            this.rank = rank;
+        }
+    }
+
+    public CachingPriceRequester(PriceRequester delegate, int maximumSize, EvictionPolicy evictionPolicy) {
+        this.delegate = delegate;
+        this.maximumSize = maximumSize;
+        this.evictionPolicy = evictionPolicy;
+        this.service = delegate instanceof LastValuePriceService ? (LastValuePriceService) delegate : null;
+        if (service != null) {
+            // registered before the version is read, so that no commit in between is missed
+            service.addCommitListener(commitListener);
+            publishVersion(service.getCommitVersion());
+        }
+    }
+
+    /**
+     * Unregisters the cache from the service that it is in front of, the cache is no longer invalidated then.
+     */
+    @Override
+    public void close() {
+        if (service != null) {
+            service.removeCommitListener(commitListener);
+        }
+    }
+
+    /**
+     * Publishes a new commit version of the underlying store and invalidates everything cached before it.
+     * Versions older than the current one are ignored. This method does not block, so it can be called by a
+     * commit listener: the stale entries are replaced by the next lookup of their key or evicted first.
+     */
+    public void publishVersion(long version) {
+        this.version.accumulateAndGet(version, Math::max);
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    @Override
+    public PriceRecord getLastPrice(String instrumentId) {
+        if (instrumentId == null) return null;
+        return lookup(new Key(instrumentId, null));
+    }
+
+    @Override
+    public PriceRecord getLastPrice(String instrumentId, LocalDateTime asOf) {
+        if (instrumentId == null || asOf == null) return null;
+        return lookup(new Key(instrumentId, asOf));
+    }
+
+    private PriceRecord lookup(Key key) {
+        long currentVersion = version.get();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.version == currentVersion) {
+            entry.recordAccess();
+            hits.increment();
+            return entry.priceRecord;
+        }
+
+        misses.increment();
+        PriceRecord priceRecord = key.asOf == null
+                ? delegate.getLastPrice(key.instrumentId)
+                : delegate.getLastPrice(key.instrumentId, key.asOf);
+        // keep the entry of a concurrent lookup if it has seen a newer version
+        entries.merge(key, new Entry(priceRecord, currentVersion),
+                (cached, loaded) -> cached.version > loaded.version ? cached : loaded);
+        if (entries.size() > maximumSize) {
+            evict();
+        }
+        return priceRecord;
+    }
+
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) return;
+        try {
+            long currentVersion = version.get();
+            // the access statistics are captured first since they keep changing while the candidates are sorted
+            List<Candidate> candidates = new ArrayList<>(entries.size());
+            entries.forEach((key, entry) -> candidates.add(new Candidate(key, entry, entry.version != currentVersion,
+                    evictionPolicy == EvictionPolicy.LRU ? entry.lastAccessNanos : entry.accessCount)));
+            // stale entries are evicted first
+            candidates.sort(Comparator.comparing((Candidate candidate) -> !candidate.stale)
+                    .thenComparingLong(candidate -> candidate.rank));
+
+            int excess = candidates.size() - maximumSize * 9 / 10;
+            for (int i = 0; i < excess; i++) {
+                Candidate candidate = candidates.get(i);
+                if (entries.remove(candidate.key, candidate.entry)) {
+                    evictions.increment();
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+}
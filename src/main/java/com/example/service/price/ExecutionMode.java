@@ -0,0 +1,121 @@
+package com.example.service.price;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The kind of threads which run the internal tasks of the service, the consumers, the reaper and the fan-out of the
+ * servers, e.g. {@code LastValuePriceService.builder().executionMode(ExecutionMode.VIRTUAL_THREADS)}.
+ * [DESIGN DECISION]: The project is still compiled for Java 8, so the virtual threads of Java 21 are created
+ * reflectively instead of from a multi-release jar. The reflective calls only happen when a thread or an executor is
+ * created, never on the hot paths.
+ * [ASSUMPTION]: Nothing blocks while holding a monitor on the hot paths, the queues and the server connections use
+ * {@link java.util.concurrent.locks.ReentrantLock}s, so a blocked virtual thread unmounts from its carrier instead
+ * of pinning it.
+ */
+public enum ExecutionMode {
+    /**
+     * A cached thread pool and a platform thread for every long running task, the default.
+     */
+    PLATFORM_THREADS,
+    /**
+     * A virtual thread for every task, so that many thousands of blocked producers and readers only cost memory.
+     * Requires Java 21 or later.
+     */
+    VIRTUAL_THREADS;
+
+    // Thread.ofVirtual() and the methods of Thread.Builder, null before Java 21
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method NAME_WITH_COUNTER;
+    private static final Method UNSTARTED;
+    private static final Method FACTORY;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method[] methods = new Method[6];
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            methods[0] = Thread.class.getMethod("ofVirtual");
+            methods[1] = builderClass.getMethod("name", String.class);
+            methods[2] = builderClass.getMethod("name", String.class, long.class);
+            methods[3] = builderClass.getMethod("unstarted", Runnable.class);
+            methods[4] = builderClass.getMethod("factory");
+            methods[5] = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            methods = new Method[6];
+        }
+        OF_VIRTUAL = methods[0];
+        NAME = methods[1];
+        NAME_WITH_COUNTER = methods[2];
+        UNSTARTED = methods[3];
+        FACTORY = methods[4];
+        NEW_THREAD_PER_TASK_EXECUTOR = methods[5];
+    }
+
+    public static boolean isVirtualThreadsSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @throws UnsupportedOperationException if this mode is not supported by the running JVM
+     */
+    public void checkSupported() {
+        if (this == VIRTUAL_THREADS && !isVirtualThreadsSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later, running on "
+                    + System.getProperty("java.version"));
+        }
+    }
+
+    /**
+     * @return an executor which can run any number of tasks at the same time, the threads are named after the given
+     * name
+     */
+    public ExecutorService newExecutor(String name) {
+        if (this == PLATFORM_THREADS) return Executors.newCachedThreadPool();
+        checkSupported();
+        return (ExecutorService) invoke(NEW_THREAD_PER_TASK_EXECUTOR, null, newThreadFactory(name));
+    }
+
+    public ScheduledExecutorService newScheduledExecutor(String name) {
+        if (this == PLATFORM_THREADS) return Executors.newSingleThreadScheduledExecutor();
+        checkSupported();
+        return Executors.newSingleThreadScheduledExecutor(newThreadFactory(name));
+    }
+
+    /**
+     * @return a thread which is not started yet and does not prevent the JVM from exiting
+     */
+    public Thread newThread(String name, Runnable task) {
+        if (this == PLATFORM_THREADS) {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        }
+        checkSupported();
+        Object builder = invoke(NAME, invoke(OF_VIRTUAL, null), name);
+        return (Thread) invoke(UNSTARTED, builder, task);
+    }
+
+    private static ThreadFactory newThreadFactory(String name) {
+        Object builder = invoke(NAME_WITH_COUNTER, invoke(OF_VIRTUAL, null), name + "-", 0L);
+        return (ThreadFactory) invoke(FACTORY, builder);
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Cannot call " + method, e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException("Cannot call " + method, cause);
+        }
+    }
+}
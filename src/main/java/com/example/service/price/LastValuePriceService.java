@@ -1,38 +1,184 @@
 package com.example.service.price;
 
 import com.example.service.batch.BatchRunConsumer;
-import com.example.service.batch.BatchRunRequest;
+import com.example.service.batch.BatchRunRequestQueue;
+import com.example.service.batch.BatchRunTimeline;
+import com.example.service.batch.BatchRunTracer;
+import com.example.service.io.PriceFileFormat;
+import com.example.service.io.SnapshotExporter;
+import com.example.service.io.WarmStartLoader;
+import com.example.service.store.CommitListener;
 import com.example.service.store.PriceRecordStore;
+import com.example.service.store.RecordStore;
+import com.example.service.store.StoreSnapshot;
+import com.example.service.store.StoreStatistics;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalDouble;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class LastValuePriceService implements PriceProvider, PriceRequester {
     private final static Logger logger = LogManager.getLogger(LastValuePriceService.class);
-    private final PriceRecordStore priceRecordStore = new PriceRecordStore();
-    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final RecordStore<PriceRecord> priceRecordStore;
+    private final ExecutorService executor;
+    // [DESIGN DECISION]: An executor given to the builder is shared with others, so it is not shut down by the
+    // service. The consumer tasks are cancelled instead.
+    private final boolean ownsExecutor;
+    private final List<Future<?>> consumerTasks = new ArrayList<>();
+    private final ScheduledExecutorService scheduler;
     // [DESIGN DECISION]: This flag will prevent the service to double start and terminate without a start
     private final AtomicBoolean started = new AtomicBoolean();
     // [DESIGN DECISION]: LastValuePriceService delegates service API calls to the real implementors of the APIs.
     private final PriceRequester priceRequester;
     private final PriceProvider priceProvider;
-    private final BatchRunConsumer<PriceRecord> batchRunConsumer;
+    private final List<BatchRunConsumer<PriceRecord>> batchRunConsumers = new ArrayList<>();
+    private final BatchRunReaper batchRunReaper;
+    private final AdmissionController admissionController;
+    private final BatchRunTracer batchRunTracer;
+
+    /**
+     * Configures the engines that a service is built with. The defaults are a {@link PriceRecordStore}, a single
+     * consumer of a prioritized queue and a cached thread pool owned by the service.
+     */
+    public static class Builder {
+        private RecordStore<PriceRecord> recordStore;
+        private BatchRunRequestQueue.Type queueType = BatchRunRequestQueue.Type.PRIORITIZED;
+        private int controlLaneCapacity = 1000;
+        private int dataLaneCapacity = 1000;
+        private int numberOfConsumers = 1;
+        private ExecutorService executor;
+        private ExecutionMode executionMode = ExecutionMode.PLATFORM_THREADS;
+        private BatchRunReaper.Settings reaperSettings = BatchRunReaper.Settings.defaults();
+        private AdmissionController.Settings admissionSettings = AdmissionController.Settings.defaults();
+        private BatchRunTracer batchRunTracer = new BatchRunTracer(BatchRunTracer.DEFAULT_CAPACITY, 1);
+
+        private Builder() {
+        }
+
+        /**
+         * @param recordStore an empty store which is used by this service only
+         */
+        public Builder recordStore(RecordStore<PriceRecord> recordStore) {
+            this.recordStore = recordStore;
+            return this;
+        }
+
+        public Builder queueType(BatchRunRequestQueue.Type queueType) {
+            this.queueType = queueType;
+            return this;
+        }
+
+        /**
+         * Sets the capacities of the queue of each consumer.
+         */
+        public Builder queueCapacity(int controlLaneCapacity, int dataLaneCapacity) {
+            this.controlLaneCapacity = controlLaneCapacity;
+            this.dataLaneCapacity = dataLaneCapacity;
+            return this;
+        }
+
+        /**
+         * @param numberOfConsumers the number of threads which stage and commit the batch runs, the store must
+         *                          support concurrent commits when there are more than one
+         */
+        public Builder consumers(int numberOfConsumers) {
+            if (numberOfConsumers < 1) throw new IllegalArgumentException("At least one consumer is required");
+            this.numberOfConsumers = numberOfConsumers;
+            return this;
+        }
+
+        /**
+         * @param executor runs the consumers, it must be able to run all of them at the same time
+         */
+        public Builder executor(ExecutorService executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * @param executionMode the threads which run the consumers, unless an executor is given, and the reaper
+         * @throws UnsupportedOperationException if the mode is not supported by the running JVM
+         */
+        public Builder executionMode(ExecutionMode executionMode) {
+            executionMode.checkSupported();
+            this.executionMode = executionMode;
+            return this;
+        }
+
+        public Builder reaperSettings(BatchRunReaper.Settings reaperSettings) {
+            this.reaperSettings = reaperSettings;
+            return this;
+        }
+
+        /**
+         * @param admissionSettings the limits of the estimated bytes of the uploaded chunks which are queued or
+         *                          staged, in addition to the capacities of the queues
+         */
+        public Builder admissionSettings(AdmissionController.Settings admissionSettings) {
+            this.admissionSettings = admissionSettings;
+            return this;
+        }
+
+        public Builder batchRunTracer(BatchRunTracer batchRunTracer) {
+            this.batchRunTracer = batchRunTracer;
+            return this;
+        }
+
+        public LastValuePriceService build() {
+            return new LastValuePriceService(this);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
 
     public LastValuePriceService() {
+        this(builder());
+    }
+
+    public LastValuePriceService(BatchRunReaper.Settings reaperSettings) {
+        this(builder().reaperSettings(reaperSettings));
+    }
+
+    public LastValuePriceService(BatchRunReaper.Settings reaperSettings, BatchRunTracer batchRunTracer) {
+        this(builder().reaperSettings(reaperSettings).batchRunTracer(batchRunTracer));
+    }
+
+    private LastValuePriceService(Builder builder) {
+        priceRecordStore = builder.recordStore != null ? builder.recordStore : new PriceRecordStore();
+        ownsExecutor = builder.executor == null;
+        executor = ownsExecutor ? builder.executionMode.newExecutor("lvps-consumer") : builder.executor;
+        scheduler = builder.executionMode.newScheduledExecutor("lvps-reaper");
         // [DESIGN DECISION]: Using blocking queue to enqueue incoming requests to provide records. By this way,
-        // API calls have faster response times. The requests in the queue are consumed by a single consumer thread
-        // so that we do not need to worry about synchronization of the batch runs stored. ArrayBlockingQueue is
-        // chosen because it performs better than LinkedBlockingQueue but with a predefined capacity specified.
-        ArrayBlockingQueue<BatchRunRequest<PriceRecord>> batchRunRequests = new ArrayBlockingQueue<>(1000);
+        // API calls have faster response times. The requests in a queue are consumed by a single consumer thread
+        // so that we do not need to worry about synchronization of the batch runs stored. The queue has separate
+        // control and data lanes, so that COMPLETE and CANCEL requests are not stuck behind bulk ADD chunks.
+        List<BatchRunRequestQueue<PriceRecord>> batchRunRequests = new ArrayList<>(builder.numberOfConsumers);
+        for (int i = 0; i < builder.numberOfConsumers; i++) {
+            batchRunRequests.add(new BatchRunRequestQueue<>(builder.queueType, builder.controlLaneCapacity,
+                    builder.dataLaneCapacity));
+        }
         // [DESIGN DECISION]: The default implementation of the service instantiates the default API implementors
-        // to delegate the calls. LastValuePriceService might have another constructor that takes specific
-        // PriceProvider and PriceRequester implementations.
+        // to delegate the calls. The store engine, the queues and the consumers can be chosen with the builder.
+        this.batchRunTracer = builder.batchRunTracer;
         priceRequester = new PriceRequesterImpl(priceRecordStore);
-        priceProvider = new PriceProviderImpl(batchRunRequests);
-        batchRunConsumer = new BatchRunConsumer<>(batchRunRequests, priceRecordStore);
+        admissionController = new AdmissionController(builder.admissionSettings);
+        PriceProviderImpl priceProviderImpl = new PriceProviderImpl(batchRunRequests, batchRunTracer,
+                admissionController);
+        priceProvider = priceProviderImpl;
+        batchRunReaper = new BatchRunReaper(priceProviderImpl, builder.reaperSettings);
+        batchRunRequests.forEach(queue -> batchRunConsumers.add(
+                new BatchRunConsumer<>(queue, priceRecordStore, batchRunTracer, admissionController)));
     }
 
     public void dumpPrices() {
@@ -43,14 +189,125 @@ public class LastValuePriceService implements PriceProvider, PriceRequester {
         return priceRecordStore.size();
     }
 
+    /**
+     * @return the statistics of the price records as of the last commit, which are cheap to read at any rate
+     */
+    public StoreStatistics getStatistics() {
+        return priceRecordStore.getStatistics();
+    }
+
+    /**
+     * Reads the bars of an instrument from the rollups of the store, e.g. to build hourly or daily bars without
+     * looking up the prices one by one. The store must be created with the rollup granularity.
+     * @return the bars of the buckets from the one containing from until to (exclusive), in time order, none if to
+     * is not after the start of the bucket containing from
+     */
+    public List<PriceBar> getPriceBars(String instrumentId, Duration granularity, LocalDateTime from,
+                                       LocalDateTime to) {
+        return priceRecordStore.getBars(instrumentId, granularity, from, to);
+    }
+
+    /**
+     * Opens a read-only view of the prices pinned to the last commit, so that many lookups see the same prices
+     * even if batch runs are committed meanwhile. The snapshot must be closed.
+     */
+    public PriceSnapshot openSnapshot() {
+        return new PriceSnapshot(priceRecordStore.openSnapshot());
+    }
+
+    /**
+     * @return the version of the last commit made to the price records
+     */
+    public long getCommitVersion() {
+        return priceRecordStore.getVersion();
+    }
+
+    /**
+     * @return the version of the commit which made the given batch run visible, or -1 if it is not committed yet
+     */
+    public long getCommitVersion(String batchRunId) {
+        if (batchRunId == null) return -1;
+        return batchRunConsumers.get(BatchRunConsumer.partitionOf(batchRunId, batchRunConsumers.size()))
+                .getCommitVersion(batchRunId);
+    }
+
+    /**
+     * Registers a listener which receives the records of every completed batch run, e.g. to replicate them.
+     */
+    public void addCommitListener(CommitListener<PriceRecord> listener) {
+        priceRecordStore.addCommitListener(listener);
+    }
+
+    /**
+     * Unregisters a listener, which is no longer called once the commit in progress, if any, is done.
+     */
+    public void removeCommitListener(CommitListener<PriceRecord> listener) {
+        priceRecordStore.removeCommitListener(listener);
+    }
+
+    /**
+     * Loads a price file or a directory of price files, e.g. a previous export, directly into the store with a
+     * single commit, bypassing the batch runs. It is meant to seed a fresh service before it starts serving.
+     * @return the number of loaded records
+     */
+    public long warmStart(Path path) throws IOException {
+        return new WarmStartLoader().load(path, priceRecordStore);
+    }
+
+    /**
+     * Exports the last price of every instrument, e.g. as the end-of-day file of the downstream systems, which can
+     * also warm start another service. The export sees the prices of the last commit only and does not block the
+     * commits while it streams.
+     * @param channel a file or a socket channel in blocking mode, which is not closed
+     * @return the number of exported records
+     */
+    public long exportLastPrices(WritableByteChannel channel, PriceFileFormat format) throws IOException {
+        return exportLastPrices(LocalDateTime.now(), channel, format);
+    }
+
+    /**
+     * Exports the latest price of every instrument as of the given date time, see
+     * {@link #exportLastPrices(WritableByteChannel, PriceFileFormat)}.
+     */
+    public long exportLastPrices(LocalDateTime asOf, WritableByteChannel channel, PriceFileFormat format)
+            throws IOException {
+        try (StoreSnapshot<PriceRecord> snapshot = priceRecordStore.openSnapshot()) {
+            return new SnapshotExporter().export(snapshot, asOf, channel, format);
+        }
+    }
+
+    /**
+     * @return the recorded lifecycle events of a recent batch run, e.g. to find out why it is slow to appear
+     */
+    public BatchRunTimeline getBatchRunTimeline(String batchRunId) {
+        return batchRunTracer.getTimeline(batchRunId);
+    }
+
+    public BatchRunReaper getBatchRunReaper() {
+        return batchRunReaper;
+    }
+
+    /**
+     * @return the admission of the uploads, which tells the bytes in flight and how often the uploads were delayed
+     */
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
     public void terminate() {
         if (started.get()) {
             logger.debug("Service shutting down");
-            executor.shutdownNow();
-            try {
-                executor.awaitTermination(1000, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            scheduler.shutdownNow();
+            batchRunConsumers.forEach(BatchRunConsumer::stop);
+            consumerTasks.forEach(task -> task.cancel(true));
+            consumerTasks.clear();
+            if (ownsExecutor) {
+                executor.shutdownNow();
+                try {
+                    executor.awaitTermination(1000, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
             }
         }
         started.set(false);
@@ -58,7 +315,9 @@ public class LastValuePriceService implements PriceProvider, PriceRequester {
 
     public void run() {
         if (!started.getAndSet(true)) {
-            executor.execute(batchRunConsumer::runConsumeRequest);
+            batchRunConsumers.forEach(consumer -> consumerTasks.add(executor.submit(consumer::runConsumeRequest)));
+            long period = batchRunReaper.getSettings().period.toNanos();
+            scheduler.scheduleAtFixedRate(batchRunReaper, period, period, TimeUnit.NANOSECONDS);
             logger.debug("Service running");
         }
     }
@@ -75,6 +334,11 @@ public class LastValuePriceService implements PriceProvider, PriceRequester {
         return priceProvider.upload(batchRunId, priceRecords);
     }
 
+    @Override
+    public boolean checkpoint(String batchRunId) {
+        return priceProvider.checkpoint(batchRunId);
+    }
+
     @Override
     public boolean complete(String batchRunId) {
         return priceProvider.complete(batchRunId);
@@ -96,4 +360,32 @@ public class LastValuePriceService implements PriceProvider, PriceRequester {
     public PriceRecord getLastPrice(String instrumentId, LocalDateTime asOf) {
         return priceRequester.getLastPrice(instrumentId, asOf);
     }
+
+    /**
+     * Looks up only the price value of the last price record, e.g. for the consumers which do not need the payload.
+     * It is cheaper than {@link #getLastPrice(String)} since the record itself is not touched.
+     * @return the price, or an empty optional if there is no price for the instrument
+     */
+    public OptionalDouble getLastPriceValue(String instrumentId) {
+        return getLastPriceValue(instrumentId, LocalDateTime.now());
+    }
+
+    /**
+     * @return the price of the latest record as of the given date time, or an empty optional if there is none
+     * @see #getLastPriceValue(String)
+     */
+    public OptionalDouble getLastPriceValue(String instrumentId, LocalDateTime asOf) {
+        return priceRecordStore.getLatestPrice(instrumentId, asOf);
+    }
+
+    /**
+     * Looks up the price that the service would have returned at an earlier commit version, e.g. the version
+     * before a correction batch run was committed, which is {@link #getCommitVersion(String)} of it minus one.
+     * The records replaced since then must still be retained by the store, see
+     * {@link com.example.service.store.StoreSettings#supersededRetention}.
+     * @throws IllegalArgumentException if a replaced record that the lookup needs is not retained anymore
+     */
+    public PriceRecord getLastPrice(String instrumentId, LocalDateTime asOf, long knownAt) {
+        return priceRecordStore.getLatest(instrumentId, asOf, knownAt);
+    }
 }
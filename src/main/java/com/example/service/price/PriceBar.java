@@ -0,0 +1,61 @@
+package com.example.service.price;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+/**
+ * A bar of the prices of an instrument within a time bucket: the open, high, low and close prices and the number
+ * of price records in the bucket. The open and close prices are the prices of the earliest and the latest records
+ * of the bucket by their asOf.
+ */
+public final class PriceBar {
+    public final String instrumentId;
+    /**
+     * The inclusive start of the bucket, the bucket ends at start + granularity exclusively.
+     */
+    public final LocalDateTime start;
+    public final Duration granularity;
+    private final double open;
+    private final double high;
+    private final double low;
+    private final double close;
+    private final int count;
+
+    public PriceBar(String instrumentId, LocalDateTime start, Duration granularity, double open, double high,
+                    double low, double close, int count) {
+        this.instrumentId = instrumentId;
+        this.start = start;
+        this.granularity = granularity;
+        this.open = open;
+        this.high = high;
+        this.low = low;
+        this.close = close;
+        this.count = count;
+    }
+
+    public double getOpen() {
+        return open;
+    }
+
+    public double getHigh() {
+        return high;
+    }
+
+    public double getLow() {
+        return low;
+    }
+
+    public double getClose() {
+        return close;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + instrumentId + ", " + start + ", " + granularity + ", O=" + open + ", H=" + high + ", L=" + low
+                + ", C=" + close + ", N=" + count + "]";
+    }
+}
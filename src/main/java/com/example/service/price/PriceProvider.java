@@ -5,6 +5,13 @@ public interface PriceProvider {
 
     boolean upload(String batchRunId, PriceRecord[] priceRecords);
 
+    /**
+     * Publishes the records uploaded so far for the batch run in a commit of their own, all or nothing, while the
+     * batch run stays open for more uploads. A later cancel only discards the records uploaded after the last
+     * checkpoint.
+     */
+    boolean checkpoint(String batchRunId);
+
     boolean complete(String batchRunId);
 
     boolean cancel(String batchRunId);
@@ -1,33 +1,65 @@
 package com.example.service.price;
 
+import com.example.service.batch.BatchRunConsumer;
+import com.example.service.batch.BatchRunEvent;
 import com.example.service.batch.BatchRunRequest;
+import com.example.service.batch.BatchRunRequestQueue;
+import com.example.service.batch.BatchRunTracer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Fills the blocking queue with batch run requests received by API calls from clients.
+ * Fills the batch run request queue with batch run requests received by API calls from clients.
  */
 public class PriceProviderImpl implements PriceProvider {
     private final static Logger logger = LogManager.getLogger(PriceProviderImpl.class);
-    private final BlockingQueue<BatchRunRequest<PriceRecord>> batchRunRequests;
+    // one queue per consumer, the requests of a batch run always go to the same queue
+    private final List<BatchRunRequestQueue<PriceRecord>> batchRunRequests;
+    private final BatchRunTracer tracer;
+    private final AdmissionController admissionController;
     // [DESIGN DECISION]: Store batch run ids in a concurrent map to prevent uploads with wrong ids. The value
-    // type of the map represents that any upload is made or not for the key batch run id.
-    // When a new batch run id is created it is set to false, and on the first upload, it is flagged as true.
-    // By this way, we might set a timer for cleaning up the batch runs with no uploads or the ones that are not
-    // completed after a certain time.
-    private final ConcurrentHashMap<String, Boolean> batchRunIds = new ConcurrentHashMap<>();
+    // of the map counts the chunks and payload bytes uploaded for the key batch run id. The chunk count is sent
+    // with the COMPLETE and CANCEL requests, which lets the consumer keep them ordered after the uploaded chunks
+    // even though they are queued in the prioritized control lane. The timestamps and the payload bytes are used
+    // by the BatchRunReaper for cleaning up the batch runs that are not completed after a certain time.
+    private final ConcurrentHashMap<String, BatchRunState> batchRunIds = new ConcurrentHashMap<>();
+    // payload bytes uploaded for the batch runs which are not checkpointed, completed or cancelled yet
+    private final AtomicLong stagedBytes = new AtomicLong();
+
+    public PriceProviderImpl(BatchRunRequestQueue<PriceRecord> batchRunRequests) {
+        this(batchRunRequests, BatchRunTracer.DISABLED);
+    }
+
+    public PriceProviderImpl(BatchRunRequestQueue<PriceRecord> batchRunRequests, BatchRunTracer tracer) {
+        this(Collections.singletonList(batchRunRequests), tracer);
+    }
 
-    public PriceProviderImpl(BlockingQueue<BatchRunRequest<PriceRecord>> batchRunRequests) {
-        this.batchRunRequests = batchRunRequests;
+    public PriceProviderImpl(List<BatchRunRequestQueue<PriceRecord>> batchRunRequests, BatchRunTracer tracer) {
+        this(batchRunRequests, tracer, new AdmissionController(AdmissionController.Settings.defaults()));
     }
 
-    private boolean queueRequest(BatchRunRequest<PriceRecord> request) {
+    /**
+     * @param admissionController admits the uploads by their size, the consumers of the queues must report the
+     *                            released chunks to it
+     */
+    public PriceProviderImpl(List<BatchRunRequestQueue<PriceRecord>> batchRunRequests, BatchRunTracer tracer,
+                             AdmissionController admissionController) {
+        this.batchRunRequests = new ArrayList<>(batchRunRequests);
+        this.tracer = tracer;
+        this.admissionController = admissionController;
+    }
+
+    private boolean queueRequest(String batchRunId, BatchRunRequest<PriceRecord> request) {
         try {
-            batchRunRequests.put(request);
+            batchRunRequests.get(BatchRunConsumer.partitionOf(batchRunId, batchRunRequests.size())).put(request);
         } catch (InterruptedException e) {
             e.printStackTrace();
             return false;
@@ -35,52 +67,151 @@ public class PriceProviderImpl implements PriceProvider {
         return true;
     }
 
+    /**
+     * Queues a request which the consumer expects since the batch run has been claimed for it, even if the thread
+     * is interrupted meanwhile. The interrupt is restored afterwards.
+     */
+    private void queueClaimedRequest(String batchRunId, BatchRunRequest<PriceRecord> request) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                batchRunRequests.get(BatchRunConsumer.partitionOf(batchRunId, batchRunRequests.size())).put(request);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long payloadBytes(PriceRecord[] priceRecords) {
+        long bytes = 0;
+        for (PriceRecord priceRecord : priceRecords) {
+            bytes += priceRecord.getPayloadSize();
+        }
+        return bytes;
+    }
+
+    private BatchRunState getState(String batchRunId) {
+        BatchRunState state = batchRunIds.get(batchRunId);
+        if (state == null || state.isClosed()) {
+            logger.error("No such active batch run id found: {}", batchRunId);
+            return null;
+        }
+        return state;
+    }
+
+    /**
+     * Closes the batch run for a COMPLETE or CANCEL, only the first of them succeeds.
+     * @return the number of chunks uploaded for the batch run, or -1 if it is already closed
+     */
+    private int close(String batchRunId, BatchRunState state) {
+        int chunkCount = state.close();
+        if (chunkCount < 0) {
+            logger.error("No such active batch run id found: {}", batchRunId);
+            return -1;
+        }
+        batchRunIds.remove(batchRunId, state);
+        stagedBytes.addAndGet(-state.drainStagedBytes());
+        return chunkCount;
+    }
+
     @Override
     public String start() {
         // [DESIGN DECISION]: Use UUID for batch run ids so that there's no need to track available ids.
         String batchRunId = UUID.randomUUID().toString();
-        if(!queueRequest(BatchRunRequest.newCreateBatchRunRequest(batchRunId))) return null;
+        tracer.record(batchRunId, BatchRunEvent.Stage.START);
+        if(!queueRequest(batchRunId, BatchRunRequest.newCreateBatchRunRequest(batchRunId))) return null;
 
-        batchRunIds.put(batchRunId, false);
+        batchRunIds.put(batchRunId, new BatchRunState(System.nanoTime()));
         return batchRunId;
     }
 
+    /**
+     * [DESIGN DECISION]: The chunk is reserved and counted before it is queued, so that a COMPLETE or CANCEL racing
+     * with the upload either announces the chunk or makes the upload fail. A reserved chunk which cannot be queued
+     * since the thread is interrupted is replaced by an empty chunk, so that the consumer still receives as many
+     * chunks as announced.
+     */
     @Override
     public boolean upload(String batchRunId, PriceRecord[] priceRecords) {
         if (batchRunId == null) return false;
 
-        Boolean uploaded = batchRunIds.get(batchRunId);
-        if (uploaded == null) {
+        BatchRunState state = getState(batchRunId);
+        if (state == null) return false;
+
+        // the events are recorded before the request is admitted and queued, so the queue wait includes a delayed
+        // admission and a blocked put
+        long bytes = payloadBytes(priceRecords);
+        tracer.record(batchRunId, BatchRunEvent.Stage.ENQUEUE, 0, priceRecords.length, bytes);
+        long estimatedBytes = AdmissionController.estimatedBytes(priceRecords);
+        state.beginWait();
+        try {
+            if (!admissionController.acquire(batchRunId, estimatedBytes)) return false;
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while waiting for the admission of a chunk of batch run {}", batchRunId);
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            state.endWait(System.nanoTime());
+        }
+        // the batch run may have been completed or cancelled while the upload was waiting
+        int chunk = state.reserveChunk(System.nanoTime());
+        if (chunk < 0) {
+            admissionController.abort(batchRunId, estimatedBytes);
             logger.error("No such active batch run id found: {}", batchRunId);
             return false;
         }
-
-        if (!queueRequest(BatchRunRequest.newAddBatchRunRequest(batchRunId, priceRecords))) return false;
-
-        if (!uploaded) {
-            batchRunIds.put(batchRunId, true);
+        if (state.addStagedBytes(chunk, bytes)) {
+            stagedBytes.addAndGet(bytes);
+        }
+        if (!queueRequest(batchRunId, BatchRunRequest.newAddBatchRunRequest(batchRunId, priceRecords))) {
+            queueClaimedRequest(batchRunId, BatchRunRequest.newAddBatchRunRequest(batchRunId, new PriceRecord[0]));
+            return false;
         }
-
         return true;
     }
 
+    /**
+     * [DESIGN DECISION]: A checkpoint is an opt-in for very long batch runs, e.g. one per instrument group, so that
+     * their prices become visible during the upload and the commit work is spread over the batch run instead of a
+     * single large commit at the end.
+     */
     @Override
-    public boolean complete(String batchRunId) {
+    public boolean checkpoint(String batchRunId) {
         if (batchRunId == null) return false;
 
-        Boolean uploaded = batchRunIds.get(batchRunId);
-        if (uploaded == null) {
+        BatchRunState state = getState(batchRunId);
+        if (state == null) return false;
+
+        int chunkCount = state.beginCheckpoint(System.nanoTime());
+        if (chunkCount < 0) {
             logger.error("No such active batch run id found: {}", batchRunId);
             return false;
         }
+        tracer.record(batchRunId, BatchRunEvent.Stage.CHECKPOINT, chunkCount, 0, 0);
+        queueClaimedRequest(batchRunId, BatchRunRequest.newCheckpointBatchRunRequest(batchRunId, chunkCount));
+        stagedBytes.addAndGet(-state.endCheckpoint(chunkCount));
+        return true;
+    }
+
+    @Override
+    public boolean complete(String batchRunId) {
+        if (batchRunId == null) return false;
 
-        if(!queueRequest(BatchRunRequest.newCompleteBatchRunRequest(batchRunId))) return false;
+        BatchRunState state = getState(batchRunId);
+        if (state == null) return false;
 
-        if (!uploaded) {
+        int chunkCount = close(batchRunId, state);
+        if (chunkCount < 0) return false;
+        tracer.record(batchRunId, BatchRunEvent.Stage.COMPLETE, chunkCount, 0, 0);
+        queueClaimedRequest(batchRunId, BatchRunRequest.newCompleteBatchRunRequest(batchRunId, chunkCount));
+
+        if (chunkCount == 0) {
             logger.warn("Completing batch run without any upload: {}", batchRunId);
         }
-
-        batchRunIds.remove(batchRunId);
         return true;
     }
 
@@ -88,15 +219,28 @@ public class PriceProviderImpl implements PriceProvider {
     public boolean cancel(String batchRunId) {
         if (batchRunId == null) return false;
 
-        Boolean uploaded = batchRunIds.get(batchRunId);
-        if (uploaded == null) {
-            logger.error("No such active batch run id found: {}", batchRunId);
-            return false;
-        }
-
-        if(!queueRequest(BatchRunRequest.newCancelBatchRunRequest(batchRunId))) return false;
+        BatchRunState state = getState(batchRunId);
+        if (state == null) return false;
 
-        batchRunIds.remove(batchRunId);
+        int chunkCount = close(batchRunId, state);
+        if (chunkCount < 0) return false;
+        tracer.record(batchRunId, BatchRunEvent.Stage.CANCEL, chunkCount, 0, 0);
+        queueClaimedRequest(batchRunId, BatchRunRequest.newCancelBatchRunRequest(batchRunId, chunkCount));
         return true;
     }
+
+    /**
+     * @return payload bytes uploaded for the batch runs which are neither checkpointed, completed nor cancelled yet
+     */
+    public long getStagedBytes() {
+        return stagedBytes.get();
+    }
+
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    Map<String, BatchRunState> getActiveBatchRuns() {
+        return Collections.unmodifiableMap(batchRunIds);
+    }
 }
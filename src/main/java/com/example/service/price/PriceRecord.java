@@ -34,6 +34,35 @@ public class PriceRecord {
         return price;
     }
 
+    /**
+     * @return the number of bytes allocated for the payload of this record
+     */
+    public int getPayloadSize() {
+        return payload.capacity();
+    }
+
+    public boolean isPayloadDirect() {
+        return payload.isDirect();
+    }
+
+    /**
+     * @return a read-only view of the whole payload, e.g. to share it with another record or to write it out
+     */
+    public ByteBuffer getPayload() {
+        ByteBuffer view = payload.asReadOnlyBuffer();
+        view.clear();
+        return view;
+    }
+
+    /**
+     * @return a view of the whole payload which does not affect the payload of this record
+     */
+    ByteBuffer payloadView() {
+        ByteBuffer view = payload.duplicate();
+        view.clear();
+        return view;
+    }
+
     @Override
     public String toString() {
         return "[" + instrumentId + ", " + asOf.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME) + ", " + price + "]";
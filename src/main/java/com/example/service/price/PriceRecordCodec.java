@@ -0,0 +1,151 @@
+package com.example.service.price;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.function.IntFunction;
+
+/**
+ * Encodes price records into a compact binary form and decodes them back. The same layout is used wherever
+ * price records leave the JVM, so that a record written by one component can be read by another one:
+ * <pre>
+ * instrumentId: short length + UTF-8 bytes
+ * asOf:         long epoch seconds + int nanos (the local date time is encoded as if it was UTC)
+ * payload:      int length + bytes
+ * </pre>
+ * [DESIGN DECISION]: The whole payload buffer is encoded, from position zero up to its capacity, since the
+ * payload is a flexible data structure and its layout is only known by the producers and consumers.
+ */
+public final class PriceRecordCodec {
+    private static final int FIXED_SIZE = Long.BYTES + Integer.BYTES + Integer.BYTES;
+    // an empty string
+    public static final int MIN_STRING_SIZE = Short.BYTES;
+    // a record with an empty instrument id and an empty payload
+    public static final int MIN_ENCODED_SIZE = MIN_STRING_SIZE + FIXED_SIZE;
+    // the UTF-8 bytes of a string which fit into its unsigned short length
+    public static final int MAX_STRING_LENGTH = 0xFFFF;
+
+    private PriceRecordCodec() {
+    }
+
+    public static int encodedSize(PriceRecord priceRecord) {
+        return encodedSize(priceRecord.instrumentId) + FIXED_SIZE + priceRecord.getPayloadSize();
+    }
+
+    public static void encode(PriceRecord priceRecord, ByteBuffer dst) {
+        encodeHeader(priceRecord, dst);
+        dst.put(priceRecord.payloadView());
+    }
+
+    /**
+     * @return the size of a record encoded without its payload bytes, see {@link #encodeHeader}
+     */
+    public static int encodedHeaderSize(PriceRecord priceRecord) {
+        return encodedSize(priceRecord.instrumentId) + FIXED_SIZE;
+    }
+
+    /**
+     * Encodes a record up to its payload bytes, which follow it, so that the payload can be written straight from
+     * its own buffer, e.g. by a gathering write.
+     */
+    public static void encodeHeader(PriceRecord priceRecord, ByteBuffer dst) {
+        putString(dst, priceRecord.instrumentId);
+        putDateTime(dst, priceRecord.asOf);
+        dst.putInt(priceRecord.getPayloadSize());
+    }
+
+    /**
+     * @return the size of the record encoded at the position of the given buffer, or -1 if the buffer
+     * does not contain enough bytes to tell it
+     */
+    public static int peekEncodedSize(ByteBuffer src) {
+        int position = src.position();
+        if (src.remaining() < Short.BYTES) return -1;
+        int headerSize = Short.BYTES + (src.getShort(position) & 0xFFFF) + FIXED_SIZE;
+        if (src.remaining() < headerSize) return -1;
+        return headerSize + src.getInt(position + headerSize - Integer.BYTES);
+    }
+
+    /**
+     * Decodes a price record and copies its payload into a new direct buffer.
+     */
+    public static PriceRecord decode(ByteBuffer src) {
+        return decode(src, ByteBuffer::allocateDirect);
+    }
+
+    /**
+     * Decodes a price record and copies its payload into a buffer of the given allocator, e.g. a slice of a
+     * larger direct buffer when many records are decoded at once.
+     */
+    public static PriceRecord decode(ByteBuffer src, IntFunction<ByteBuffer> payloadAllocator) {
+        String instrumentId = getString(src);
+        LocalDateTime asOf = getDateTime(src);
+        int payloadSize = src.getInt();
+        if (payloadSize < 0 || payloadSize > src.remaining()) {
+            throw new IllegalArgumentException("Invalid payload size " + payloadSize);
+        }
+        ByteBuffer payload = payloadAllocator.apply(payloadSize);
+        ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + payloadSize);
+        payload.put(slice);
+        src.position(src.position() + payloadSize);
+        return new PriceRecord(instrumentId, asOf, payload);
+    }
+
+    /**
+     * Reads the element count which precedes encoded elements, e.g. records, and checks it against the remaining
+     * bytes before anything is allocated for the elements.
+     * @param minElementSize the smallest encoded size of an element
+     * @throws IllegalArgumentException if the remaining bytes cannot hold the given number of elements
+     */
+    public static int getCount(ByteBuffer src, int minElementSize) {
+        int count = src.getInt();
+        if (count < 0 || count > src.remaining() / minElementSize) {
+            throw new IllegalArgumentException("Invalid element count " + count + " for " + src.remaining()
+                    + " bytes");
+        }
+        return count;
+    }
+
+    public static int encodedSize(String value) {
+        return Short.BYTES + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the UTF-8 bytes of the string do not fit into the short length
+     */
+    public static void putString(ByteBuffer dst, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_LENGTH) {
+            throw new IllegalArgumentException("String of " + bytes.length + " bytes is too long to encode");
+        }
+        dst.putShort((short) bytes.length);
+        dst.put(bytes);
+    }
+
+    public static String getString(ByteBuffer src) {
+        byte[] bytes = new byte[src.getShort() & 0xFFFF];
+        src.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static void putDateTime(ByteBuffer dst, LocalDateTime dateTime) {
+        dst.putLong(dateTime.toEpochSecond(ZoneOffset.UTC));
+        dst.putInt(dateTime.getNano());
+    }
+
+    /**
+     * @throws IllegalArgumentException if the encoded epoch seconds or nanos are out of range
+     */
+    public static LocalDateTime getDateTime(ByteBuffer src) {
+        long epochSecond = src.getLong();
+        int nanos = src.getInt();
+        try {
+            return LocalDateTime.ofEpochSecond(epochSecond, nanos, ZoneOffset.UTC);
+        } catch (DateTimeException e) {
+            throw new IllegalArgumentException("Invalid date time " + epochSecond + "s " + nanos + "ns", e);
+        }
+    }
+}
@@ -1,13 +1,13 @@
 package com.example.service.price;
 
-import com.example.service.store.PriceRecordStore;
+import com.example.service.store.RecordStore;
 
 import java.time.LocalDateTime;
 
 public class PriceRequesterImpl implements PriceRequester {
-    private final PriceRecordStore priceRecordStore;
+    private final RecordStore<PriceRecord> priceRecordStore;
 
-    public PriceRequesterImpl(PriceRecordStore priceRecordStore) {
+    public PriceRequesterImpl(RecordStore<PriceRecord> priceRecordStore) {
         this.priceRecordStore = priceRecordStore;
     }
 
@@ -0,0 +1,41 @@
+package com.example.service.price;
+
+import com.example.service.store.StoreSnapshot;
+
+import java.time.LocalDateTime;
+
+/**
+ * A read-only view of the prices pinned to one commit, e.g. to value a portfolio with many lookups which must not
+ * straddle a commit. The lookups do not take any lock and do not wait for the commits.
+ * [DESIGN DECISION]: A snapshot retains the prices replaced after its commit, so it must be closed as soon as it is
+ * not needed anymore, best with try-with-resources. Lookups through a closed or expired snapshot fail.
+ */
+public class PriceSnapshot implements PriceRequester, AutoCloseable {
+    private final StoreSnapshot<PriceRecord> storeSnapshot;
+
+    PriceSnapshot(StoreSnapshot<PriceRecord> storeSnapshot) {
+        this.storeSnapshot = storeSnapshot;
+    }
+
+    /**
+     * @return the commit version that the snapshot is pinned to
+     */
+    public long getVersion() {
+        return storeSnapshot.getVersion();
+    }
+
+    @Override
+    public PriceRecord getLastPrice(String instrumentId) {
+        return getLastPrice(instrumentId, LocalDateTime.now());
+    }
+
+    @Override
+    public PriceRecord getLastPrice(String instrumentId, LocalDateTime asOf) {
+        return storeSnapshot.getLatest(instrumentId, asOf);
+    }
+
+    @Override
+    public void close() {
+        storeSnapshot.close();
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.service.replication;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connects a {@link ReplicationFollower} to a {@link ReplicationServer} and feeds it with the received
+ * log entries. The follower resumes from the version it has already applied, so the client reconnects when the
+ * connection fails, e.g. when the server drops a slow follower, or when the follower gets out of sync.
+ * [DESIGN DECISION]: The client gives up after a few consecutive attempts which do not receive anything, e.g. when
+ * the follower is behind the retained log of the leader and the server keeps rejecting it.
+ */
+public class ReplicationClient implements AutoCloseable {
+    private final static Logger logger = LogManager.getLogger(ReplicationClient.class);
+    private static final int MAX_RECONNECT_ATTEMPTS = 10;
+    private static final long RECONNECT_DELAY_MILLIS = 100;
+    private final InetSocketAddress address;
+    private final ReplicationFollower follower;
+    private final Thread receiver;
+    private volatile SocketChannel channel;
+    private volatile boolean closed;
+
+    private ReplicationClient(InetSocketAddress address, ReplicationFollower follower, SocketChannel channel) {
+        this.address = address;
+        this.follower = follower;
+        this.channel = channel;
+        // the connection is dropped, so that the receiver reconnects from the applied version
+        follower.setOutOfSyncListener(() -> closeQuietly(this.channel));
+        this.receiver = new Thread(this::runReceiver, "replication-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    public static ReplicationClient connect(InetSocketAddress address, ReplicationFollower follower) throws IOException {
+        return new ReplicationClient(address, follower, open(address, follower));
+    }
+
+    private static SocketChannel open(InetSocketAddress address, ReplicationFollower follower) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        try {
+            ByteBuffer appliedVersion = ByteBuffer.allocate(Long.BYTES).putLong(follower.resync());
+            appliedVersion.flip();
+            ReplicationCodec.writeFully(appliedVersion, channel);
+            return channel;
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    private void runReceiver() {
+        int failedAttempts = 0;
+        while (!closed) {
+            try {
+                while (true) {
+                    follower.append(ReplicationCodec.read(channel));
+                    failedAttempts = 0;
+                }
+            } catch (IOException e) {
+                if (closed) break;
+                logger.warn("Replication stream failed at version {}: {}", follower.getAppliedVersion(),
+                        e.getMessage());
+            }
+            closeQuietly(channel);
+            if (!reconnect(++failedAttempts)) break;
+        }
+    }
+
+    private boolean reconnect(int attempt) {
+        while (!closed && attempt <= MAX_RECONNECT_ATTEMPTS) {
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS * attempt);
+                channel = open(address, follower);
+                if (closed) {
+                    closeQuietly(channel);
+                    return false;
+                }
+                logger.info("Reconnected to {} at version {}", address, follower.getAppliedVersion());
+                return true;
+            } catch (IOException e) {
+                logger.warn("Cannot reconnect to {}: {}", address, e.getMessage());
+                attempt++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        if (!closed) {
+            logger.error("Replication stopped at version {} after {} attempts to reconnect",
+                    follower.getAppliedVersion(), MAX_RECONNECT_ATTEMPTS);
+        }
+        return false;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("Cannot close replication connection: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+    }
+}
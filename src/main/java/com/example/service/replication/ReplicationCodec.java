@@ -0,0 +1,81 @@
+package com.example.service.replication;
+
+import com.example.service.price.PriceRecord;
+import com.example.service.price.PriceRecordCodec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes replication log entries to a channel and reads them back, each entry as a length-prefixed frame:
+ * <pre>
+ * length (int) | version (long) | commitTimeMillis (long) | count (int) | records
+ * </pre>
+ * The records are encoded by {@link PriceRecordCodec}.
+ */
+final class ReplicationCodec {
+    private static final int HEADER_SIZE = Long.BYTES + Long.BYTES + Integer.BYTES;
+    // [ASSUMPTION]: A commit of the service is smaller than 1 GB, e.g. a million records with 1 KB payloads
+    private static final int MAX_FRAME_SIZE = 1 << 30;
+
+    private ReplicationCodec() {
+    }
+
+    static void write(ReplicationLogEntry entry, WritableByteChannel channel) throws IOException {
+        int length = HEADER_SIZE;
+        for (PriceRecord priceRecord : entry.records) {
+            length += PriceRecordCodec.encodedSize(priceRecord);
+        }
+        ByteBuffer frame = ByteBuffer.allocateDirect(Integer.BYTES + length);
+        frame.putInt(length).putLong(entry.version).putLong(entry.commitTimeMillis).putInt(entry.records.length);
+        for (PriceRecord priceRecord : entry.records) {
+            PriceRecordCodec.encode(priceRecord, frame);
+        }
+        frame.flip();
+        writeFully(frame, channel);
+    }
+
+    /**
+     * @throws StreamCorruptedException if the frame is malformed, the stream cannot be resumed after it
+     */
+    static ReplicationLogEntry read(ReadableByteChannel channel) throws IOException {
+        int length = readFully(ByteBuffer.allocate(Integer.BYTES), channel).getInt();
+        if (length < HEADER_SIZE || length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid replication frame length " + length);
+        }
+        ByteBuffer frame = readFully(ByteBuffer.allocateDirect(length), channel);
+        try {
+            long version = frame.getLong();
+            long commitTimeMillis = frame.getLong();
+            PriceRecord[] records = new PriceRecord[PriceRecordCodec.getCount(frame,
+                    PriceRecordCodec.MIN_ENCODED_SIZE)];
+            for (int i = 0; i < records.length; i++) {
+                records[i] = PriceRecordCodec.decode(frame);
+            }
+            return new ReplicationLogEntry(version, commitTimeMillis, records);
+        } catch (RuntimeException e) {
+            // e.g. a BufferUnderflowException or an IllegalArgumentException of the record codec
+            throw new StreamCorruptedException("Malformed replication frame: " + e);
+        }
+    }
+
+    static void writeFully(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    static ByteBuffer readFully(ByteBuffer buffer, ReadableByteChannel channel) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Replication stream closed");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
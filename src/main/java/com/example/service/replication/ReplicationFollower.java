@@ -0,0 +1,205 @@
+package com.example.service.replication;
+
+import com.example.service.price.PriceRecord;
+import com.example.service.price.PriceRequester;
+import com.example.service.price.PriceRequesterImpl;
+import com.example.service.store.PriceRecordStore;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A read replica which applies the replication log of a {@link ReplicationLeader} to its own store and serves
+ * price requests from it. The entries are applied by a dedicated thread in version order, so every state a
+ * reader observes is a state the leader had after one of its commits.
+ * [DESIGN DECISION]: A producer which needs to read its own batch run from a replica asks the leader for the
+ * commit version of its batch run and waits on the replica with {@link #awaitVersion(long, Duration)}.
+ * [DESIGN DECISION]: A follower which misses an entry, since its queue of pending entries is full or the log has a
+ * gap, stops applying and drops the following entries, since applying them would expose a state the leader never
+ * had. It tells its out-of-sync listener, e.g. a {@link ReplicationClient} which reconnects, and resumes after
+ * {@link #resync()} from the version it has applied.
+ */
+public class ReplicationFollower implements PriceRequester, ReplicationSink, AutoCloseable {
+    private final static Logger logger = LogManager.getLogger(ReplicationFollower.class);
+    public static final int DEFAULT_MAX_PENDING_ENTRIES = 1024;
+    private final PriceRecordStore priceRecordStore = new PriceRecordStore();
+    private final PriceRequester priceRequester = new PriceRequesterImpl(priceRecordStore);
+    // [DESIGN DECISION]: LinkedBlockingQueue is chosen since appending must never block the leader. It is
+    // bounded, an entry which does not fit puts the follower out of sync instead.
+    private final LinkedBlockingQueue<ReplicationLogEntry> pendingEntries;
+    private final ReentrantLock versionLock = new ReentrantLock();
+    private final Condition versionApplied = versionLock.newCondition();
+    private final AtomicBoolean outOfSync = new AtomicBoolean();
+    private final Thread applier;
+    private volatile Runnable outOfSyncListener = () -> {
+    };
+    private volatile long appliedVersion;
+    private volatile long receivedVersion;
+
+    public ReplicationFollower() {
+        this(DEFAULT_MAX_PENDING_ENTRIES);
+    }
+
+    /**
+     * @param maxPendingEntries the number of entries which may be received but not applied yet
+     */
+    public ReplicationFollower(int maxPendingEntries) {
+        pendingEntries = new LinkedBlockingQueue<>(maxPendingEntries);
+        applier = new Thread(this::runApplier, "replication-follower");
+        applier.setDaemon(true);
+        applier.start();
+    }
+
+    /**
+     * @param listener called once when the follower gets out of sync, on the thread of the leader or of the
+     *                 applier, so it must not block
+     */
+    public void setOutOfSyncListener(Runnable listener) {
+        this.outOfSyncListener = listener;
+    }
+
+    @Override
+    public void append(ReplicationLogEntry entry) {
+        if (outOfSync.get()) return;
+
+        if (!pendingEntries.offer(entry)) {
+            logger.warn("Replication follower cannot keep up, {} entries pending at version {}",
+                    pendingEntries.size(), appliedVersion);
+            markOutOfSync();
+            return;
+        }
+        receivedVersion = Math.max(receivedVersion, entry.version);
+    }
+
+    private void markOutOfSync() {
+        if (outOfSync.compareAndSet(false, true)) {
+            pendingEntries.clear();
+            outOfSyncListener.run();
+        }
+    }
+
+    /**
+     * Leaves the out-of-sync state, the entries which follow the returned version must be appended next, e.g.
+     * by a new connection to the server or by {@link ReplicationLeader#addFollower} after the follower has been
+     * removed from the leader.
+     * @return the version which the follower has applied
+     */
+    public long resync() {
+        pendingEntries.clear();
+        outOfSync.set(false);
+        return appliedVersion;
+    }
+
+    /**
+     * @return true if the follower has missed an entry and drops the entries until it is resynced
+     */
+    public boolean isOutOfSync() {
+        return outOfSync.get();
+    }
+
+    private void runApplier() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                apply(pendingEntries.take());
+            }
+        } catch (InterruptedException e) {
+            logger.debug("Replication follower stopped at version {}", appliedVersion);
+        }
+    }
+
+    private void apply(ReplicationLogEntry entry) {
+        if (entry.version <= appliedVersion) return; // already applied, e.g. replayed after a reconnect
+
+        if (entry.version != appliedVersion + 1) {
+            logger.error("Replication log has a gap between versions {} and {}, resyncing", appliedVersion,
+                    entry.version);
+            markOutOfSync();
+            return;
+        }
+
+        priceRecordStore.store(Arrays.asList(entry.records));
+        versionLock.lock();
+        try {
+            appliedVersion = entry.version;
+            versionApplied.signalAll();
+        } finally {
+            versionLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the entry with the given version is applied.
+     * @return true if the version is applied, false if the timeout elapses first
+     */
+    public boolean awaitVersion(long version, Duration timeout) throws InterruptedException {
+        long remaining = timeout.toNanos();
+        versionLock.lock();
+        try {
+            while (appliedVersion < version) {
+                if (remaining <= 0) return false;
+                remaining = versionApplied.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            versionLock.unlock();
+        }
+    }
+
+    /**
+     * @return the leader version of the last applied entry
+     */
+    public long getAppliedVersion() {
+        return appliedVersion;
+    }
+
+    /**
+     * @return the number of versions received from the leader but not applied yet
+     */
+    public long getVersionLag() {
+        return Math.max(0, receivedVersion - appliedVersion);
+    }
+
+    /**
+     * @return the time passed since the leader committed the oldest entry which is not applied yet,
+     * zero if the follower is up to date with the entries it has received
+     */
+    public Duration getReplicationLag() {
+        ReplicationLogEntry oldestPending = pendingEntries.peek();
+        if (oldestPending == null) return Duration.ZERO;
+        return Duration.ofMillis(Math.max(0, System.currentTimeMillis() - oldestPending.commitTimeMillis));
+    }
+
+    public int getNumberOfPriceRecords() {
+        return priceRecordStore.size();
+    }
+
+    @Override
+    public void close() {
+        applier.interrupt();
+        try {
+            applier.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ---------- Requester API ----------
+
+    @Override
+    public PriceRecord getLastPrice(String instrumentId) {
+        return priceRequester.getLastPrice(instrumentId);
+    }
+
+    @Override
+    public PriceRecord getLastPrice(String instrumentId, LocalDateTime asOf) {
+        return priceRequester.getLastPrice(instrumentId, asOf);
+    }
+}
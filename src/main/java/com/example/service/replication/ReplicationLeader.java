@@ -0,0 +1,76 @@
+package com.example.service.replication;
+
+import com.example.service.price.PriceRecord;
+import com.example.service.store.CommitListener;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Turns the commits of the leader store into an ordered, versioned replication log and streams it to the
+ * followers. The most recent entries are retained, so that a follower which attaches late, or reconnects,
+ * can catch up from the version it has already applied.
+ * [ASSUMPTION]: The leader is registered as a commit listener before the first batch run is completed, or
+ * the followers are seeded with the same records by other means. A follower which is behind the retained
+ * log cannot be attached.
+ */
+public class ReplicationLeader implements CommitListener<PriceRecord> {
+    private final int retainedEntries;
+    private final ArrayDeque<ReplicationLogEntry> log = new ArrayDeque<>();
+    private final List<ReplicationSink> followers = new CopyOnWriteArrayList<>();
+    // [DESIGN DECISION]: Appending to the log and attaching a follower are done under the same lock, so that
+    // an attaching follower receives every entry exactly once, either from the retained log or as a live entry.
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile long committedVersion;
+
+    public ReplicationLeader(int retainedEntries) {
+        this.retainedEntries = retainedEntries;
+    }
+
+    @Override
+    public void onCommit(long version, List<PriceRecord> records) {
+        // the records are copied since the committed list is cleared after the commit
+        ReplicationLogEntry entry = new ReplicationLogEntry(version, System.currentTimeMillis(),
+                records.toArray(new PriceRecord[0]));
+        lock.lock();
+        try {
+            log.addLast(entry);
+            if (log.size() > retainedEntries) {
+                log.removeFirst();
+            }
+            committedVersion = version;
+            followers.forEach(follower -> follower.append(entry));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Attaches a follower and sends it the retained entries which come after the given version.
+     * @throws IllegalStateException if the entries following the given version are not retained anymore
+     */
+    public void addFollower(ReplicationSink follower, long appliedVersion) {
+        lock.lock();
+        try {
+            long firstRetainedVersion = log.isEmpty() ? committedVersion + 1 : log.getFirst().version;
+            if (appliedVersion + 1 < firstRetainedVersion) {
+                throw new IllegalStateException("Follower at version " + appliedVersion
+                        + " is behind the replication log which starts at version " + firstRetainedVersion);
+            }
+            log.stream().filter(entry -> entry.version > appliedVersion).forEach(follower::append);
+            followers.add(follower);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void removeFollower(ReplicationSink follower) {
+        followers.remove(follower);
+    }
+
+    public long getCommittedVersion() {
+        return committedVersion;
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.service.replication;
+
+import com.example.service.price.PriceRecord;
+
+/**
+ * An entry of the replication log: the records committed by a single batch run with the commit version of
+ * the leader and the time of the commit.
+ */
+public class ReplicationLogEntry {
+    public final long version;
+    public final long commitTimeMillis;
+    final PriceRecord[] records;
+
+    public ReplicationLogEntry(long version, long commitTimeMillis, PriceRecord[] records) {
+        this.version = version;
+        this.commitTimeMillis = commitTimeMillis;
+        this.records = records;
+    }
+
+    public int size() {
+        return records.length;
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.service.replication;
+
+import com.example.service.price.ExecutionMode;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Streams the replication log of a {@link ReplicationLeader} to the followers connecting over TCP.
+ * A connecting follower first sends the version it has applied (a long), then it receives the log entries
+ * which follow that version, encoded by {@link ReplicationCodec}.
+ * [DESIGN DECISION]: Blocking I/O with a sender thread per follower is used, since there are only a few
+ * followers and each of them receives a single ordered stream.
+ * [DESIGN DECISION]: A follower whose queue of unsent entries is full is dropped instead of buffering the log for
+ * it without a bound. Its {@link ReplicationClient} reconnects and catches up from the retained log.
+ */
+public class ReplicationServer implements AutoCloseable {
+    private final static Logger logger = LogManager.getLogger(ReplicationServer.class);
+    // [ASSUMPTION]: A follower which is that many commits behind is not going to catch up by the live stream
+    private static final int MAX_QUEUED_ENTRIES = 1024;
+    private final ReplicationLeader leader;
+    private final ServerSocketChannel serverChannel;
+    private final Thread acceptor;
+    private final ExecutionMode executionMode;
+
+    /**
+     * Sends the entries appended by the leader to a single follower connection.
+     */
+    private final class SocketSink implements ReplicationSink, Runnable {
+        private final SocketChannel channel;
+        private final LinkedBlockingQueue<ReplicationLogEntry> entries = new LinkedBlockingQueue<>(MAX_QUEUED_ENTRIES);
+
+        private SocketSink(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void append(ReplicationLogEntry entry) {
+            if (!entries.offer(entry)) {
+                logger.warn("Dropping follower {} which is {} entries behind",
+                        channel.socket().getRemoteSocketAddress(), entries.size());
+                leader.removeFollower(this);
+                // the sender stops since its pending write or its next write fails
+                closeQuietly(channel);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (channel.isOpen()) {
+                    ReplicationLogEntry entry = entries.take();
+                    if (!channel.isOpen()) break;
+                    ReplicationCodec.write(entry, channel);
+                }
+            } catch (IOException | InterruptedException e) {
+                logger.info("Follower {} disconnected", channel.socket().getRemoteSocketAddress());
+            } finally {
+                leader.removeFollower(this);
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    public ReplicationServer(ReplicationLeader leader, InetSocketAddress address) throws IOException {
+        this(leader, address, ExecutionMode.PLATFORM_THREADS);
+    }
+
+    /**
+     * @param executionMode the threads which send the replication log to the followers, one for every follower
+     */
+    public ReplicationServer(ReplicationLeader leader, InetSocketAddress address, ExecutionMode executionMode)
+            throws IOException {
+        executionMode.checkSupported();
+        this.leader = leader;
+        this.executionMode = executionMode;
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        this.acceptor = new Thread(this::runAcceptor, "replication-acceptor");
+        acceptor.setDaemon(true);
+    }
+
+    public void start() {
+        acceptor.start();
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    private void runAcceptor() {
+        while (serverChannel.isOpen()) {
+            SocketChannel channel = null;
+            try {
+                channel = serverChannel.accept();
+                long appliedVersion = ReplicationCodec.readFully(ByteBuffer.allocate(Long.BYTES), channel).getLong();
+                SocketSink sink = new SocketSink(channel);
+                leader.addFollower(sink, appliedVersion);
+                executionMode.newThread("replication-sender", sink).start();
+                logger.info("Follower {} attached at version {}", channel.socket().getRemoteSocketAddress(), appliedVersion);
+            } catch (IllegalStateException e) {
+                logger.error("Cannot attach follower: {}", e.getMessage());
+                closeQuietly(channel);
+            } catch (IOException e) {
+                closeQuietly(channel);
+                if (serverChannel.isOpen()) {
+                    logger.error("Cannot accept follower", e);
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("Cannot close follower connection: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+    }
+}
@@ -0,0 +1,10 @@
+package com.example.service.replication;
+
+/**
+ * Receives the replication log entries streamed by a {@link ReplicationLeader}, in version order.
+ * [DESIGN DECISION]: Implementations must not block, since the leader appends the entries while the commit
+ * still holds the store. They queue the entries and apply or send them on their own thread.
+ */
+public interface ReplicationSink {
+    void append(ReplicationLogEntry entry);
+}
@@ -0,0 +1,14 @@
+package com.example.service.store;
+
+import java.util.List;
+
+/**
+ * Receives the records of every commit made to a {@link RecordStore}, in commit order.
+ * [DESIGN DECISION]: Listeners are called while the commit still holds the store, so that they observe the
+ * commits in version order. They must not block and must copy the records if they retain them.
+ * @param <T> type of the committed records
+ */
+@FunctionalInterface
+public interface CommitListener<T> {
+    void onCommit(long version, List<T> records);
+}
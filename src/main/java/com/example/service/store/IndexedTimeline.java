@@ -0,0 +1,96 @@
+package com.example.service.store;
+
+import com.example.service.price.PriceRecord;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A timeline of an instrument indexed outside of a store with the statistics of its records, so that adding it to
+ * the store does not require to go through its records again. Used to load large partitions of records in parallel.
+ */
+final class IndexedTimeline {
+    private final TreeMap<LocalDateTime, VersionedPriceRecord> records = new TreeMap<>();
+    private Timeline timeline;
+    private long directBytes;
+    private long heapBytes;
+    private List<TreeMap<LocalDateTime, PriceRollups.Bar>> bars;
+
+    /**
+     * Indexes the records of each partition by instrument, one task per partition.
+     * @param rollups the rollups of the store, whose bars are computed for each timeline by the same tasks
+     */
+    static List<Map<String, IndexedTimeline>> indexPartitions(List<? extends Iterable<PriceRecord>> partitions,
+                                                              ExecutorService executor, PriceRollups rollups)
+            throws InterruptedException {
+        List<Callable<Map<String, IndexedTimeline>>> tasks = new ArrayList<>(partitions.size());
+        for (Iterable<PriceRecord> partition : partitions) {
+            tasks.add(() -> {
+                Map<String, IndexedTimeline> timelines = new HashMap<>();
+                for (PriceRecord priceRecord : partition) {
+                    // the version is assigned when the timeline is merged into the store
+                    timelines.computeIfAbsent(priceRecord.instrumentId, k -> new IndexedTimeline()).records
+                            .put(priceRecord.asOf, new VersionedPriceRecord(priceRecord, 0));
+                }
+                timelines.values().forEach(timeline -> timeline.summarize(rollups));
+                return timelines;
+            });
+        }
+        List<Map<String, IndexedTimeline>> partitionTimelines = new ArrayList<>(tasks.size());
+        for (Future<Map<String, IndexedTimeline>> future : executor.invokeAll(tasks)) {
+            try {
+                partitionTimelines.add(future.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Failed to index a partition", e.getCause());
+            }
+        }
+        return partitionTimelines;
+    }
+
+    private void summarize(PriceRollups rollups) {
+        // the records are indexed in a tree map which is faster to fill, the timeline is built from it at once
+        timeline = Timeline.of(records.values());
+        if (rollups.isEnabled()) {
+            bars = rollups.computeBars(timeline);
+        }
+        records.values().forEach(versionedRecord -> {
+            PriceRecord priceRecord = versionedRecord.priceRecord;
+            if (priceRecord.isPayloadDirect()) {
+                directBytes += priceRecord.getPayloadSize();
+            } else {
+                heapBytes += priceRecord.getPayloadSize();
+            }
+        });
+    }
+
+    /**
+     * Adds this timeline to the timelines of a store as of the given commit version: as it is for a new instrument,
+     * record by record otherwise. Must be called while the store is locked for writing, the bars of the replaced
+     * records are recomputed by {@link PriceRollups#recomputeStaleBars} afterwards.
+     */
+    void mergeInto(Map<String, Timeline> instrumentPrices, String instrumentId,
+                   StatisticsCollector statisticsCollector, PriceRollups rollups, long version) {
+        Timeline storedTimeline = instrumentPrices.get(instrumentId);
+        if (storedTimeline == null) {
+            // the versions are assigned before the timeline is visible to the pinned snapshots
+            instrumentPrices.put(instrumentId,
+                    statisticsCollector.putTimeline(records.values(), timeline, directBytes, heapBytes, version));
+            if (bars != null) {
+                rollups.putBars(instrumentId, bars);
+            }
+            return;
+        }
+        Timeline.Writer writer = storedTimeline.writer();
+        records.values().forEach(versionedRecord -> rollups.onPut(versionedRecord.priceRecord,
+                statisticsCollector.put(writer, versionedRecord.priceRecord, version)));
+        instrumentPrices.put(instrumentId, writer.build());
+    }
+}
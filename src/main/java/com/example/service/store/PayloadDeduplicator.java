@@ -0,0 +1,119 @@
+package com.example.service.store;
+
+import com.example.service.price.PriceRecord;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shares a single copy of the identical payloads of the stored records. The payloads are hashed by their content,
+ * the first stored payload of a content becomes the shared copy and the later records with the same content are
+ * stored with a view of it, so that their own buffers can be reclaimed. The shared copies are reference counted by
+ * the stored records and dropped when the last record referencing them is dropped from the store, i.e. when it is
+ * replaced and no longer retained as superseded for the lookups known at earlier versions or pinned snapshots.
+ * [DESIGN DECISION]: Payloads are deduplicated when they are committed to the store rather than when they are
+ * uploaded, so that staged and cancelled batch runs never hold references and do not need to release them.
+ * [DESIGN DECISION]: Not thread-safe, it is only used by the committing thread while the store is locked for
+ * writing, like the {@link StatisticsCollector}.
+ * [ASSUMPTION]: Payloads are never changed after they are uploaded.
+ */
+class PayloadDeduplicator {
+    static final PayloadDeduplicator NONE = new PayloadDeduplicator() {
+        @Override
+        PriceRecord intern(PriceRecord priceRecord) {
+            return priceRecord;
+        }
+
+        @Override
+        void release(PriceRecord priceRecord) {
+        }
+    };
+
+    private final Map<PayloadKey, SharedPayload> sharedPayloads = new HashMap<>();
+    // the number of stored records which reference a payload stored by an earlier record
+    private long dedupedRecords;
+    private long savedBytes;
+
+    private static final class SharedPayload {
+        private final PriceRecord owner;
+        private int references;
+
+        private SharedPayload(PriceRecord owner) {
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * A payload compared by its content, the hash is computed 8 bytes at a time since the payloads are large.
+     */
+    private static final class PayloadKey {
+        private final ByteBuffer payload;
+        private final int hash;
+
+        private PayloadKey(ByteBuffer payload) {
+            this.payload = payload;
+            long h = payload.capacity();
+            int i = 0;
+            for (; i + Long.BYTES <= payload.capacity(); i += Long.BYTES) {
+                h = 31 * h + payload.getLong(i);
+            }
+            for (; i < payload.capacity(); i++) {
+                h = 31 * h + payload.get(i);
+            }
+            this.hash = (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PayloadKey)) return false;
+            PayloadKey other = (PayloadKey) o;
+            return hash == other.hash && payload.equals(other.payload);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Takes a reference to the shared copy of the payload of a record which is about to be stored.
+     * @return the record to store, which is a copy of the given one with a view of the shared payload if another
+     * stored record has the same payload
+     */
+    PriceRecord intern(PriceRecord priceRecord) {
+        SharedPayload sharedPayload = sharedPayloads.computeIfAbsent(new PayloadKey(priceRecord.getPayload()),
+                k -> new SharedPayload(priceRecord));
+        if (++sharedPayload.references > 1) {
+            dedupedRecords++;
+            savedBytes += priceRecord.getPayloadSize();
+        }
+        if (sharedPayload.owner == priceRecord) return priceRecord;
+        return new PriceRecord(priceRecord.instrumentId, priceRecord.asOf, sharedPayload.owner.getPayload());
+    }
+
+    /**
+     * Releases the reference of a stored record to its payload, when the record is dropped from the store.
+     */
+    void release(PriceRecord priceRecord) {
+        PayloadKey key = new PayloadKey(priceRecord.getPayload());
+        SharedPayload sharedPayload = sharedPayloads.get(key);
+        if (sharedPayload == null) return;
+
+        if (--sharedPayload.references == 0) {
+            sharedPayloads.remove(key);
+        } else {
+            dedupedRecords--;
+            savedBytes -= priceRecord.getPayloadSize();
+        }
+    }
+
+    long getDedupedRecords() {
+        return dedupedRecords;
+    }
+
+    long getSavedBytes() {
+        return savedBytes;
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.service.store;
 
+import com.example.service.price.PriceBar;
 import com.example.service.price.PriceRecord;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -7,10 +8,15 @@ import org.apache.logging.log4j.Logger;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.OptionalDouble;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -22,13 +28,32 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 public class PriceRecordStore implements RecordStore<PriceRecord> {
     private final static Logger logger = LogManager.getLogger(PriceRecordStore.class);
-    // [DESIGN DECISION]: ConcurrentHashMap and ConcurrentHashMap is chosen to prevent race conditions efficiently.
-    // We must keep the price records sorted by date so we need ConcurrentSkipListMap.
-    private final Map<String, TreeMap<LocalDateTime, PriceRecord>> instrumentPrices = new HashMap<>();
+    // [DESIGN DECISION]: ConcurrentHashMap is chosen so that the pinned snapshots can look up the timelines without the
+    // lock. A timeline keeps the price records of an instrument sorted by date and is replaced by each commit.
+    private final Map<String, Timeline> instrumentPrices = new ConcurrentHashMap<>();
     private final Lock readLock;
     private final Lock writeLock;
+    private final List<CommitListener<PriceRecord>> commitListeners = new CopyOnWriteArrayList<>();
+    // incremented by each commit while the write lock is held, volatile to be read without the lock
+    private volatile long version;
+    // updated by the commits while the write lock is held, its snapshot is published at the end of each commit
+    private final StatisticsCollector statisticsCollector;
+    private volatile StoreStatistics statistics = StoreStatistics.EMPTY;
+    // updated by the commits while the write lock is held
+    private final PriceRollups rollups;
+    private final long supersededRetention;
+    private final SnapshotRegistry snapshots;
 
     public PriceRecordStore() {
+        this(StoreSettings.defaults());
+    }
+
+    public PriceRecordStore(StoreSettings settings) {
+        statisticsCollector = new StatisticsCollector(
+                settings.deduplicatePayloads ? new PayloadDeduplicator() : PayloadDeduplicator.NONE);
+        rollups = PriceRollups.of(settings.rollupGranularities);
+        supersededRetention = settings.supersededRetention;
+        snapshots = new SnapshotRegistry(settings.maxSnapshotAge);
         ReadWriteLock rwLock = new ReentrantReadWriteLock();
         readLock = rwLock.readLock();
         writeLock = rwLock.writeLock();
@@ -40,10 +65,10 @@ public class PriceRecordStore implements RecordStore<PriceRecord> {
 
         readLock.lock();
         try {
-            TreeMap<LocalDateTime, PriceRecord> records = instrumentPrices.get(instrumentId);
-            if (records != null) {
-                Map.Entry<LocalDateTime, PriceRecord> entry = records.floorEntry(asOf);
-                return entry != null ? entry.getValue() : null;
+            Timeline timeline = instrumentPrices.get(instrumentId);
+            if (timeline != null) {
+                VersionedPriceRecord versionedRecord = timeline.floor(asOf);
+                return versionedRecord != null ? versionedRecord.priceRecord : null;
             }
         } finally {
             readLock.unlock();
@@ -53,42 +78,162 @@ public class PriceRecordStore implements RecordStore<PriceRecord> {
     }
 
     @Override
-    public void store(List<PriceRecord> priceRecords) {
+    public OptionalDouble getLatestPrice(String instrumentId, LocalDateTime asOf) {
+        if (instrumentId == null || asOf == null) return OptionalDouble.empty();
+
+        readLock.lock();
+        try {
+            Timeline timeline = instrumentPrices.get(instrumentId);
+            return timeline != null ? timeline.floorPrice(asOf) : OptionalDouble.empty();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public PriceRecord getLatest(String instrumentId, LocalDateTime asOf, long knownAt) {
+        if (instrumentId == null || asOf == null) return null;
+
+        readLock.lock();
+        try {
+            Timeline timeline = instrumentPrices.get(instrumentId);
+            return timeline != null ? timeline.floorAsKnownAt(asOf, knownAt) : null;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public List<PriceBar> getBars(String instrumentId, Duration granularity, LocalDateTime from, LocalDateTime to) {
+        if (instrumentId == null || from == null || to == null) return Collections.emptyList();
+
+        readLock.lock();
+        try {
+            return rollups.getBars(instrumentId, granularity, from, to);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public long store(List<PriceRecord> priceRecords) {
         writeLock.lock();
         try {
             Instant start = Instant.now();
+            long committingVersion = version + 1;
+            Map<String, Timeline.Writer> writers = new HashMap<>();
             priceRecords.forEach((priceRecord -> {
-                TreeMap<LocalDateTime, PriceRecord> recordTree
-                        = instrumentPrices.computeIfAbsent(priceRecord.instrumentId, k -> new TreeMap<>());
-                recordTree.put(priceRecord.asOf, priceRecord);
+                Timeline.Writer writer = writers.computeIfAbsent(priceRecord.instrumentId,
+                        k -> instrumentPrices.getOrDefault(k, Timeline.EMPTY).writer());
+                rollups.onPut(priceRecord, statisticsCollector.put(writer, priceRecord, committingVersion));
             }));
+            writers.forEach((instrumentId, writer) -> instrumentPrices.put(instrumentId, writer.build()));
+            rollups.recomputeStaleBars(instrumentPrices::get);
             Instant end = Instant.now();
             logger.debug("STORE completed in {} ms", Duration.between(start, end).toMillis());
+            long committedVersion = commit();
+            commitListeners.forEach(listener -> listener.onCommit(committedVersion, priceRecords));
+            return committedVersion;
         } finally {
             writeLock.unlock();
         }
     }
 
+    /**
+     * [DESIGN DECISION]: The timelines of the partitions are built in parallel without holding any lock, only
+     * merging them into the store is done under the write lock. The merge is cheap since it is done per instrument,
+     * and the loaded records replace the stored ones with the same date time like {@link #store(List)} does.
+     */
     @Override
-    public void dump() {
+    public long storePartitions(List<? extends Iterable<PriceRecord>> partitions, ExecutorService executor)
+            throws InterruptedException {
+        Instant start = Instant.now();
+        List<Map<String, IndexedTimeline>> partitionTimelines = IndexedTimeline.indexPartitions(partitions, executor,
+                rollups);
+        logger.debug("Partitions indexed in {} ms", Duration.between(start, Instant.now()).toMillis());
+
+        // the records are only flattened when someone listens to them
+        List<PriceRecord> committedRecords = new ArrayList<>();
+        if (!commitListeners.isEmpty()) {
+            partitions.forEach(partition -> partition.forEach(committedRecords::add));
+        }
+
+        writeLock.lock();
+        try {
+            long committingVersion = version + 1;
+            partitionTimelines.forEach(timelines -> timelines.forEach((instrumentId, timeline) ->
+                    timeline.mergeInto(instrumentPrices, instrumentId, statisticsCollector, rollups,
+                            committingVersion)));
+            rollups.recomputeStaleBars(instrumentPrices::get);
+            long committedVersion = commit();
+            commitListeners.forEach(listener -> listener.onCommit(committedVersion, committedRecords));
+            return committedVersion;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Increments the version, prunes the superseded records which are not needed anymore and publishes the
+     * statistics of the commit, must be called under the write lock.
+     */
+    private long commit() {
+        long committedVersion = ++version;
+        statisticsCollector.pruneSuperseded(
+                Math.min(committedVersion - supersededRetention, snapshots.getOldestPinnedVersion()));
+        statistics = statisticsCollector.snapshot(committedVersion, snapshots);
+        return committedVersion;
+    }
+
+    /**
+     * [DESIGN DECISION]: The read lock is only taken to open the snapshot, so that no commit is running while its
+     * version is pinned. Its lookups do not take any lock.
+     */
+    @Override
+    public StoreSnapshot<PriceRecord> openSnapshot() {
         readLock.lock();
         try {
-            instrumentPrices.forEach((instrument, tree) -> {
-                System.out.println("----------------- " + instrument + " -----------------");
-                tree.values().forEach(System.out::println);
-            });
+            return snapshots.open(version, instrumentPrices::get, () -> instrumentPrices.values().iterator());
         } finally {
             readLock.unlock();
         }
     }
 
     @Override
-    public int size() {
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public void addCommitListener(CommitListener<PriceRecord> listener) {
+        commitListeners.add(listener);
+    }
+
+    @Override
+    public void removeCommitListener(CommitListener<PriceRecord> listener) {
+        commitListeners.remove(listener);
+    }
+
+    @Override
+    public void dump() {
         readLock.lock();
         try {
-            return instrumentPrices.values().stream().mapToInt(TreeMap::size).sum();
+            instrumentPrices.forEach((instrument, timeline) -> {
+                System.out.println("----------------- " + instrument + " -----------------");
+                timeline.forEach(versionedRecord -> System.out.println(versionedRecord.priceRecord));
+            });
         } finally {
             readLock.unlock();
         }
     }
+
+    @Override
+    public int size() {
+        return (int) Math.min(statistics.getNumberOfRecords(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public StoreStatistics getStatistics() {
+        return statistics;
+    }
 }
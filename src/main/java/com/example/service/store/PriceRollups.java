@@ -0,0 +1,189 @@
+package com.example.service.store;
+
+import com.example.service.price.PriceBar;
+import com.example.service.price.PriceRecord;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Maintains the price bars of the instruments at the configured granularities while records are committed, so
+ * that a bar series can be read without looking up the records one by one. The buckets of a granularity are
+ * aligned to 1970-01-01T00:00, so hourly and daily buckets start at the full hours and at midnight.
+ * [DESIGN DECISION]: A new record updates the bars incrementally. A record which replaces another one may lower
+ * the high or raise the low of its bar, so the bar is recomputed from the records of its bucket in that case, once
+ * the new timeline of the instrument is built at the end of the commit.
+ * [DESIGN DECISION]: Not thread-safe, the bars are guarded by the lock of the store which owns the timelines.
+ * The bars are mutable internally and copied into immutable {@link PriceBar}s when they are read.
+ */
+final class PriceRollups {
+    static final PriceRollups NONE = new PriceRollups();
+
+    private final Duration[] granularities;
+    private final long[] granularitySeconds;
+    // bars by granularity index, then by instrument, then by bucket start
+    private final List<Map<String, TreeMap<LocalDateTime, Bar>>> bars;
+    // the starts of the bars to recompute by granularity index, then by instrument
+    private final List<Map<String, Set<LocalDateTime>>> staleBars;
+
+    static final class Bar {
+        private LocalDateTime openAsOf;
+        private LocalDateTime closeAsOf;
+        private double open;
+        private double high;
+        private double low;
+        private double close;
+        private int count;
+
+        private void add(PriceRecord priceRecord) {
+            double price = priceRecord.getPrice();
+            if (count == 0 || priceRecord.asOf.isBefore(openAsOf)) {
+                openAsOf = priceRecord.asOf;
+                open = price;
+            }
+            if (count == 0 || priceRecord.asOf.isAfter(closeAsOf)) {
+                closeAsOf = priceRecord.asOf;
+                close = price;
+            }
+            high = count == 0 ? price : Math.max(high, price);
+            low = count == 0 ? price : Math.min(low, price);
+            count++;
+        }
+
+        private PriceBar toPriceBar(String instrumentId, LocalDateTime start, Duration granularity) {
+            return new PriceBar(instrumentId, start, granularity, open, high, low, close, count);
+        }
+    }
+
+    PriceRollups(Duration... granularities) {
+        this.granularities = granularities.clone();
+        this.granularitySeconds = new long[granularities.length];
+        this.bars = new ArrayList<>(granularities.length);
+        this.staleBars = new ArrayList<>(granularities.length);
+        for (int i = 0; i < granularities.length; i++) {
+            if (granularities[i].getNano() != 0 || granularities[i].getSeconds() < 1) {
+                throw new IllegalArgumentException("A rollup granularity must be whole seconds: " + granularities[i]);
+            }
+            granularitySeconds[i] = granularities[i].getSeconds();
+            bars.add(new HashMap<>());
+            staleBars.add(new HashMap<>());
+        }
+    }
+
+    static PriceRollups of(List<Duration> granularities) {
+        return granularities.isEmpty() ? NONE : new PriceRollups(granularities.toArray(new Duration[0]));
+    }
+
+    boolean isEnabled() {
+        return granularities.length > 0;
+    }
+
+    List<Duration> getGranularities() {
+        return Collections.unmodifiableList(Arrays.asList(granularities));
+    }
+
+    /**
+     * Updates the bars after a record is put into the timeline of its instrument.
+     * @param replaced the record that the put replaced, or null
+     */
+    void onPut(PriceRecord priceRecord, VersionedPriceRecord replaced) {
+        for (int i = 0; i < granularities.length; i++) {
+            LocalDateTime start = bucketStart(priceRecord.asOf, i);
+            if (replaced == null) {
+                bars.get(i).computeIfAbsent(priceRecord.instrumentId, k -> new TreeMap<>())
+                        .computeIfAbsent(start, k -> new Bar()).add(priceRecord);
+            } else {
+                staleBars.get(i).computeIfAbsent(priceRecord.instrumentId, k -> new HashSet<>()).add(start);
+            }
+        }
+    }
+
+    /**
+     * Recomputes the bars whose records were replaced since the last call, from the timelines of the commit.
+     * Must be called once the timelines of the commit are built.
+     */
+    void recomputeStaleBars(Function<String, Timeline> timelines) {
+        for (int i = 0; i < granularities.length; i++) {
+            int index = i;
+            staleBars.get(i).forEach((instrumentId, starts) -> {
+                TreeMap<LocalDateTime, Bar> instrumentBars
+                        = bars.get(index).computeIfAbsent(instrumentId, k -> new TreeMap<>());
+                Timeline timeline = timelines.apply(instrumentId);
+                starts.forEach(start -> instrumentBars.put(start, computeBar(timeline, start, index)));
+            });
+            staleBars.get(i).clear();
+        }
+    }
+
+    /**
+     * Computes the bars of a whole timeline, e.g. while loading partitions in parallel, without changing the rollups.
+     * @return the bars by granularity index
+     */
+    List<TreeMap<LocalDateTime, Bar>> computeBars(Timeline timeline) {
+        List<TreeMap<LocalDateTime, Bar>> timelineBars = new ArrayList<>(granularities.length);
+        for (int i = 0; i < granularities.length; i++) {
+            int index = i;
+            TreeMap<LocalDateTime, Bar> instrumentBars = new TreeMap<>();
+            timeline.forEach(versionedRecord -> instrumentBars
+                    .computeIfAbsent(bucketStart(versionedRecord.priceRecord.asOf, index), k -> new Bar())
+                    .add(versionedRecord.priceRecord));
+            timelineBars.add(instrumentBars);
+        }
+        return timelineBars;
+    }
+
+    /**
+     * Adds the bars computed by {@link #computeBars(Timeline)} for an instrument which has no bars yet.
+     */
+    void putBars(String instrumentId, List<TreeMap<LocalDateTime, Bar>> timelineBars) {
+        for (int i = 0; i < granularities.length; i++) {
+            bars.get(i).put(instrumentId, timelineBars.get(i));
+        }
+    }
+
+    /**
+     * @return the bars of the buckets which start between the bucket of from and to (exclusive), in time order,
+     * none if to is not after the start of the bucket of from
+     */
+    List<PriceBar> getBars(String instrumentId, Duration granularity, LocalDateTime from, LocalDateTime to) {
+        int index = Arrays.asList(granularities).indexOf(granularity);
+        if (index < 0) {
+            throw new IllegalArgumentException("No rollup for granularity " + granularity + ", the store has "
+                    + getGranularities());
+        }
+        TreeMap<LocalDateTime, Bar> instrumentBars = bars.get(index).get(instrumentId);
+        if (instrumentBars == null) return Collections.emptyList();
+
+        LocalDateTime fromBucket = bucketStart(from, index);
+        if (!to.isAfter(fromBucket)) return Collections.emptyList();
+
+        List<PriceBar> priceBars = new ArrayList<>();
+        instrumentBars.subMap(fromBucket, true, to, false).forEach((start, bar) ->
+                priceBars.add(bar.toPriceBar(instrumentId, start, granularity)));
+        return priceBars;
+    }
+
+    private Bar computeBar(Timeline timeline, LocalDateTime start, int index) {
+        Bar bar = new Bar();
+        timeline.forEachBetween(start, start.plusSeconds(granularitySeconds[index]),
+                versionedRecord -> bar.add(versionedRecord.priceRecord));
+        return bar;
+    }
+
+    private LocalDateTime bucketStart(LocalDateTime asOf, int index) {
+        long epochSecond = asOf.toEpochSecond(ZoneOffset.UTC);
+        long bucketSecond = Math.floorDiv(epochSecond, granularitySeconds[index]) * granularitySeconds[index];
+        return LocalDateTime.ofEpochSecond(bucketSecond, 0, ZoneOffset.UTC);
+    }
+}
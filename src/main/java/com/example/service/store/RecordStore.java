@@ -1,19 +1,84 @@
 package com.example.service.store;
 
+import com.example.service.price.PriceBar;
+
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.OptionalDouble;
+import java.util.concurrent.ExecutorService;
 
 /**
  * This interface represents a record storage that clients can use to store records
  * and request the latest record based on the given date and instrument id.
+ * Every call to {@link #store(List)} is a commit which makes all the given records visible at once and
+ * increments the commit version of the store.
  * @param <T> type of records to be stored
  */
 public interface RecordStore<T> {
     T getLatest(String instrumentId, LocalDateTime asOf);
 
-    void store(List<T> records);
+    /**
+     * Looks up only the price of the latest record as of the given date time, which is cheaper than
+     * {@link #getLatest(String, LocalDateTime)} since the record itself is not touched.
+     * @return the price, or an empty optional if there is no record
+     */
+    OptionalDouble getLatestPrice(String instrumentId, LocalDateTime asOf);
+
+    /**
+     * Looks up the latest record as of the given date time as the store knew it at an earlier commit version,
+     * i.e. ignoring the records committed after that version and returning the records they replaced instead.
+     * @throws IllegalArgumentException if a replaced record that the lookup needs is not retained anymore
+     */
+    T getLatest(String instrumentId, LocalDateTime asOf, long knownAt);
+
+    /**
+     * Reads a bar series from the rollups which the store maintains at commit time.
+     * @param granularity one of the rollup granularities the store is created with
+     * @return the bars of the buckets from the one containing from until to (exclusive), in time order, without
+     * the empty buckets
+     * @throws IllegalArgumentException if the store has no rollup at the given granularity
+     */
+    List<PriceBar> getBars(String instrumentId, Duration granularity, LocalDateTime from, LocalDateTime to);
+
+    /**
+     * @return the commit version of the stored records
+     */
+    long store(List<T> records);
+
+    /**
+     * Stores a large number of records with a single commit, e.g. to warm start the store from files.
+     * The records of an instrument must all be in the same partition, in commit order, so that the partitions can
+     * be indexed in parallel by the given executor before they are published at once.
+     * @return the commit version of the stored records
+     */
+    long storePartitions(List<? extends Iterable<T>> partitions, ExecutorService executor)
+            throws InterruptedException;
+
+    /**
+     * Opens a snapshot pinned to the last commit, whose lookups see that commit only and do not wait for the
+     * later commits. The snapshot must be closed, otherwise it is expired after the maximum snapshot age.
+     */
+    StoreSnapshot<T> openSnapshot();
+
+    /**
+     * @return the version of the last commit, zero if nothing is committed yet
+     */
+    long getVersion();
+
+    void addCommitListener(CommitListener<T> listener);
+
+    void removeCommitListener(CommitListener<T> listener);
 
     void dump();
 
+    /**
+     * @return the number of stored records, as of the last commit
+     */
     int size();
+
+    /**
+     * @return the statistics of the stored records as of the last commit, without waiting for a running commit
+     */
+    StoreStatistics getStatistics();
 }
@@ -0,0 +1,191 @@
+package com.example.service.store;
+
+import com.example.service.price.PriceRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Keeps track of the open snapshots of a store, so that the superseded records which they can still see are not
+ * pruned by the commits.
+ * [DESIGN DECISION]: The snapshots look up the timelines without taking the lock of the store. They see the records
+ * of their version only, since the records of the later commits have greater versions and the records which were
+ * superseded after their version are retained while they are open.
+ * [DESIGN DECISION]: A snapshot which is never closed would retain superseded records forever. The registry only
+ * references the snapshots weakly, so a snapshot that is garbage collected without being closed is released and
+ * reported at the next commit. A snapshot which is open for longer than the maximum age is expired, its lookups
+ * fail afterwards.
+ */
+final class SnapshotRegistry {
+    private final static Logger logger = LogManager.getLogger(SnapshotRegistry.class);
+
+    private final Duration maxSnapshotAge;
+    private final Set<Pin> pins = ConcurrentHashMap.newKeySet();
+    private final ReferenceQueue<PinnedSnapshot> collectedSnapshots = new ReferenceQueue<>();
+    private final AtomicLong leakedSnapshots = new AtomicLong();
+
+    private static final class Pin extends WeakReference<PinnedSnapshot> {
+        private final long version;
+        private final long openedAtNanos = System.nanoTime();
+        // where the snapshot was opened, only captured when debugging since it is costly
+        private final Throwable origin = logger.isDebugEnabled() ? new Throwable("Snapshot opened here") : null;
+        private volatile boolean expired;
+
+        private Pin(PinnedSnapshot snapshot, long version, ReferenceQueue<PinnedSnapshot> queue) {
+            super(snapshot, queue);
+            this.version = version;
+        }
+    }
+
+    private final class PinnedSnapshot implements StoreSnapshot<PriceRecord> {
+        private final Function<String, Timeline> timelines;
+        private final Supplier<Iterator<Timeline>> allTimelines;
+        private final Pin pin;
+        private volatile boolean closed;
+
+        private PinnedSnapshot(Function<String, Timeline> timelines, Supplier<Iterator<Timeline>> allTimelines,
+                               long version) {
+            this.timelines = timelines;
+            this.allTimelines = allTimelines;
+            this.pin = new Pin(this, version, collectedSnapshots);
+        }
+
+        @Override
+        public long getVersion() {
+            return pin.version;
+        }
+
+        @Override
+        public PriceRecord getLatest(String instrumentId, LocalDateTime asOf) {
+            checkUsable();
+            if (instrumentId == null || asOf == null) return null;
+
+            Timeline timeline = timelines.apply(instrumentId);
+            return timeline != null ? floorAsKnownAt(timeline, asOf) : null;
+        }
+
+        /**
+         * [DESIGN DECISION]: The timelines are iterated while the commits go on. The instruments added after the
+         * pinned version have no record visible at it, so they are skipped like the instruments without a record as
+         * of the date time.
+         */
+        @Override
+        public Iterator<PriceRecord> latestRecords(LocalDateTime asOf) {
+            checkUsable();
+            Iterator<Timeline> iterator = allTimelines.get();
+            return new Iterator<PriceRecord>() {
+                private PriceRecord next;
+
+                @Override
+                public boolean hasNext() {
+                    while (next == null && iterator.hasNext()) {
+                        next = floorAsKnownAt(iterator.next(), asOf);
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public PriceRecord next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    PriceRecord priceRecord = next;
+                    next = null;
+                    return priceRecord;
+                }
+            };
+        }
+
+        private PriceRecord floorAsKnownAt(Timeline timeline, LocalDateTime asOf) {
+            PriceRecord priceRecord;
+            try {
+                priceRecord = timeline.floorAsKnownAt(asOf, pin.version);
+            } catch (IllegalArgumentException e) {
+                checkUsable();
+                throw e;
+            }
+            // the retained records may have been pruned while the snapshot expired during the lookup
+            checkUsable();
+            return priceRecord;
+        }
+
+        private void checkUsable() {
+            if (closed) throw new IllegalStateException("The snapshot of version " + pin.version + " is closed");
+            if (pin.expired) {
+                throw new IllegalStateException("The snapshot of version " + pin.version + " is expired");
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            pins.remove(pin);
+            pin.clear();
+        }
+    }
+
+    SnapshotRegistry(Duration maxSnapshotAge) {
+        this.maxSnapshotAge = maxSnapshotAge;
+    }
+
+    /**
+     * Opens a snapshot pinned to the given version. Must be called while no commit is running, so that the version
+     * is not pruned before the snapshot is registered.
+     * @param timelines looks up the timeline of an instrument without taking the lock of the store
+     * @param allTimelines iterates the timelines of all the instruments without taking the lock of the store
+     */
+    StoreSnapshot<PriceRecord> open(long version, Function<String, Timeline> timelines,
+                                    Supplier<Iterator<Timeline>> allTimelines) {
+        PinnedSnapshot snapshot = new PinnedSnapshot(timelines, allTimelines, version);
+        pins.add(snapshot.pin);
+        return snapshot;
+    }
+
+    /**
+     * Releases the leaked and the expired snapshots.
+     * @return the oldest version pinned by an open snapshot, or Long.MAX_VALUE if there is none
+     */
+    long getOldestPinnedVersion() {
+        for (Reference<? extends PinnedSnapshot> reference = collectedSnapshots.poll(); reference != null;
+             reference = collectedSnapshots.poll()) {
+            Pin pin = (Pin) reference;
+            if (pins.remove(pin)) {
+                leakedSnapshots.incrementAndGet();
+                logger.warn("A snapshot of version {} was not closed before it was garbage collected", pin.version,
+                        pin.origin);
+            }
+        }
+        long now = System.nanoTime();
+        long oldestPinnedVersion = Long.MAX_VALUE;
+        for (Pin pin : pins) {
+            if (now - pin.openedAtNanos > maxSnapshotAge.toNanos()) {
+                pin.expired = true;
+                pins.remove(pin);
+                logger.warn("A snapshot of version {} was open for longer than {} and is expired", pin.version,
+                        maxSnapshotAge, pin.origin);
+            } else {
+                oldestPinnedVersion = Math.min(oldestPinnedVersion, pin.version);
+            }
+        }
+        return oldestPinnedVersion;
+    }
+
+    int getOpenSnapshots() {
+        return pins.size();
+    }
+
+    long getLeakedSnapshots() {
+        return leakedSnapshots.get();
+    }
+}
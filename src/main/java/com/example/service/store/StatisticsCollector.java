@@ -0,0 +1,158 @@
+package com.example.service.store;
+
+import com.example.service.price.PriceRecord;
+
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Maintains the statistics of a price record store while records are committed and takes the snapshots.
+ * The payloads of the stored records are deduplicated by the given {@link PayloadDeduplicator}.
+ * Not thread-safe, it is only used by the committing thread while the write lock of the store is held.
+ * [ASSUMPTION]: Records are never removed from the store, they can only be replaced by a record with the same
+ * instrument id and date time, so the counters and the date time range never shrink.
+ */
+class StatisticsCollector {
+    private final PayloadDeduplicator payloadDeduplicator;
+    // the records which superseded another one, in commit version order
+    private final ArrayDeque<VersionedPriceRecord> supersedingRecords = new ArrayDeque<>();
+    private int numberOfInstruments;
+    private long numberOfRecords;
+    private int maxRecordsPerInstrument;
+    // the element i counts the instruments with 2^i to 2^(i+1) - 1 records
+    private final long[] recordsPerInstrumentHistogram = new long[Integer.SIZE];
+    private LocalDateTime oldestAsOf;
+    private LocalDateTime newestAsOf;
+    private long directPayloadBytes;
+    private long heapPayloadBytes;
+
+    StatisticsCollector(PayloadDeduplicator payloadDeduplicator) {
+        this.payloadDeduplicator = payloadDeduplicator;
+    }
+
+    /**
+     * Puts the record, with its payload deduplicated, into the timeline of its instrument as of the given commit
+     * version and accounts it. The replaced record is kept as superseded by the stored one until it is pruned.
+     * @return the record replaced by the put, or null
+     */
+    VersionedPriceRecord put(Timeline.Writer timeline, PriceRecord priceRecord, long version) {
+        int timelineSize = timeline.size();
+        VersionedPriceRecord storedRecord
+                = new VersionedPriceRecord(payloadDeduplicator.intern(priceRecord), version);
+        // linked before the new timeline is built and published
+        VersionedPriceRecord replaced = timeline.put(storedRecord);
+        storedRecord.supersede(replaced);
+        recordPut(timelineSize, replaced != null ? replaced.priceRecord : null, storedRecord.priceRecord);
+        if (replaced != null) {
+            // the replaced record keeps its payload reference until it is pruned
+            supersedingRecords.add(storedRecord);
+        }
+        return replaced;
+    }
+
+    /**
+     * Drops the superseded records which are not needed anymore by the lookups from the given version on, and
+     * releases their payloads.
+     */
+    void pruneSuperseded(long retentionHorizon) {
+        // a record superseded by another one was visible until the version of the other one
+        while (!supersedingRecords.isEmpty() && supersedingRecords.peek().getVersion() <= retentionHorizon) {
+            VersionedPriceRecord pruned = supersedingRecords.poll().pruneSuperseded();
+            if (pruned != null) {
+                payloadDeduplicator.release(pruned.priceRecord);
+            }
+        }
+    }
+
+    /**
+     * Accounts a whole timeline which is added for a new instrument as of the given commit version, deduplicating
+     * the payloads of its records. Must be called before the timeline is published.
+     * @param records the records of the timeline in date time order
+     * @return the timeline to publish, whose records have their payloads deduplicated
+     */
+    Timeline putTimeline(Collection<VersionedPriceRecord> records, Timeline timeline, long directBytes,
+                         long heapBytes, long version) {
+        if (payloadDeduplicator != PayloadDeduplicator.NONE) {
+            List<VersionedPriceRecord> internedRecords = new ArrayList<>(records.size());
+            records.forEach(versionedRecord -> internedRecords.add(
+                    new VersionedPriceRecord(payloadDeduplicator.intern(versionedRecord.priceRecord), version)));
+            timeline = Timeline.of(internedRecords);
+        } else {
+            records.forEach(versionedRecord -> versionedRecord.setVersion(version));
+        }
+        if (timeline.size() > 0) {
+            recordTimeline(timeline.size(), directBytes, heapBytes, timeline.first().priceRecord.asOf,
+                    timeline.last().priceRecord.asOf);
+        }
+        return timeline;
+    }
+
+    /**
+     * Accounts a record put into the timeline of its instrument.
+     * @param timelineSize the size of the timeline before the put
+     * @param replaced the record replaced by the put, or null
+     */
+    private void recordPut(int timelineSize, PriceRecord replaced, PriceRecord priceRecord) {
+        addPayload(priceRecord, 1);
+        if (replaced != null) {
+            addPayload(replaced, -1);
+            return;
+        }
+        resizeTimeline(timelineSize, timelineSize + 1);
+        numberOfRecords++;
+        includeAsOf(priceRecord.asOf, priceRecord.asOf);
+    }
+
+    /**
+     * Accounts a whole timeline which is added for a new instrument.
+     */
+    private void recordTimeline(int timelineSize, long directBytes, long heapBytes, LocalDateTime first,
+                                LocalDateTime last) {
+        if (timelineSize == 0) return;
+        resizeTimeline(0, timelineSize);
+        numberOfRecords += timelineSize;
+        directPayloadBytes += directBytes;
+        heapPayloadBytes += heapBytes;
+        includeAsOf(first, last);
+    }
+
+    StoreStatistics snapshot(long version, SnapshotRegistry snapshots) {
+        int histogramLength = recordsPerInstrumentHistogram.length;
+        while (histogramLength > 0 && recordsPerInstrumentHistogram[histogramLength - 1] == 0) histogramLength--;
+        return new StoreStatistics(version, numberOfInstruments, numberOfRecords, maxRecordsPerInstrument,
+                Arrays.copyOf(recordsPerInstrumentHistogram, histogramLength), oldestAsOf, newestAsOf,
+                directPayloadBytes, heapPayloadBytes, payloadDeduplicator.getDedupedRecords(),
+                payloadDeduplicator.getSavedBytes(), snapshots.getOpenSnapshots(), snapshots.getLeakedSnapshots());
+    }
+
+    private void resizeTimeline(int oldSize, int newSize) {
+        if (oldSize == 0) {
+            numberOfInstruments++;
+        } else {
+            recordsPerInstrumentHistogram[bucket(oldSize)]--;
+        }
+        recordsPerInstrumentHistogram[bucket(newSize)]++;
+        maxRecordsPerInstrument = Math.max(maxRecordsPerInstrument, newSize);
+    }
+
+    private void addPayload(PriceRecord priceRecord, int sign) {
+        if (priceRecord.isPayloadDirect()) {
+            directPayloadBytes += sign * priceRecord.getPayloadSize();
+        } else {
+            heapPayloadBytes += sign * priceRecord.getPayloadSize();
+        }
+    }
+
+    private void includeAsOf(LocalDateTime first, LocalDateTime last) {
+        if (oldestAsOf == null || first.isBefore(oldestAsOf)) oldestAsOf = first;
+        if (newestAsOf == null || last.isAfter(newestAsOf)) newestAsOf = last;
+    }
+
+    private static int bucket(int size) {
+        return Integer.SIZE - 1 - Integer.numberOfLeadingZeros(size);
+    }
+}
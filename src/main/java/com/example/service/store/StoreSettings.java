@@ -0,0 +1,61 @@
+package com.example.service.store;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The optional features of a price record store, which all cost some work at commit time and are off by default.
+ */
+public final class StoreSettings {
+    /**
+     * The granularities of the bars which are maintained for each instrument.
+     */
+    public final List<Duration> rollupGranularities;
+    /**
+     * Whether the records with identical payloads share a single copy of it, which saves memory when unchanged
+     * payloads are resent but hashes every stored payload.
+     */
+    public final boolean deduplicatePayloads;
+    /**
+     * The number of commits that a superseded record is kept for after it is replaced by a record with the same
+     * instrument id and date time, so that lookups as known at an earlier commit version can return it.
+     */
+    public final long supersededRetention;
+    /**
+     * The time after which an open snapshot is expired, so that a snapshot which is never closed does not retain the
+     * superseded records forever.
+     */
+    public final Duration maxSnapshotAge;
+
+    public StoreSettings(List<Duration> rollupGranularities, boolean deduplicatePayloads, long supersededRetention,
+                         Duration maxSnapshotAge) {
+        if (supersededRetention < 0) throw new IllegalArgumentException("Negative retention " + supersededRetention);
+        this.rollupGranularities = Collections.unmodifiableList(rollupGranularities);
+        this.deduplicatePayloads = deduplicatePayloads;
+        this.supersededRetention = supersededRetention;
+        this.maxSnapshotAge = maxSnapshotAge;
+    }
+
+    public static StoreSettings defaults() {
+        return new StoreSettings(Collections.emptyList(), false, 0, Duration.ofMinutes(10));
+    }
+
+    public StoreSettings withRollupGranularities(Duration... rollupGranularities) {
+        return new StoreSettings(Arrays.asList(rollupGranularities.clone()), deduplicatePayloads,
+                supersededRetention, maxSnapshotAge);
+    }
+
+    public StoreSettings withDeduplicatePayloads(boolean deduplicatePayloads) {
+        return new StoreSettings(rollupGranularities, deduplicatePayloads, supersededRetention, maxSnapshotAge);
+    }
+
+    public StoreSettings withSupersededRetention(long supersededRetention) {
+        return new StoreSettings(rollupGranularities, deduplicatePayloads, supersededRetention, maxSnapshotAge);
+    }
+
+    public StoreSettings withMaxSnapshotAge(Duration maxSnapshotAge) {
+        return new StoreSettings(rollupGranularities, deduplicatePayloads, supersededRetention, maxSnapshotAge);
+    }
+}
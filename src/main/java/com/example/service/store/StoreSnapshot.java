@@ -0,0 +1,35 @@
+package com.example.service.store;
+
+import java.time.LocalDateTime;
+import java.util.Iterator;
+
+/**
+ * A read-only view of a record store pinned to one commit version, so that many lookups see the same commits.
+ * The records which were replaced after the pinned version are retained until the snapshot is closed.
+ * @param <T> type of the stored records
+ */
+public interface StoreSnapshot<T> extends AutoCloseable {
+    /**
+     * @return the commit version that the snapshot is pinned to
+     */
+    long getVersion();
+
+    /**
+     * @return the latest record as of the given date time, as it was visible at the pinned version
+     * @throws IllegalStateException if the snapshot is closed or expired
+     */
+    T getLatest(String instrumentId, LocalDateTime asOf);
+
+    /**
+     * Iterates the latest record of every instrument as of the given date time, as it was visible at the pinned
+     * version, in no particular order. The instruments without a record as of that date time are skipped.
+     * @throws IllegalStateException if the snapshot is closed or expired, also while iterating
+     */
+    Iterator<T> latestRecords(LocalDateTime asOf);
+
+    /**
+     * Releases the pinned version, closing a snapshot twice has no effect.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,153 @@
+package com.example.service.store;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+/**
+ * An immutable snapshot of the statistics of a record store, taken at a commit.
+ * [DESIGN DECISION]: The statistics are maintained incrementally by the commits and a new snapshot is published
+ * at the end of each commit, so that reading them is O(1) and never contends with the commits.
+ */
+public final class StoreStatistics {
+    static final StoreStatistics EMPTY = new StoreStatistics(0, 0, 0, 0, new long[0], null, null, 0, 0, 0, 0, 0, 0);
+
+    private final long version;
+    private final int numberOfInstruments;
+    private final long numberOfRecords;
+    private final int maxRecordsPerInstrument;
+    private final long[] recordsPerInstrumentHistogram;
+    private final LocalDateTime oldestAsOf;
+    private final LocalDateTime newestAsOf;
+    private final long directPayloadBytes;
+    private final long heapPayloadBytes;
+    private final long dedupedRecords;
+    private final long dedupSavedBytes;
+    private final int openSnapshots;
+    private final long leakedSnapshots;
+
+    StoreStatistics(long version, int numberOfInstruments, long numberOfRecords, int maxRecordsPerInstrument,
+                    long[] recordsPerInstrumentHistogram, LocalDateTime oldestAsOf, LocalDateTime newestAsOf,
+                    long directPayloadBytes, long heapPayloadBytes, long dedupedRecords, long dedupSavedBytes,
+                    int openSnapshots, long leakedSnapshots) {
+        this.version = version;
+        this.numberOfInstruments = numberOfInstruments;
+        this.numberOfRecords = numberOfRecords;
+        this.maxRecordsPerInstrument = maxRecordsPerInstrument;
+        this.recordsPerInstrumentHistogram = recordsPerInstrumentHistogram;
+        this.oldestAsOf = oldestAsOf;
+        this.newestAsOf = newestAsOf;
+        this.directPayloadBytes = directPayloadBytes;
+        this.heapPayloadBytes = heapPayloadBytes;
+        this.dedupedRecords = dedupedRecords;
+        this.dedupSavedBytes = dedupSavedBytes;
+        this.openSnapshots = openSnapshots;
+        this.leakedSnapshots = leakedSnapshots;
+    }
+
+    /**
+     * @return the commit version that the statistics are taken at
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public int getNumberOfInstruments() {
+        return numberOfInstruments;
+    }
+
+    public long getNumberOfRecords() {
+        return numberOfRecords;
+    }
+
+    public int getMaxRecordsPerInstrument() {
+        return maxRecordsPerInstrument;
+    }
+
+    public double getAverageRecordsPerInstrument() {
+        return numberOfInstruments == 0 ? 0 : (double) numberOfRecords / numberOfInstruments;
+    }
+
+    /**
+     * @return the number of instruments by their number of records, the element i counts the instruments
+     * which have between 2^i and 2^(i+1) - 1 records
+     */
+    public long[] getRecordsPerInstrumentHistogram() {
+        return recordsPerInstrumentHistogram.clone();
+    }
+
+    /**
+     * @return the earliest date time of the stored records, or null if there is none
+     */
+    public LocalDateTime getOldestAsOf() {
+        return oldestAsOf;
+    }
+
+    /**
+     * @return the latest date time of the stored records, or null if there is none
+     */
+    public LocalDateTime getNewestAsOf() {
+        return newestAsOf;
+    }
+
+    /**
+     * @return the number of bytes allocated for the payloads in direct buffers
+     */
+    public long getDirectPayloadBytes() {
+        return directPayloadBytes;
+    }
+
+    /**
+     * @return the number of bytes allocated for the payloads in heap buffers
+     */
+    public long getHeapPayloadBytes() {
+        return heapPayloadBytes;
+    }
+
+    /**
+     * @return the number of records which share the payload of another record, zero without deduplication
+     */
+    public long getDedupedRecords() {
+        return dedupedRecords;
+    }
+
+    /**
+     * @return the number of payload bytes which are not allocated thanks to deduplication
+     */
+    public long getDedupSavedBytes() {
+        return dedupSavedBytes;
+    }
+
+    /**
+     * @return the payload bytes of the records divided by the bytes actually allocated for them, 1 without
+     * deduplication
+     */
+    public double getDedupRatio() {
+        long payloadBytes = directPayloadBytes + heapPayloadBytes;
+        return payloadBytes == dedupSavedBytes ? 1 : (double) payloadBytes / (payloadBytes - dedupSavedBytes);
+    }
+
+    /**
+     * @return the number of snapshots which were open at the commit
+     */
+    public int getOpenSnapshots() {
+        return openSnapshots;
+    }
+
+    /**
+     * @return the number of snapshots which were garbage collected without being closed until the commit
+     */
+    public long getLeakedSnapshots() {
+        return leakedSnapshots;
+    }
+
+    @Override
+    public String toString() {
+        return "StoreStatistics[version=" + version + ", instruments=" + numberOfInstruments
+                + ", records=" + numberOfRecords + ", maxRecordsPerInstrument=" + maxRecordsPerInstrument
+                + ", recordsPerInstrumentHistogram=" + Arrays.toString(recordsPerInstrumentHistogram)
+                + ", oldestAsOf=" + oldestAsOf + ", newestAsOf=" + newestAsOf
+                + ", directPayloadBytes=" + directPayloadBytes + ", heapPayloadBytes=" + heapPayloadBytes
+                + ", dedupedRecords=" + dedupedRecords + ", dedupSavedBytes=" + dedupSavedBytes
+                + ", openSnapshots=" + openSnapshots + ", leakedSnapshots=" + leakedSnapshots + "]";
+    }
+}
@@ -0,0 +1,325 @@
+package com.example.service.store;
+
+import com.example.service.price.PriceBar;
+import com.example.service.price.PriceRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A price record store which spreads the instruments over stripes, each of them guarded by its own read-write lock,
+ * so that the lookups of an instrument only wait for the commits which touch its stripe.
+ * [DESIGN DECISION]: A commit locks all the stripes it touches, in index order, before it changes any of them and
+ * releases them only after all of its records are stored. Since a lookup holds the lock of one stripe, it sees
+ * either none or all of the records of a commit, like with {@link PriceRecordStore}.
+ * [DESIGN DECISION]: The commits are serialized by a commit lock, so that the versions are assigned and the commit
+ * listeners are called in commit order. Only the lookups benefit from the stripes, not the commits.
+ */
+public class StripedPriceRecordStore implements RecordStore<PriceRecord> {
+    private final static Logger logger = LogManager.getLogger(StripedPriceRecordStore.class);
+    public static final int DEFAULT_STRIPES = 16;
+
+    private final Stripe[] stripes;
+    private final int mask;
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final List<CommitListener<PriceRecord>> commitListeners = new CopyOnWriteArrayList<>();
+    // incremented by each commit while the commit lock is held, volatile to be read without the lock
+    private volatile long version;
+    // updated by the commits while the commit lock is held, its snapshot is published at the end of each commit
+    private final StatisticsCollector statisticsCollector;
+    private volatile StoreStatistics statistics = StoreStatistics.EMPTY;
+    private final long supersededRetention;
+    private final SnapshotRegistry snapshots;
+
+    private static final class Stripe {
+        // concurrent so that the pinned snapshots can look up the timelines without the lock
+        private final Map<String, Timeline> instrumentPrices = new ConcurrentHashMap<>();
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        // the bars of the instruments of this stripe, guarded by its lock
+        private final PriceRollups rollups;
+
+        private Stripe(StoreSettings settings) {
+            rollups = PriceRollups.of(settings.rollupGranularities);
+        }
+    }
+
+    public StripedPriceRecordStore() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param numberOfStripes the number of stripes, rounded up to a power of two
+     */
+    public StripedPriceRecordStore(int numberOfStripes) {
+        this(numberOfStripes, StoreSettings.defaults());
+    }
+
+    /**
+     * @param numberOfStripes the number of stripes, rounded up to a power of two
+     * @param settings the optional features, the shared payload copies are guarded by the commit lock
+     */
+    public StripedPriceRecordStore(int numberOfStripes, StoreSettings settings) {
+        if (numberOfStripes < 1 || numberOfStripes > 1 << 16) {
+            throw new IllegalArgumentException("Invalid number of stripes " + numberOfStripes);
+        }
+        int size = Math.max(1, Integer.highestOneBit(numberOfStripes - 1) << 1);
+        stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe(settings);
+        }
+        mask = size - 1;
+        statisticsCollector = new StatisticsCollector(
+                settings.deduplicatePayloads ? new PayloadDeduplicator() : PayloadDeduplicator.NONE);
+        supersededRetention = settings.supersededRetention;
+        snapshots = new SnapshotRegistry(settings.maxSnapshotAge);
+    }
+
+    private int stripeIndex(String instrumentId) {
+        int hash = instrumentId.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    @Override
+    public PriceRecord getLatest(String instrumentId, LocalDateTime asOf) {
+        if (instrumentId == null || asOf == null) return null;
+
+        Stripe stripe = stripes[stripeIndex(instrumentId)];
+        stripe.lock.readLock().lock();
+        try {
+            Timeline timeline = stripe.instrumentPrices.get(instrumentId);
+            if (timeline != null) {
+                VersionedPriceRecord versionedRecord = timeline.floor(asOf);
+                return versionedRecord != null ? versionedRecord.priceRecord : null;
+            }
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+
+        return null;
+    }
+
+    @Override
+    public OptionalDouble getLatestPrice(String instrumentId, LocalDateTime asOf) {
+        if (instrumentId == null || asOf == null) return OptionalDouble.empty();
+
+        Stripe stripe = stripes[stripeIndex(instrumentId)];
+        stripe.lock.readLock().lock();
+        try {
+            Timeline timeline = stripe.instrumentPrices.get(instrumentId);
+            return timeline != null ? timeline.floorPrice(asOf) : OptionalDouble.empty();
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public PriceRecord getLatest(String instrumentId, LocalDateTime asOf, long knownAt) {
+        if (instrumentId == null || asOf == null) return null;
+
+        Stripe stripe = stripes[stripeIndex(instrumentId)];
+        stripe.lock.readLock().lock();
+        try {
+            Timeline timeline = stripe.instrumentPrices.get(instrumentId);
+            return timeline != null ? timeline.floorAsKnownAt(asOf, knownAt) : null;
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<PriceBar> getBars(String instrumentId, Duration granularity, LocalDateTime from, LocalDateTime to) {
+        if (instrumentId == null || from == null || to == null) return Collections.emptyList();
+
+        Stripe stripe = stripes[stripeIndex(instrumentId)];
+        stripe.lock.readLock().lock();
+        try {
+            return stripe.rollups.getBars(instrumentId, granularity, from, to);
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long store(List<PriceRecord> priceRecords) {
+        // group the records by stripe before taking any lock, keeping their order within each stripe
+        // null for the stripes without records
+        List<List<PriceRecord>> stripeRecords = new ArrayList<>(Collections.nCopies(stripes.length, null));
+        for (PriceRecord priceRecord : priceRecords) {
+            int index = stripeIndex(priceRecord.instrumentId);
+            if (stripeRecords.get(index) == null) {
+                stripeRecords.set(index, new ArrayList<>());
+            }
+            stripeRecords.get(index).add(priceRecord);
+        }
+
+        commitLock.lock();
+        try {
+            Instant start = Instant.now();
+            lockStripes(stripeRecords);
+            try {
+                long committingVersion = version + 1;
+                for (int i = 0; i < stripes.length; i++) {
+                    if (stripeRecords.get(i) == null) continue;
+                    Map<String, Timeline> instrumentPrices = stripes[i].instrumentPrices;
+                    PriceRollups rollups = stripes[i].rollups;
+                    Map<String, Timeline.Writer> writers = new HashMap<>();
+                    stripeRecords.get(i).forEach(priceRecord -> {
+                        Timeline.Writer writer = writers.computeIfAbsent(priceRecord.instrumentId,
+                                k -> instrumentPrices.getOrDefault(k, Timeline.EMPTY).writer());
+                        rollups.onPut(priceRecord, statisticsCollector.put(writer, priceRecord, committingVersion));
+                    });
+                    writers.forEach((instrumentId, writer) -> instrumentPrices.put(instrumentId, writer.build()));
+                    rollups.recomputeStaleBars(instrumentPrices::get);
+                }
+                logger.debug("STORE completed in {} ms", Duration.between(start, Instant.now()).toMillis());
+                long committedVersion = commit();
+                commitListeners.forEach(listener -> listener.onCommit(committedVersion, priceRecords));
+                return committedVersion;
+            } finally {
+                unlockStripes(stripeRecords);
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    @Override
+    public long storePartitions(List<? extends Iterable<PriceRecord>> partitions, ExecutorService executor)
+            throws InterruptedException {
+        // all the stripes roll up at the same granularities, so the bars can be computed with any of them
+        List<Map<String, IndexedTimeline>> partitionTimelines = IndexedTimeline.indexPartitions(partitions, executor,
+                stripes[0].rollups);
+
+        // the records are only flattened when someone listens to them
+        List<PriceRecord> committedRecords = new ArrayList<>();
+        if (!commitListeners.isEmpty()) {
+            partitions.forEach(partition -> partition.forEach(committedRecords::add));
+        }
+
+        commitLock.lock();
+        try {
+            lockStripes(null);
+            try {
+                long committingVersion = version + 1;
+                partitionTimelines.forEach(timelines -> timelines.forEach((instrumentId, timeline) -> {
+                    Stripe stripe = stripes[stripeIndex(instrumentId)];
+                    timeline.mergeInto(stripe.instrumentPrices, instrumentId, statisticsCollector, stripe.rollups,
+                            committingVersion);
+                }));
+                for (Stripe stripe : stripes) {
+                    stripe.rollups.recomputeStaleBars(stripe.instrumentPrices::get);
+                }
+                long committedVersion = commit();
+                commitListeners.forEach(listener -> listener.onCommit(committedVersion, committedRecords));
+                return committedVersion;
+            } finally {
+                unlockStripes(null);
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Locks the stripes which have records, or all of them if records is null, in index order.
+     */
+    private void lockStripes(List<List<PriceRecord>> stripeRecords) {
+        for (int i = 0; i < stripes.length; i++) {
+            if (stripeRecords == null || stripeRecords.get(i) != null) {
+                stripes[i].lock.writeLock().lock();
+            }
+        }
+    }
+
+    private void unlockStripes(List<List<PriceRecord>> stripeRecords) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            if (stripeRecords == null || stripeRecords.get(i) != null) {
+                stripes[i].lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Increments the version, prunes the superseded records which are not needed anymore and publishes the
+     * statistics of the commit, must be called under the commit lock.
+     */
+    private long commit() {
+        long committedVersion = ++version;
+        statisticsCollector.pruneSuperseded(
+                Math.min(committedVersion - supersededRetention, snapshots.getOldestPinnedVersion()));
+        statistics = statisticsCollector.snapshot(committedVersion, snapshots);
+        return committedVersion;
+    }
+
+    /**
+     * [DESIGN DECISION]: The commit lock is only taken to open the snapshot, so that no commit is running while its
+     * version is pinned. Its lookups do not take any lock.
+     */
+    @Override
+    public StoreSnapshot<PriceRecord> openSnapshot() {
+        commitLock.lock();
+        try {
+            return snapshots.open(version,
+                    instrumentId -> stripes[stripeIndex(instrumentId)].instrumentPrices.get(instrumentId),
+                    () -> Arrays.stream(stripes).flatMap(stripe -> stripe.instrumentPrices.values().stream())
+                            .iterator());
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public void addCommitListener(CommitListener<PriceRecord> listener) {
+        commitListeners.add(listener);
+    }
+
+    @Override
+    public void removeCommitListener(CommitListener<PriceRecord> listener) {
+        commitListeners.remove(listener);
+    }
+
+    @Override
+    public void dump() {
+        for (Stripe stripe : stripes) {
+            stripe.lock.readLock().lock();
+            try {
+                stripe.instrumentPrices.forEach((instrument, timeline) -> {
+                    System.out.println("----------------- " + instrument + " -----------------");
+                    timeline.forEach(versionedRecord -> System.out.println(versionedRecord.priceRecord));
+                });
+            } finally {
+                stripe.lock.readLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(statistics.getNumberOfRecords(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public StoreStatistics getStatistics() {
+        return statistics;
+    }
+}
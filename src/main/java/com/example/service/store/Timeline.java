@@ -0,0 +1,365 @@
+package com.example.service.store;
+
+import com.example.service.price.PriceRecord;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.function.Consumer;
+
+/**
+ * The records of an instrument sorted by their date time. A timeline is immutable, a commit builds a new timeline
+ * with a {@link Writer} and publishes it at once.
+ * [DESIGN DECISION]: The records are kept in chunks of at most {@link #CHUNK_SIZE} records, with their date times and
+ * prices in parallel primitive arrays. A lookup is two binary searches over primitive arrays instead of a walk through
+ * the nodes of a tree, and a price-only lookup reads the price from its column without touching the record. A commit
+ * copies only the chunks it changes and the array of the chunks. Since a timeline never changes after it is
+ * published, the pinned snapshots can look it up without taking the lock of the store.
+ */
+final class Timeline {
+    static final int CHUNK_SIZE = 64;
+    static final Timeline EMPTY = new Timeline(new Chunk[0], 0);
+
+    private final Chunk[] chunks;
+    // the date time of the first record of each chunk
+    private final long[] firstSeconds;
+    private final int[] firstNanos;
+    private final int size;
+
+    private static final class Chunk {
+        private final long[] seconds;
+        private final int[] nanos;
+        private final double[] prices;
+        private final VersionedPriceRecord[] entries;
+
+        private Chunk(long[] seconds, int[] nanos, double[] prices, VersionedPriceRecord[] entries) {
+            this.seconds = seconds;
+            this.nanos = nanos;
+            this.prices = prices;
+            this.entries = entries;
+        }
+
+        /**
+         * Adds chunks of at most {@link #CHUNK_SIZE} records of about the same size with the given records.
+         */
+        private static void split(List<Chunk> chunks, long[] seconds, int[] nanos, double[] prices,
+                                  VersionedPriceRecord[] entries, int length) {
+            if (length == entries.length && length <= CHUNK_SIZE) {
+                chunks.add(new Chunk(seconds, nanos, prices, entries));
+                return;
+            }
+            int pieces = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            for (int k = 0; k < pieces; k++) {
+                int from = (int) ((long) k * length / pieces);
+                int to = (int) ((long) (k + 1) * length / pieces);
+                chunks.add(new Chunk(Arrays.copyOfRange(seconds, from, to), Arrays.copyOfRange(nanos, from, to),
+                        Arrays.copyOfRange(prices, from, to), Arrays.copyOfRange(entries, from, to)));
+            }
+        }
+
+        /**
+         * Adds the chunks of the records of this chunk merged with the given put records, which replace the records
+         * with the same date time.
+         */
+        private void merge(List<Chunk> chunks, Puts puts, int from, int to) {
+            int capacity = entries.length + to - from;
+            long[] mergedSeconds = new long[capacity];
+            int[] mergedNanos = new int[capacity];
+            double[] mergedPrices = new double[capacity];
+            VersionedPriceRecord[] mergedEntries = new VersionedPriceRecord[capacity];
+            int length = 0;
+            int i = 0;
+            int j = from;
+            while (i < entries.length || j < to) {
+                int comparison = j == to ? -1 : i == entries.length ? 1
+                        : compare(seconds[i], nanos[i], puts.seconds[j], puts.nanos[j]);
+                if (comparison < 0) {
+                    mergedSeconds[length] = seconds[i];
+                    mergedNanos[length] = nanos[i];
+                    mergedPrices[length] = prices[i];
+                    mergedEntries[length++] = entries[i++];
+                } else {
+                    if (comparison == 0) i++;
+                    mergedSeconds[length] = puts.seconds[j];
+                    mergedNanos[length] = puts.nanos[j];
+                    mergedPrices[length] = puts.prices[j];
+                    mergedEntries[length++] = puts.entries[j++];
+                }
+            }
+            if (length < capacity && length <= CHUNK_SIZE) {
+                split(chunks, Arrays.copyOf(mergedSeconds, length), Arrays.copyOf(mergedNanos, length),
+                        Arrays.copyOf(mergedPrices, length), Arrays.copyOf(mergedEntries, length), length);
+            } else {
+                split(chunks, mergedSeconds, mergedNanos, mergedPrices, mergedEntries, length);
+            }
+        }
+    }
+
+    /**
+     * Records in date time order with their date times and prices as primitives.
+     */
+    private static final class Puts {
+        private final long[] seconds;
+        private final int[] nanos;
+        private final double[] prices;
+        private final VersionedPriceRecord[] entries;
+
+        private Puts(VersionedPriceRecord[] entries) {
+            this.entries = entries;
+            seconds = new long[entries.length];
+            nanos = new int[entries.length];
+            prices = new double[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                seconds[i] = seconds(entries[i].priceRecord.asOf);
+                nanos[i] = entries[i].priceRecord.asOf.getNano();
+                prices[i] = entries[i].priceRecord.getPrice();
+            }
+        }
+    }
+
+    private Timeline(Chunk[] chunks, int size) {
+        this.chunks = chunks;
+        this.size = size;
+        firstSeconds = new long[chunks.length];
+        firstNanos = new int[chunks.length];
+        for (int i = 0; i < chunks.length; i++) {
+            firstSeconds[i] = chunks[i].seconds[0];
+            firstNanos[i] = chunks[i].nanos[0];
+        }
+    }
+
+    /**
+     * @param sortedEntries records in date time order, without duplicate date times
+     */
+    static Timeline of(Collection<VersionedPriceRecord> sortedEntries) {
+        Puts records = new Puts(sortedEntries.toArray(new VersionedPriceRecord[0]));
+        List<Chunk> chunks = new ArrayList<>(records.entries.length / CHUNK_SIZE + 1);
+        for (int from = 0; from < records.entries.length; from += CHUNK_SIZE) {
+            int to = Math.min(records.entries.length, from + CHUNK_SIZE);
+            chunks.add(new Chunk(Arrays.copyOfRange(records.seconds, from, to),
+                    Arrays.copyOfRange(records.nanos, from, to), Arrays.copyOfRange(records.prices, from, to),
+                    Arrays.copyOfRange(records.entries, from, to)));
+        }
+        return new Timeline(chunks.toArray(new Chunk[0]), records.entries.length);
+    }
+
+    private static long seconds(LocalDateTime dateTime) {
+        return dateTime.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    private static int compare(long seconds1, int nanos1, long seconds2, int nanos2) {
+        int result = Long.compare(seconds1, seconds2);
+        return result != 0 ? result : Integer.compare(nanos1, nanos2);
+    }
+
+    /**
+     * @return the index of the last date time which is not after the given one, -1 if there is none
+     */
+    private static int floorIndex(long[] seconds, int[] nanos, int length, long targetSeconds, int targetNanos) {
+        int low = 0;
+        int high = length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (compare(seconds[middle], nanos[middle], targetSeconds, targetNanos) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    private int floorChunk(long targetSeconds, int targetNanos) {
+        return floorIndex(firstSeconds, firstNanos, chunks.length, targetSeconds, targetNanos);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the latest record as of the given date time, or null if there is none
+     */
+    VersionedPriceRecord floor(LocalDateTime asOf) {
+        long targetSeconds = seconds(asOf);
+        int targetNanos = asOf.getNano();
+        int c = floorChunk(targetSeconds, targetNanos);
+        if (c < 0) return null;
+        Chunk chunk = chunks[c];
+        return chunk.entries[floorIndex(chunk.seconds, chunk.nanos, chunk.entries.length, targetSeconds,
+                targetNanos)];
+    }
+
+    /**
+     * Looks up the price of the latest record as of the given date time from the primitive columns only, without
+     * touching the record itself.
+     * @return the price, or an empty optional if there is no record
+     */
+    OptionalDouble floorPrice(LocalDateTime asOf) {
+        long targetSeconds = seconds(asOf);
+        int targetNanos = asOf.getNano();
+        int c = floorChunk(targetSeconds, targetNanos);
+        if (c < 0) return OptionalDouble.empty();
+        Chunk chunk = chunks[c];
+        return OptionalDouble.of(chunk.prices[floorIndex(chunk.seconds, chunk.nanos, chunk.entries.length,
+                targetSeconds, targetNanos)]);
+    }
+
+    /**
+     * @return the record with the given date time, or null if there is none
+     */
+    VersionedPriceRecord get(LocalDateTime asOf) {
+        VersionedPriceRecord entry = floor(asOf);
+        return entry != null && entry.priceRecord.asOf.equals(asOf) ? entry : null;
+    }
+
+    /**
+     * Looks up the latest record as of the given date time as it was visible at a commit version. The records
+     * which were committed after that version are skipped.
+     * @throws IllegalArgumentException if a superseded record that the lookup needs is not retained anymore
+     */
+    PriceRecord floorAsKnownAt(LocalDateTime asOf, long knownAt) {
+        long targetSeconds = seconds(asOf);
+        int targetNanos = asOf.getNano();
+        int c = floorChunk(targetSeconds, targetNanos);
+        if (c < 0) return null;
+        int i = floorIndex(chunks[c].seconds, chunks[c].nanos, chunks[c].entries.length, targetSeconds, targetNanos);
+        while (true) {
+            VersionedPriceRecord entry = chunks[c].entries[i].asKnownAt(knownAt);
+            if (entry != null) return entry.priceRecord;
+            if (--i < 0) {
+                if (--c < 0) return null;
+                i = chunks[c].entries.length - 1;
+            }
+        }
+    }
+
+    VersionedPriceRecord first() {
+        return size == 0 ? null : chunks[0].entries[0];
+    }
+
+    VersionedPriceRecord last() {
+        if (size == 0) return null;
+        VersionedPriceRecord[] entries = chunks[chunks.length - 1].entries;
+        return entries[entries.length - 1];
+    }
+
+    void forEach(Consumer<VersionedPriceRecord> consumer) {
+        for (Chunk chunk : chunks) {
+            for (VersionedPriceRecord entry : chunk.entries) {
+                consumer.accept(entry);
+            }
+        }
+    }
+
+    /**
+     * Iterates the records from the given date time until the other one, exclusive, in date time order.
+     */
+    void forEachBetween(LocalDateTime from, LocalDateTime to, Consumer<VersionedPriceRecord> consumer) {
+        long fromSeconds = seconds(from);
+        long toSeconds = seconds(to);
+        for (int c = Math.max(0, floorChunk(fromSeconds, from.getNano())); c < chunks.length; c++) {
+            Chunk chunk = chunks[c];
+            for (int i = 0; i < chunk.entries.length; i++) {
+                if (compare(chunk.seconds[i], chunk.nanos[i], toSeconds, to.getNano()) >= 0) return;
+                if (compare(chunk.seconds[i], chunk.nanos[i], fromSeconds, from.getNano()) >= 0) {
+                    consumer.accept(chunk.entries[i]);
+                }
+            }
+        }
+    }
+
+    Writer writer() {
+        return new Writer(this);
+    }
+
+    /**
+     * Collects the records put into a timeline by a commit and builds the new timeline. Not thread-safe, it is
+     * only used by the committing thread.
+     */
+    static final class Writer {
+        private static final Comparator<VersionedPriceRecord> BY_AS_OF
+                = Comparator.comparing(versionedRecord -> versionedRecord.priceRecord.asOf);
+
+        private final Timeline base;
+        private final Map<LocalDateTime, VersionedPriceRecord> staged = new HashMap<>();
+        private int size;
+
+        private Writer(Timeline base) {
+            this.base = base;
+            this.size = base.size;
+        }
+
+        /**
+         * @return the number of records of the timeline with the records put so far
+         */
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return the replaced record with the same date time, or null
+         */
+        VersionedPriceRecord put(VersionedPriceRecord entry) {
+            LocalDateTime asOf = entry.priceRecord.asOf;
+            VersionedPriceRecord replaced = staged.put(asOf, entry);
+            if (replaced == null) {
+                replaced = base.get(asOf);
+                if (replaced == null) size++;
+            }
+            return replaced;
+        }
+
+        /**
+         * Merges the put records into the chunks which they fall into, the other chunks are shared with the base
+         * timeline.
+         */
+        Timeline build() {
+            if (staged.isEmpty()) return base;
+
+            VersionedPriceRecord[] entries = staged.values().toArray(new VersionedPriceRecord[0]);
+            Arrays.sort(entries, BY_AS_OF);
+            Puts puts = new Puts(entries);
+            List<Chunk> chunks = new ArrayList<>(base.chunks.length + entries.length / CHUNK_SIZE + 1);
+            int copied = 0;
+            int from = 0;
+            while (from < entries.length) {
+                int target = Math.max(0, base.floorChunk(puts.seconds[from], puts.nanos[from]));
+                while (copied < target) {
+                    chunks.add(base.chunks[copied++]);
+                }
+                // the put records which fall into the target chunk, i.e. before the first record of the next one
+                int to = from + 1;
+                if (target + 1 < base.chunks.length) {
+                    while (to < entries.length && compare(puts.seconds[to], puts.nanos[to],
+                            base.firstSeconds[target + 1], base.firstNanos[target + 1]) < 0) {
+                        to++;
+                    }
+                } else {
+                    to = entries.length;
+                }
+
+                if (target < base.chunks.length) {
+                    base.chunks[target].merge(chunks, puts, from, to);
+                } else {
+                    Chunk.split(chunks, Arrays.copyOfRange(puts.seconds, from, to),
+                            Arrays.copyOfRange(puts.nanos, from, to), Arrays.copyOfRange(puts.prices, from, to),
+                            Arrays.copyOfRange(entries, from, to), to - from);
+                }
+                copied = target + 1;
+                from = to;
+            }
+            while (copied < base.chunks.length) {
+                chunks.add(base.chunks[copied++]);
+            }
+            return new Timeline(chunks.toArray(new Chunk[0]), size);
+        }
+    }
+}
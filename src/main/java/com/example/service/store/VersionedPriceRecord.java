@@ -0,0 +1,78 @@
+package com.example.service.store;
+
+import com.example.service.price.PriceRecord;
+
+/**
+ * A stored price record with the commit version which made it visible and the record with the same instrument id
+ * and date time that it superseded, so that the store can tell what it knew at an earlier commit version.
+ * [DESIGN DECISION]: The versions are kept by the entries of the timelines rather than by a separate index, so that
+ * the lookups of the latest prices are the same floor lookups as before, and the stored records are the uploaded
+ * ones. Only the corrected records have a chain of superseded records, which is pruned once no lookup within the
+ * retention or pinned snapshot needs it anymore.
+ * [DESIGN DECISION]: The version is assigned before the record is published to the timeline. The chain is linked
+ * before the record is published and pruned by the committing thread only, it is volatile since the pinned
+ * snapshots walk it without taking the lock of the store.
+ */
+final class VersionedPriceRecord {
+    final PriceRecord priceRecord;
+    private long version;
+    private volatile VersionedPriceRecord superseded;
+    // whether the records superseded by this one are dropped, so the versions before this one are unknown
+    private volatile boolean supersededPruned;
+
+    VersionedPriceRecord(PriceRecord priceRecord, long version) {
+        this.priceRecord = priceRecord;
+        this.version = version;
+    }
+
+    /**
+     * @return the commit version which made this record visible, the version until which the superseded record
+     * was visible
+     */
+    long getVersion() {
+        return version;
+    }
+
+    void setVersion(long version) {
+        this.version = version;
+    }
+
+    /**
+     * Links the record replaced by this one, before this one is published.
+     */
+    void supersede(VersionedPriceRecord replaced) {
+        superseded = replaced;
+    }
+
+    /**
+     * Drops the records superseded by this one.
+     * @return the record superseded by this one, which is dropped, or null
+     */
+    VersionedPriceRecord pruneSuperseded() {
+        VersionedPriceRecord pruned = superseded;
+        // flagged before unlinked, so that a lookup which finds no link knows whether it is pruned
+        supersededPruned = true;
+        superseded = null;
+        return pruned;
+    }
+
+    /**
+     * @return the version of this record which was visible at the given commit version, or null if there was none
+     * @throws IllegalArgumentException if that version is not retained anymore
+     */
+    VersionedPriceRecord asKnownAt(long knownAt) {
+        VersionedPriceRecord record = this;
+        while (record.version > knownAt) {
+            VersionedPriceRecord next = record.superseded;
+            if (next == null) {
+                if (record.supersededPruned) {
+                    throw new IllegalArgumentException("The price of " + priceRecord.instrumentId + " at "
+                            + priceRecord.asOf + " known at version " + knownAt + " is not retained anymore");
+                }
+                return null;
+            }
+            record = next;
+        }
+        return record;
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.service.io;
+
+import com.example.service.price.LastValuePriceService;
+import com.example.service.price.PriceBar;
+import com.example.service.price.PriceRecord;
+import com.example.service.store.PriceRecordStore;
+import com.example.service.store.StoreSettings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+public class WarmStartLoaderTest {
+    private final static Logger logger = LogManager.getLogger(WarmStartLoaderTest.class);
+    private static final LocalDateTime T0 = LocalDateTime.of(2021, 1, 1, 0, 0, 0);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static PriceRecord newPriceRecord(String instrumentId, LocalDateTime asOf, double price, int payloadSize) {
+        return new PriceRecord(instrumentId, asOf, ByteBuffer.allocateDirect(payloadSize).putDouble(price));
+    }
+
+    private Path writeFile(String fileName, PriceFileFormat format, PriceRecord... priceRecords) throws IOException {
+        Path file = folder.getRoot().toPath().resolve(fileName);
+        try (PriceFileWriter writer = new PriceFileWriter(file, format)) {
+            for (PriceRecord priceRecord : priceRecords) {
+                writer.write(priceRecord);
+            }
+        }
+        return file;
+    }
+
+    @Test
+    public void testLaterFilesReplaceEarlierOnes() throws IOException {
+        writeFile("1.lvps", PriceFileFormat.BINARY,
+                newPriceRecord("A", T0, 1.0, 1024),
+                newPriceRecord("A", T0.plusHours(1), 2.0, 1024),
+                newPriceRecord("B", T0, 10.0, 16));
+        writeFile("2.csv", PriceFileFormat.CSV,
+                newPriceRecord("A", T0.plusHours(1), 3.0, 8),
+                newPriceRecord("C", T0.plusHours(2), 100.5, 8));
+        writeFile("ignored.txt", PriceFileFormat.CSV, newPriceRecord("D", T0, 1.0, 8));
+
+        LastValuePriceService service = LastValuePriceService.builder()
+                .recordStore(new PriceRecordStore(StoreSettings.defaults().withRollupGranularities(Duration.ofDays(1))))
+                .build();
+        Assert.assertEquals(5, service.warmStart(folder.getRoot().toPath()));
+        Assert.assertEquals(4, service.getNumberOfPriceRecords());
+        Assert.assertEquals(1, service.getCommitVersion());
+
+        Assert.assertEquals(1.0, service.getLastPrice("A", T0.plusMinutes(30)).getPrice(), 0);
+        Assert.assertEquals(1024, service.getLastPrice("A", T0.plusMinutes(30)).getPayloadSize());
+        Assert.assertEquals(3.0, service.getLastPrice("A").getPrice(), 0);
+        Assert.assertEquals(10.0, service.getLastPrice("B").getPrice(), 0);
+        Assert.assertEquals(100.5, service.getLastPrice("C").getPrice(), 0);
+        Assert.assertNull(service.getLastPrice("D"));
+
+        // the bars are computed from the loaded timelines
+        List<PriceBar> bars = service.getPriceBars("A", Duration.ofDays(1), T0, T0.plusDays(1));
+        Assert.assertEquals(1, bars.size());
+        Assert.assertEquals(1.0, bars.get(0).getOpen(), 0);
+        Assert.assertEquals(3.0, bars.get(0).getHigh(), 0);
+        Assert.assertEquals(3.0, bars.get(0).getClose(), 0);
+        Assert.assertEquals(2, bars.get(0).getCount());
+    }
+
+    @Test
+    public void testTruncatedFileIsNotPublished() throws IOException {
+        Path file = writeFile("1.lvps", PriceFileFormat.BINARY, newPriceRecord("A", T0, 1.0, 64));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+
+        PriceRecordStore store = new PriceRecordStore();
+        try {
+            new WarmStartLoader(2).load(file, store);
+            Assert.fail("A truncated file must not be loaded");
+        } catch (IOException e) {
+            Assert.assertEquals(0, store.getVersion());
+            Assert.assertEquals(0, store.size());
+        }
+    }
+
+    @Test
+    public void testExportedLastPricesWarmStartAnotherService() throws IOException {
+        writeFile("1.lvps", PriceFileFormat.BINARY,
+                newPriceRecord("A", T0, 1.0, 16),
+                newPriceRecord("A", T0.plusHours(1), 2.0, 16),
+                newPriceRecord("B", T0, 10.0, 64 * 1024),
+                newPriceRecord("C", T0.plusHours(2), 100.5, 8));
+        LastValuePriceService service = new LastValuePriceService();
+        service.warmStart(folder.getRoot().toPath().resolve("1.lvps"));
+
+        Path exports = folder.newFolder("exports").toPath();
+        try (FileChannel channel = FileChannel.open(exports.resolve("eod.lvps"), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            Assert.assertEquals(3, service.exportLastPrices(channel, PriceFileFormat.BINARY));
+        }
+        LastValuePriceService restored = new LastValuePriceService();
+        Assert.assertEquals(3, restored.warmStart(exports.resolve("eod.lvps")));
+        Assert.assertEquals(2.0, restored.getLastPrice("A").getPrice(), 0);
+        Assert.assertNull(restored.getLastPrice("A", T0.plusMinutes(30)));
+        Assert.assertEquals(64 * 1024, restored.getLastPrice("B").getPayloadSize());
+        Assert.assertEquals(10.0, restored.getLastPrice("B").getPrice(), 0);
+        Assert.assertEquals(100.5, restored.getLastPrice("C").getPrice(), 0);
+
+        // as of an earlier date time, to a channel which cannot gather
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        Assert.assertEquals(2, service.exportLastPrices(T0.plusMinutes(30), Channels.newChannel(csv),
+                PriceFileFormat.CSV));
+        List<String> lines = Arrays.asList(csv.toString("UTF-8").split("\n"));
+        Assert.assertEquals(3, lines.size());
+        Assert.assertEquals("instrumentId,asOf,price", lines.get(0));
+        Assert.assertTrue(lines.contains("A,2021-01-01T00:00:00,1.0"));
+        Assert.assertTrue(lines.contains("B,2021-01-01T00:00:00,10.0"));
+        Assert.assertEquals(0, service.getStatistics().getOpenSnapshots());
+    }
+
+    /**
+     * Instrument ids with the separators of the CSV format survive an export and a warm start.
+     */
+    @Test
+    public void testCsvQuotesInstrumentIds() throws IOException {
+        String[] instrumentIds = {"A,B", "say \"hi\"", "\"", "multi\nline", "plain"};
+        PriceRecord[] priceRecords = new PriceRecord[instrumentIds.length];
+        for (int i = 0; i < instrumentIds.length; i++) {
+            priceRecords[i] = newPriceRecord(instrumentIds[i], T0, i, 8);
+        }
+        Path file = writeFile("quoted.csv", PriceFileFormat.CSV, priceRecords);
+        Assert.assertTrue(new String(Files.readAllBytes(file), "UTF-8").contains("\"say \"\"hi\"\"\",2021"));
+
+        LastValuePriceService service = new LastValuePriceService();
+        Assert.assertEquals(instrumentIds.length, service.warmStart(file));
+        for (int i = 0; i < instrumentIds.length; i++) {
+            Assert.assertEquals(i, service.getLastPrice(instrumentIds[i]).getPrice(), 0);
+        }
+    }
+
+    @Test
+    public void demonstrateLoadingThroughput() throws IOException {
+        int numberOfFiles = 8;
+        int recordsPerFile = 250_000;
+        for (int f = 0; f < numberOfFiles; f++) {
+            try (PriceFileWriter writer = new PriceFileWriter(
+                    folder.getRoot().toPath().resolve(f + PriceFileFormat.BINARY.getFileExtension()),
+                    PriceFileFormat.BINARY)) {
+                for (int i = 0; i < recordsPerFile; i++) {
+                    writer.write(newPriceRecord(String.valueOf(i % 10_000), T0.plusSeconds(f * recordsPerFile + i),
+                            i, 32));
+                }
+            }
+        }
+
+        PriceRecordStore store = new PriceRecordStore();
+        Instant start = Instant.now();
+        long loaded = new WarmStartLoader().load(folder.getRoot().toPath(), store);
+        Duration duration = Duration.between(start, Instant.now());
+        logger.info("Warm start of {} records from {} files took {} ms, {} records/s", loaded, numberOfFiles,
+                duration.toMillis(), loaded * 1000 / Math.max(1, duration.toMillis()));
+
+        Assert.assertEquals(numberOfFiles * recordsPerFile, loaded);
+        Assert.assertEquals(loaded, store.size());
+        Assert.assertEquals(recordsPerFile - 1,
+                store.getLatest("9999", T0.plusSeconds(numberOfFiles * recordsPerFile)).getPrice(), 0);
+        Assert.assertTrue(Files.size(folder.getRoot().toPath().resolve("0.lvps")) > 0);
+    }
+}
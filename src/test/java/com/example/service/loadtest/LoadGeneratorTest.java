@@ -0,0 +1,120 @@
+package com.example.service.loadtest;
+
+import com.example.service.price.ExecutionMode;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+public class LoadGeneratorTest {
+    private final static Logger logger = LogManager.getLogger(LoadGeneratorTest.class);
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void log(String title, LoadReport report) throws UnsupportedEncodingException {
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        report.print(new PrintStream(printed, true, "UTF-8"));
+        logger.info("{}:\n{}", title, printed.toString("UTF-8"));
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for (long micros = 1; micros <= 10_000; micros++) {
+            histogram.record(micros * 1000);
+        }
+        Assert.assertEquals(10_000, histogram.getCount());
+        Assert.assertEquals(5_000, histogram.getPercentileMicros(50), 5_000 * 0.04);
+        Assert.assertEquals(9_900, histogram.getPercentileMicros(99), 9_900 * 0.04);
+        Assert.assertEquals(9_990, histogram.getPercentileMicros(99.9), 9_990 * 0.04);
+        Assert.assertEquals(10_000_000, histogram.getPercentileNanos(100));
+        Assert.assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBoundOf(LatencyHistogram.indexOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testSettings() {
+        LoadSettings settings = LoadSettings.parse("producers=3", "duration=2m", "asOfWindow=PT1H",
+                "asOfDistribution=LATEST_SKEWED");
+        Assert.assertEquals(3, settings.producers);
+        Assert.assertEquals(Duration.ofMinutes(2), settings.duration);
+        Assert.assertEquals(Duration.ofHours(1), settings.asOfWindow);
+        Assert.assertEquals(LoadSettings.AsOfDistribution.LATEST_SKEWED, settings.asOfDistribution);
+        Assert.assertEquals(LoadSettings.defaults().chunkSize, settings.chunkSize);
+        try {
+            LoadSettings.parse("no_such_setting=1");
+            Assert.fail("Unknown settings must be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Runs a short load headless and checks that every API is measured and that the runs are appended to the CSV.
+     */
+    @Test
+    public void testShortRunReportsEveryApi() throws Exception {
+        Path csv = folder.getRoot().toPath().resolve("runs.csv");
+        LoadSettings settings = LoadSettings.parse("duration=2s", "producers=2", "chunkSize=100",
+                "chunksPerBatchRun=5", "batchRunsPerSecond=20", "latestQps=500", "historicQps=500",
+                "asOfDistribution=SEQUENTIAL", "csv=" + csv);
+
+        for (int run = 0; run < 2; run++) {
+            LoadReport report = new LoadGenerator(settings).run();
+            log("Short run " + run, report);
+            report.appendCsv(settings.csvFile);
+
+            Assert.assertTrue(report.getBatchRuns() > 0);
+            Assert.assertEquals(report.getBatchRuns() * 500, report.getRecords());
+            // sequential date times are never replaced
+            Assert.assertEquals(report.getRecords(), report.getStoredRecords());
+            for (String api : new String[]{"start", "upload", "complete", "getLastPrice", "getLastPriceAsOf"}) {
+                Assert.assertTrue(api, report.getCount(api) > 0);
+            }
+            Assert.assertEquals(report.getBatchRuns(), report.getCount("commit"));
+            Assert.assertTrue(report.getPercentileMicros("upload", 99.9) >= report.getPercentileMicros("upload", 50));
+            Assert.assertTrue(report.getDirectPeakBytes() > 0);
+        }
+
+        List<String> lines = Files.readAllLines(csv);
+        Assert.assertEquals(3, lines.size());
+        Assert.assertTrue(lines.get(0).contains("getLastPrice_p999_us"));
+        Assert.assertEquals(lines.get(0).split(",").length, lines.get(1).split(",", -1).length);
+        Assert.assertEquals(lines.get(0).split(",").length, lines.get(2).split(",", -1).length);
+    }
+
+    /**
+     * Runs 100k producers and 100k readers on virtual threads. Most of the producers are blocked on the full queue
+     * of the consumer at any time, yet the number of platform threads stays at the number of carriers.
+     * It is skipped before Java 21, see the README for running it with the java21 profile.
+     */
+    @Test
+    public void demonstrateVirtualThreadProducersAndReaders() throws Exception {
+        Assume.assumeTrue("Virtual threads require Java 21", ExecutionMode.isVirtualThreadsSupported());
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        threadBean.resetPeakThreadCount();
+        LoadSettings settings = LoadSettings.parse("threads=VIRTUAL_THREADS", "producers=100000", "readers=100000",
+                "chunkSize=1", "chunksPerBatchRun=1", "batchRunsPerSecond=1", "instruments=10000",
+                "latestQps=50000", "historicQps=50000", "duration=20s");
+
+        LoadReport report = new LoadGenerator(settings).run();
+        log("Virtual thread producers and readers", report);
+        logger.info("Peak platform threads {}", threadBean.getPeakThreadCount());
+
+        Assert.assertTrue(report.getBatchRuns() > 0);
+        Assert.assertTrue(report.getCount("getLastPrice") > 0);
+        Assert.assertTrue(threadBean.getPeakThreadCount() < 1000);
+    }
+}
@@ -0,0 +1,285 @@
+package com.example.service.net;
+
+import com.example.service.price.CachingPriceRequester;
+import com.example.service.price.LastValuePriceService;
+import com.example.service.price.PriceRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+public class PriceServerTest {
+    private final static Logger logger = LogManager.getLogger(PriceServerTest.class);
+    private LastValuePriceService service;
+    private PriceServer server;
+    private PriceClient client;
+
+    private static PriceRecord newPriceRecord(String instrumentId, LocalDateTime asOf, double price) {
+        ByteBuffer payload = ByteBuffer.allocateDirect(1024).putDouble(price);
+        return new PriceRecord(instrumentId, asOf, payload);
+    }
+
+    private static PriceRecord[] prepareRandomPriceRecords(int count, int instruments) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        PriceRecord[] priceRecords = new PriceRecord[count];
+        for (int i = 0; i < count; i++) {
+            priceRecords[i] = newPriceRecord(String.valueOf(random.nextInt(instruments)),
+                    LocalDateTime.of(2020, 1, 1, 0, 0, 0).plusSeconds(random.nextInt(10_000_000)),
+                    random.nextDouble());
+        }
+        return priceRecords;
+    }
+
+    /**
+     * @return records with distinct date times of a single instrument, so that none of them replaces another one
+     */
+    private static PriceRecord[] prepareSequentialPriceRecords(String instrumentId, int count) {
+        PriceRecord[] priceRecords = new PriceRecord[count];
+        for (int i = 0; i < count; i++) {
+            priceRecords[i] = newPriceRecord(instrumentId, LocalDateTime.of(2020, 1, 1, 0, 0, 0).plusSeconds(i), i);
+        }
+        return priceRecords;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Before
+    public void prepareTest() throws IOException {
+        service = new LastValuePriceService();
+        service.run();
+        server = new PriceServer(service, service, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.start();
+        client = PriceClient.connect(server.getLocalAddress());
+    }
+
+    @After
+    public void endTest() throws IOException {
+        client.close();
+        server.close();
+        service.terminate();
+    }
+
+    @Test
+    public void testBatchRunAndLookupsOverLoopback() {
+        LocalDateTime january = LocalDateTime.of(2021, 1, 1, 0, 0, 0);
+        LocalDateTime february = LocalDateTime.of(2021, 2, 1, 0, 0, 0);
+
+        String batchRunId = client.start();
+        Assert.assertNotNull(batchRunId);
+        Assert.assertTrue(client.upload(batchRunId, new PriceRecord[]{
+                newPriceRecord("100", january, 1.5),
+                newPriceRecord("100", february, 2.5),
+                newPriceRecord("101", january, 3.5)}));
+
+        // nothing is visible before the batch run completes
+        Assert.assertNull(client.getLastPrice("100"));
+        Assert.assertTrue(client.complete(batchRunId));
+        sleep(100);
+
+        PriceRecord priceRecord = client.getLastPrice("100");
+        Assert.assertEquals("100", priceRecord.instrumentId);
+        Assert.assertEquals(february, priceRecord.asOf);
+        Assert.assertEquals(2.5, priceRecord.getPrice(), 0);
+        Assert.assertEquals(1024, priceRecord.getPayloadSize());
+        Assert.assertEquals(1.5, client.getLastPrice("100", january.plusDays(1)).getPrice(), 0);
+        Assert.assertNull(client.getLastPrice("100", january.minusDays(1)));
+
+        PriceRecord[] priceRecords = client.getLastPricesAsync(new String[]{"100", "NO_SUCH_ID", "101"}, null).join();
+        Assert.assertEquals(3, priceRecords.length);
+        Assert.assertEquals(2.5, priceRecords[0].getPrice(), 0);
+        Assert.assertNull(priceRecords[1]);
+        Assert.assertEquals(3.5, priceRecords[2].getPrice(), 0);
+
+        // the service keeps rejecting calls made in an incorrect order
+        Assert.assertFalse(client.complete(batchRunId));
+        Assert.assertFalse(client.upload("NO_SUCH_ID", new PriceRecord[0]));
+        Assert.assertFalse(client.cancel("NO_SUCH_ID"));
+        Assert.assertFalse(client.checkpoint("NO_SUCH_ID"));
+    }
+
+    /**
+     * A frame with a negative or a huge element count is rejected and does not break the server.
+     */
+    @Test
+    public void testMalformedCountsAreRejected() throws IOException {
+        try (SocketChannel channel = SocketChannel.open(server.getLocalAddress())) {
+            int[] counts = {-1, Integer.MAX_VALUE};
+            for (int count : counts) {
+                ByteBuffer request = ByteBuffer.allocate(64);
+                request.putInt(0).put(PriceProtocol.GET_LAST_PRICES).putInt(1).put((byte) 0).putInt(count);
+                request.putInt(0, request.position() - PriceProtocol.LENGTH_SIZE).flip();
+                channel.write(request);
+                request.clear();
+                request.putInt(0).put(PriceProtocol.UPLOAD).putInt(2).putShort((short) 0).putInt(count);
+                request.putInt(0, request.position() - PriceProtocol.LENGTH_SIZE).flip();
+                channel.write(request);
+
+                for (int requestId = 1; requestId <= 2; requestId++) {
+                    ByteBuffer response = ByteBuffer.allocate(PriceProtocol.LENGTH_SIZE
+                            + PriceProtocol.RESPONSE_HEADER_SIZE);
+                    while (response.hasRemaining() && channel.read(response) >= 0) {
+                    }
+                    response.flip();
+                    Assert.assertEquals(PriceProtocol.RESPONSE_HEADER_SIZE, response.getInt());
+                    response.get();
+                    Assert.assertEquals(requestId, response.getInt());
+                    Assert.assertEquals(PriceProtocol.BAD_REQUEST, response.get());
+                }
+            }
+        }
+        Assert.assertNull(client.getLastPrice("1"));
+    }
+
+    /**
+     * A lookup or an upload with nanos or epoch seconds out of range is rejected and does not break the server.
+     */
+    @Test
+    public void testMalformedDateTimesAreRejected() throws IOException {
+        long[][] dateTimes = {{0, -1}, {0, 1_000_000_000}, {Long.MAX_VALUE, 0}};
+        try (SocketChannel channel = SocketChannel.open(server.getLocalAddress())) {
+            int requestId = 0;
+            for (long[] dateTime : dateTimes) {
+                ByteBuffer request = ByteBuffer.allocate(64);
+                request.putInt(0).put(PriceProtocol.GET_LAST_PRICE).putInt(++requestId).putShort((short) 0)
+                        .put((byte) 1).putLong(dateTime[0]).putInt((int) dateTime[1]);
+                request.putInt(0, request.position() - PriceProtocol.LENGTH_SIZE).flip();
+                channel.write(request);
+                assertBadRequest(channel, requestId);
+
+                request.clear();
+                request.putInt(0).put(PriceProtocol.UPLOAD).putInt(++requestId).putShort((short) 0).putInt(1)
+                        .putShort((short) 0).putLong(dateTime[0]).putInt((int) dateTime[1]).putInt(0);
+                request.putInt(0, request.position() - PriceProtocol.LENGTH_SIZE).flip();
+                channel.write(request);
+                assertBadRequest(channel, requestId);
+            }
+        }
+        Assert.assertNull(client.getLastPrice("1"));
+    }
+
+    private static void assertBadRequest(SocketChannel channel, int requestId) throws IOException {
+        ByteBuffer response = ByteBuffer.allocate(PriceProtocol.LENGTH_SIZE + PriceProtocol.RESPONSE_HEADER_SIZE);
+        while (response.hasRemaining() && channel.read(response) >= 0) {
+        }
+        response.flip();
+        Assert.assertEquals(PriceProtocol.RESPONSE_HEADER_SIZE, response.getInt());
+        response.get();
+        Assert.assertEquals(requestId, response.getInt());
+        Assert.assertEquals(PriceProtocol.BAD_REQUEST, response.get());
+    }
+
+    @Test
+    public void testPipelinedBatchRun() {
+        String batchRunId = client.start();
+        List<CompletableFuture<Boolean>> uploads = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            uploads.add(client.uploadAsync(batchRunId, prepareSequentialPriceRecords(String.valueOf(i), 100)));
+        }
+        // the completion is pipelined behind the uploads and must still follow them
+        CompletableFuture<Boolean> completion = client.completeAsync(batchRunId);
+        uploads.forEach(upload -> Assert.assertTrue(upload.join()));
+        Assert.assertTrue(completion.join());
+        awaitCommit(batchRunId);
+
+        Assert.assertEquals(5000, service.getNumberOfPriceRecords());
+    }
+
+    private void awaitCommit(String batchRunId) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (service.getCommitVersion(batchRunId) < 0) {
+            if (System.nanoTime() > deadline) throw new AssertionError("Batch run not committed: " + batchRunId);
+            sleep(1);
+        }
+    }
+
+    @Test
+    public void testNearCacheInvalidatedByPushedVersions() {
+        CachingPriceRequester cache = new CachingPriceRequester(client, 1000, CachingPriceRequester.EvictionPolicy.LFU);
+        client.subscribeVersions(cache::publishVersion);
+        LocalDateTime asOf = LocalDateTime.of(2021, 1, 1, 0, 0, 0);
+
+        String batchRunId = client.start();
+        Assert.assertTrue(client.upload(batchRunId, new PriceRecord[]{newPriceRecord("100", asOf, 1.0)}));
+        Assert.assertTrue(client.complete(batchRunId));
+        awaitCacheVersion(cache, 1);
+
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(1.0, cache.getLastPrice("100").getPrice(), 0);
+        }
+        Assert.assertEquals(99, cache.getHits());
+
+        batchRunId = client.start();
+        Assert.assertTrue(client.upload(batchRunId, new PriceRecord[]{newPriceRecord("100", asOf.plusDays(1), 2.0)}));
+        Assert.assertTrue(client.complete(batchRunId));
+        awaitCacheVersion(cache, 2);
+
+        Assert.assertEquals(2.0, cache.getLastPrice("100").getPrice(), 0);
+    }
+
+    private static void awaitCacheVersion(CachingPriceRequester cache, long version) {
+        for (int i = 0; i < 100 && cache.getVersion() < version; i++) {
+            sleep(10);
+        }
+        Assert.assertEquals(version, cache.getVersion());
+    }
+
+    /**
+     * Demonstrates the throughput of the server over loopback. Lookups are pipelined on a single connection
+     * and the number of requests per second is logged.
+     */
+    @Test
+    public void demonstrateThroughput() {
+        final int CHUNKS = 100;
+        final int LOOKUPS = 200_000;
+        final int PIPELINE_DEPTH = 1000;
+
+        long start = System.nanoTime();
+        String batchRunId = client.start();
+        List<CompletableFuture<Boolean>> uploads = new ArrayList<>();
+        for (int i = 0; i < CHUNKS; i++) {
+            uploads.add(client.uploadAsync(batchRunId, prepareRandomPriceRecords(1000, 1000)));
+        }
+        uploads.forEach(CompletableFuture::join);
+        Assert.assertTrue(client.complete(batchRunId));
+        long uploadNanos = System.nanoTime() - start;
+        logger.info("Uploaded {} records in {} ms ({} records/s)", CHUNKS * 1000, uploadNanos / 1_000_000,
+                CHUNKS * 1000L * 1_000_000_000L / uploadNanos);
+
+        sleep(500);
+
+        start = System.nanoTime();
+        List<CompletableFuture<PriceRecord>> lookups = new ArrayList<>(PIPELINE_DEPTH);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < LOOKUPS; i++) {
+            lookups.add(client.getLastPriceAsync(String.valueOf(random.nextInt(1000)), null));
+            if (lookups.size() == PIPELINE_DEPTH) {
+                lookups.forEach(CompletableFuture::join);
+                lookups.clear();
+            }
+        }
+        lookups.forEach(CompletableFuture::join);
+        long lookupNanos = System.nanoTime() - start;
+        logger.info("Looked up {} prices in {} ms ({} lookups/s)", LOOKUPS, lookupNanos / 1_000_000,
+                LOOKUPS * 1_000_000_000L / lookupNanos);
+    }
+}
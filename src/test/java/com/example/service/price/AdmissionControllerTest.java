@@ -0,0 +1,194 @@
+package com.example.service.price;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+public class AdmissionControllerTest {
+    private static PriceRecord[] prepareSequentialPriceRecords(String instrumentId, int count, int payloadSize) {
+        PriceRecord[] priceRecords = new PriceRecord[count];
+        for (int i = 0; i < count; i++) {
+            priceRecords[i] = new PriceRecord(instrumentId, LocalDateTime.of(2021, 1, 1, 0, 0, 0).plusSeconds(i),
+                    ByteBuffer.allocateDirect(payloadSize).putDouble(i));
+        }
+        return priceRecords;
+    }
+
+    private static CompletableFuture<Boolean> acquireAsync(AdmissionController controller, String batchRunId,
+                                                           long bytes) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return controller.acquire(batchRunId, bytes);
+            } catch (InterruptedException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    private static void awaitWaitingUploads(AdmissionController controller, int waitingUploads) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (controller.getWaitingUploads() != waitingUploads) {
+            if (System.nanoTime() > deadline) throw new AssertionError("Uploads not waiting: " + waitingUploads);
+            Thread.yield();
+        }
+    }
+
+    @Test
+    public void testUploadsWaitForReleasedBytes() throws Exception {
+        AdmissionController controller = new AdmissionController(AdmissionController.Settings.defaults()
+                .withMaxInFlightBytes(1000)
+                .withMaxWait(Duration.ofMillis(100)));
+        Assert.assertTrue(controller.acquire("A", 600));
+        Assert.assertTrue(controller.acquire("A", 300));
+        // a chunk larger than the limit fits when nothing else is in flight only
+        Assert.assertFalse(controller.acquire("B", 2000));
+        Assert.assertEquals(900, controller.getInFlightBytes());
+
+        CompletableFuture<Boolean> waiting = acquireAsync(controller, "B", 500);
+        awaitWaitingUploads(controller, 1);
+        Assert.assertFalse(waiting.isDone());
+        controller.onRelease("A", 1, false);
+        Assert.assertTrue(waiting.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(300, controller.getInFlightBytes("A"));
+        Assert.assertEquals(800, controller.getInFlightBytes());
+
+        controller.onRelease("A", 2, true);
+        controller.onRelease("B", 1, true);
+        Assert.assertEquals(0, controller.getInFlightBytes());
+        Assert.assertTrue(controller.acquire("C", 2000));
+        Assert.assertEquals(2, controller.getDelayedUploads());
+        Assert.assertEquals(1, controller.getRejectedUploads());
+        Assert.assertTrue(controller.getWaitTime().toMillis() >= 100);
+    }
+
+    /**
+     * While another batch run is waiting, a batch run is not admitted beyond its equal share of the global limit,
+     * even though its chunk would still fit.
+     */
+    @Test
+    public void testWaitingBatchRunsShareTheLimit() throws Exception {
+        AdmissionController controller = new AdmissionController(AdmissionController.Settings.defaults()
+                .withMaxInFlightBytes(1000)
+                .withMaxInFlightBytesPerBatchRun(800)
+                .withMaxWait(Duration.ofSeconds(5)));
+        Assert.assertTrue(controller.acquire("A", 700));
+
+        CompletableFuture<Boolean> waiting = acquireAsync(controller, "B", 400);
+        awaitWaitingUploads(controller, 1);
+        CompletableFuture<Boolean> beyondShare = acquireAsync(controller, "A", 100);
+        awaitWaitingUploads(controller, 2);
+        Thread.sleep(100);
+        Assert.assertFalse(beyondShare.isDone());
+        Assert.assertEquals(700, controller.getInFlightBytes());
+
+        controller.onRelease("A", 1, false);
+        Assert.assertTrue(waiting.get(5, TimeUnit.SECONDS));
+        Assert.assertTrue(beyondShare.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(500, controller.getInFlightBytes());
+    }
+
+    /**
+     * A batch run which stages more than its limit is rejected unless it checkpoints, since its staged chunks are
+     * only released by a commit.
+     */
+    @Test
+    public void testServiceReleasesCommittedChunks() {
+        LastValuePriceService service = LastValuePriceService.builder()
+                .admissionSettings(AdmissionController.Settings.defaults()
+                        .withMaxInFlightBytesPerBatchRun(250 * 1024)
+                        .withMaxWait(Duration.ofSeconds(1)))
+                .build();
+        service.run();
+        try {
+            AdmissionController controller = service.getAdmissionController();
+            String batchRunId = service.start();
+            Assert.assertTrue(service.upload(batchRunId, prepareSequentialPriceRecords("A", 100, 1024)));
+            Assert.assertTrue(service.upload(batchRunId, prepareSequentialPriceRecords("B", 100, 1024)));
+            Assert.assertFalse(service.upload(batchRunId, prepareSequentialPriceRecords("C", 100, 1024)));
+            Assert.assertEquals(1, controller.getRejectedUploads());
+
+            Assert.assertTrue(service.checkpoint(batchRunId));
+            Assert.assertTrue(service.upload(batchRunId, prepareSequentialPriceRecords("C", 100, 1024)));
+            Assert.assertEquals(100 * (1024 + AdmissionController.RECORD_OVERHEAD_BYTES),
+                    controller.getInFlightBytes(batchRunId));
+            Assert.assertTrue(service.complete(batchRunId));
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while ((service.getCommitVersion(batchRunId) < 0 || controller.getInFlightBytes() > 0)
+                    && System.nanoTime() < deadline) {
+                Thread.yield();
+            }
+            Assert.assertEquals(300, service.getNumberOfPriceRecords());
+            Assert.assertEquals(0, controller.getInFlightBytes());
+            Assert.assertEquals(0, controller.getInFlightBytes(batchRunId));
+        } finally {
+            service.terminate();
+        }
+    }
+
+    /**
+     * An upload which waits while its batch run is settled is rejected, and a chunk which is aborted is taken back
+     * even if a later chunk of the batch run was admitted meanwhile.
+     */
+    @Test
+    public void testSettledBatchRunRejectsWaitingUploads() throws Exception {
+        AdmissionController controller = new AdmissionController(AdmissionController.Settings.defaults()
+                .withMaxInFlightBytes(1000)
+                .withMaxWait(Duration.ofSeconds(5)));
+        Assert.assertTrue(controller.acquire("A", 300));
+        Assert.assertTrue(controller.acquire("A", 400));
+        controller.abort("A", 300);
+        Assert.assertEquals(400, controller.getInFlightBytes("A"));
+
+        CompletableFuture<Boolean> waiting = acquireAsync(controller, "A", 700);
+        awaitWaitingUploads(controller, 1);
+        controller.onRelease("A", 1, true);
+        Assert.assertFalse(waiting.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, controller.getInFlightBytes());
+        Assert.assertEquals(0, controller.getInFlightBytes("A"));
+    }
+
+    /**
+     * An upload which waits to be admitted keeps its batch run alive for the reaper, and it fails without leaking its
+     * bytes if the batch run is cancelled meanwhile.
+     */
+    @Test
+    public void testWaitingUploadOfCancelledBatchRun() throws Exception {
+        LastValuePriceService service = LastValuePriceService.builder()
+                .admissionSettings(AdmissionController.Settings.defaults()
+                        .withMaxInFlightBytesPerBatchRun(150 * 1024)
+                        .withMaxWait(Duration.ofSeconds(5)))
+                .reaperSettings(BatchRunReaper.Settings.defaults()
+                        .withIdleTimeout(Duration.ofMillis(100))
+                        .withPeriod(Duration.ofMillis(20)))
+                .build();
+        service.run();
+        try {
+            AdmissionController controller = service.getAdmissionController();
+            String batchRunId = service.start();
+            Assert.assertTrue(service.upload(batchRunId, prepareSequentialPriceRecords("A", 100, 1024)));
+            CompletableFuture<Boolean> waiting = CompletableFuture.supplyAsync(
+                    () -> service.upload(batchRunId, prepareSequentialPriceRecords("B", 100, 1024)));
+            awaitWaitingUploads(controller, 1);
+            Thread.sleep(300);
+            Assert.assertEquals(0, service.getBatchRunReaper().getExpiredRuns());
+
+            Assert.assertTrue(service.cancel(batchRunId));
+            Assert.assertFalse(waiting.get(5, TimeUnit.SECONDS));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (controller.getInFlightBytes() > 0 && System.nanoTime() < deadline) {
+                Thread.yield();
+            }
+            Assert.assertEquals(0, controller.getInFlightBytes());
+            Assert.assertEquals(0, controller.getWaitingUploads());
+        } finally {
+            service.terminate();
+        }
+    }
+}
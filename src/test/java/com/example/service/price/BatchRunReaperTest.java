@@ -0,0 +1,140 @@
+package com.example.service.price;
+
+import com.example.service.batch.BatchRunRequestQueue;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class BatchRunReaperTest {
+    private LastValuePriceService service;
+
+    private static PriceRecord[] prepareRandomPriceRecords(int count) {
+        PriceRecord[] priceRecords = new PriceRecord[count];
+        LVPSTestBase.prepareRandomPriceRecords(priceRecords);
+        return priceRecords;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @After
+    public void endTest() {
+        if (service != null) {
+            service.terminate();
+        }
+    }
+
+    @Test
+    public void testIdleBatchRunIsCancelled() {
+        service = new LastValuePriceService(BatchRunReaper.Settings.defaults()
+                .withIdleTimeout(Duration.ofMillis(100))
+                .withPeriod(Duration.ofMillis(20)));
+        service.run();
+
+        String batchRunId = service.start();
+        Assert.assertTrue(service.upload(batchRunId, prepareRandomPriceRecords(10)));
+
+        sleep(400);
+
+        // the abandoned batch run is gone, the producer cannot continue with it
+        Assert.assertFalse(service.upload(batchRunId, prepareRandomPriceRecords(10)));
+        Assert.assertFalse(service.complete(batchRunId));
+        Assert.assertEquals(0, service.getNumberOfPriceRecords());
+
+        BatchRunReaper reaper = service.getBatchRunReaper();
+        Assert.assertEquals(1, reaper.getExpiredRuns());
+        Assert.assertEquals(1, reaper.getReclaimedRuns());
+        Assert.assertTrue(reaper.getReclaimedBytes() >= 10 * 1016);
+    }
+
+    @Test
+    public void testStagingBudgetCancelsLeastRecentlyActiveBatchRun() {
+        service = new LastValuePriceService(BatchRunReaper.Settings.defaults()
+                .withStagedBytesBudget(150 * 1024)
+                .withPeriod(Duration.ofMillis(20)));
+        service.run();
+
+        String idleBatchRunId = service.start();
+        Assert.assertTrue(service.upload(idleBatchRunId, prepareRandomPriceRecords(100)));
+        String activeBatchRunId = service.start();
+        Assert.assertTrue(service.upload(activeBatchRunId, prepareRandomPriceRecords(100)));
+
+        sleep(200);
+
+        Assert.assertEquals(1, service.getBatchRunReaper().getEvictedRuns());
+        Assert.assertFalse(service.complete(idleBatchRunId));
+        Assert.assertTrue(service.complete(activeBatchRunId));
+    }
+
+    /**
+     * A COMPLETE racing with a CANCEL, e.g. by the reaper, and with the uploads of the producer: only one of the
+     * terminal commands succeeds and an upload which fails is not counted as staged.
+     */
+    @Test
+    public void testTerminalCommandsRacingWithUploads() throws Exception {
+        PriceProviderImpl provider = new PriceProviderImpl(new BatchRunRequestQueue<>(100_000, 100_000));
+        for (int i = 0; i < 200; i++) {
+            String batchRunId = provider.start();
+            CountDownLatch go = new CountDownLatch(1);
+            CompletableFuture<Boolean> uploaded = CompletableFuture.supplyAsync(() -> {
+                await(go);
+                return provider.upload(batchRunId, prepareRandomPriceRecords(1));
+            });
+            CompletableFuture<Boolean> completed = CompletableFuture.supplyAsync(() -> {
+                await(go);
+                return provider.complete(batchRunId);
+            });
+            go.countDown();
+            boolean cancelled = provider.cancel(batchRunId);
+
+            Assert.assertTrue(completed.get() ^ cancelled);
+            uploaded.get();
+            Assert.assertFalse(provider.upload(batchRunId, prepareRandomPriceRecords(1)));
+            Assert.assertEquals(0, provider.getStagedBytes());
+        }
+    }
+
+    /**
+     * A checkpoint releases the staged bytes of the chunks reserved before it only, and a COMPLETE or CANCEL waits
+     * until the checkpoint is queued.
+     */
+    @Test
+    public void testCheckpointReleasesItsChunksOnly() throws Exception {
+        BatchRunState state = new BatchRunState(System.nanoTime());
+        Assert.assertEquals(0, state.reserveChunk(System.nanoTime()));
+        Assert.assertTrue(state.addStagedBytes(0, 100));
+        int chunkCount = state.beginCheckpoint(System.nanoTime());
+        Assert.assertEquals(1, chunkCount);
+
+        // an upload which reserves its chunk while the checkpoint is being queued is not published by it
+        Assert.assertEquals(1, state.reserveChunk(System.nanoTime()));
+        Assert.assertTrue(state.addStagedBytes(1, 10));
+        CompletableFuture<Integer> closed = CompletableFuture.supplyAsync(state::close);
+        sleep(100);
+        Assert.assertFalse(closed.isDone());
+
+        Assert.assertEquals(100, state.endCheckpoint(chunkCount));
+        Assert.assertEquals(10, state.getStagedBytes());
+        Assert.assertEquals(2, (int) closed.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(10, state.drainStagedBytes());
+        Assert.assertFalse(state.addStagedBytes(2, 1));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
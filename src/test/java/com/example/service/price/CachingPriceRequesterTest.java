@@ -0,0 +1,130 @@
+package com.example.service.price;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CachingPriceRequesterTest {
+    private final Map<String, PriceRecord> prices = new HashMap<>();
+    private final AtomicInteger delegateCalls = new AtomicInteger();
+    // a requester which counts the calls that the cache could not answer
+    private final PriceRequester delegate = new PriceRequester() {
+        @Override
+        public PriceRecord getLastPrice(String instrumentId) {
+            delegateCalls.incrementAndGet();
+            return prices.get(instrumentId);
+        }
+
+        @Override
+        public PriceRecord getLastPrice(String instrumentId, LocalDateTime asOf) {
+            delegateCalls.incrementAndGet();
+            PriceRecord priceRecord = prices.get(instrumentId);
+            return priceRecord != null && !priceRecord.asOf.isAfter(asOf) ? priceRecord : null;
+        }
+    };
+
+    private void putPrice(String instrumentId, double price) {
+        prices.put(instrumentId, new PriceRecord(instrumentId, LocalDateTime.of(2021, 1, 1, 0, 0, 0),
+                ByteBuffer.allocateDirect(8).putDouble(price)));
+    }
+
+    @Test
+    public void testHitsBetweenVersions() {
+        CachingPriceRequester cache = new CachingPriceRequester(delegate, 100, CachingPriceRequester.EvictionPolicy.LRU);
+        putPrice("100", 1.0);
+        cache.publishVersion(1);
+
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(1.0, cache.getLastPrice("100").getPrice(), 0);
+            Assert.assertNull(cache.getLastPrice("NO_SUCH_INSTRUMENT"));
+        }
+        Assert.assertEquals(2, delegateCalls.get());
+        Assert.assertEquals(0.99, cache.getHitRate(), 0);
+
+        // a lookup with an asOf is a different key
+        Assert.assertNull(cache.getLastPrice("100", LocalDateTime.of(2020, 1, 1, 0, 0, 0)));
+        Assert.assertEquals(3, delegateCalls.get());
+    }
+
+    @Test
+    public void testNewVersionInvalidatesEverything() {
+        CachingPriceRequester cache = new CachingPriceRequester(delegate, 100, CachingPriceRequester.EvictionPolicy.LRU);
+        putPrice("100", 1.0);
+        cache.publishVersion(1);
+        Assert.assertEquals(1.0, cache.getLastPrice("100").getPrice(), 0);
+
+        putPrice("100", 2.0);
+        // the cache is not aware of the change until the version is published
+        Assert.assertEquals(1.0, cache.getLastPrice("100").getPrice(), 0);
+        cache.publishVersion(2);
+        Assert.assertEquals(2.0, cache.getLastPrice("100").getPrice(), 0);
+
+        // an outdated version does not bring the old entries back
+        cache.publishVersion(1);
+        Assert.assertEquals(2, cache.getVersion());
+        Assert.assertEquals(2.0, cache.getLastPrice("100").getPrice(), 0);
+        Assert.assertEquals(2, delegateCalls.get());
+    }
+
+    @Test
+    public void testEvictionPolicies() {
+        for (CachingPriceRequester.EvictionPolicy evictionPolicy : CachingPriceRequester.EvictionPolicy.values()) {
+            CachingPriceRequester cache = new CachingPriceRequester(delegate, 10, evictionPolicy);
+            for (int i = 0; i < 100; i++) {
+                // keep instrument 0 hot in both recency and frequency
+                cache.getLastPrice("0");
+                cache.getLastPrice("0");
+                cache.getLastPrice(String.valueOf(i));
+            }
+            Assert.assertTrue(cache.size() <= 10);
+            Assert.assertTrue(cache.getEvictions() > 0);
+
+            int calls = delegateCalls.get();
+            cache.getLastPrice("0");
+            Assert.assertEquals(evictionPolicy + " evicted a hot entry", calls, delegateCalls.get());
+        }
+    }
+
+    /**
+     * A cache in front of a service is invalidated by the commits of the service without any wiring.
+     */
+    @Test
+    public void testServiceCommitsInvalidateTheCache() throws InterruptedException {
+        LastValuePriceService service = new LastValuePriceService();
+        service.run();
+        try {
+            CachingPriceRequester cache = new CachingPriceRequester(service, 100,
+                    CachingPriceRequester.EvictionPolicy.LRU);
+            Assert.assertNull(cache.getLastPrice("100"));
+
+            String batchRunId = service.start();
+            Assert.assertTrue(service.upload(batchRunId, new PriceRecord[]{new PriceRecord("100",
+                    LocalDateTime.of(2021, 1, 1, 0, 0, 0), ByteBuffer.allocateDirect(8).putDouble(1.0))}));
+            Assert.assertTrue(service.complete(batchRunId));
+            for (int i = 0; i < 500 && cache.getVersion() < 1; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(service.getCommitVersion(), cache.getVersion());
+            Assert.assertEquals(1.0, cache.getLastPrice("100").getPrice(), 0);
+
+            // a closed cache is no longer called by the commits of the service
+            cache.close();
+            batchRunId = service.start();
+            Assert.assertTrue(service.upload(batchRunId, new PriceRecord[]{new PriceRecord("100",
+                    LocalDateTime.of(2021, 1, 2, 0, 0, 0), ByteBuffer.allocateDirect(8).putDouble(2.0))}));
+            Assert.assertTrue(service.complete(batchRunId));
+            for (int i = 0; i < 500 && service.getCommitVersion(batchRunId) < 0; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(2, service.getCommitVersion());
+            Assert.assertEquals(1, cache.getVersion());
+        } finally {
+            service.terminate();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.service.price;
+
+import com.example.service.store.StoreSettings;
+
+import java.time.Duration;
+
+/**
+ * Runs the functionality tests against a store which deduplicates the payloads, maintains rollups and retains the
+ * superseded records, so that the optional features do not change the behavior of the service.
+ */
+public class DedupStoreFunctionalityTest extends LVPSFunctionalityTest {
+    private static final StoreSettings STORE_SETTINGS = StoreSettings.defaults()
+            .withRollupGranularities(Duration.ofHours(1), Duration.ofDays(1))
+            .withDeduplicatePayloads(true)
+            .withSupersededRetention(10);
+
+    @Override
+    LastValuePriceService createService() {
+        return createService(STORE_SETTINGS);
+    }
+}
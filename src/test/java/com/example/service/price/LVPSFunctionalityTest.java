@@ -1,12 +1,34 @@
 package com.example.service.price;
 
+import com.example.service.batch.BatchRunEvent;
+import com.example.service.batch.BatchRunTimeline;
+import com.example.service.batch.BatchRunTracer;
+import com.example.service.io.PriceFileFormat;
+import com.example.service.store.PriceRecordStore;
+import com.example.service.store.StoreSettings;
+import com.example.service.store.StoreSnapshot;
+import com.example.service.store.StoreStatistics;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.*;
+import java.util.stream.Collectors;
 
 public class LVPSFunctionalityTest extends LVPSTestBase {
     private final static Logger logger = LogManager.getLogger(LVPSFunctionalityTest.class);
@@ -296,6 +318,586 @@ public class LVPSFunctionalityTest extends LVPSTestBase {
         service.terminate();
     }
 
+    private static PriceRecord[] prepareSequentialPriceRecords(String instrumentId, int day, int count) {
+        PriceRecord[] priceRecords = new PriceRecord[count];
+        for (int i = 0; i < count; i++) {
+            priceRecords[i] = new PriceRecord(instrumentId,
+                    LocalDateTime.of(2021, 1, day, 0, 0, 0).plusSeconds(i),
+                    getRandomPayload());
+        }
+        return priceRecords;
+    }
+
+    /**
+     * COMPLETE and CANCEL requests are prioritized over the ADD chunks in the queue. This test ensures that
+     * a completed batch run still contains all of its chunks, and that a cancelled batch run which has many
+     * chunks in the queue is discarded entirely.
+     */
+    @Test
+    public void testCompleteAndCancelFollowTheirChunks() {
+        service.run();
+
+        String completedBatchRunId = service.start();
+        String cancelledBatchRunId = service.start();
+        for (int day = 1; day <= 20; day++) {
+            Assert.assertTrue(service.upload(completedBatchRunId, prepareSequentialPriceRecords("200", day, 100)));
+            Assert.assertTrue(service.upload(cancelledBatchRunId, prepareSequentialPriceRecords("201", day, 100)));
+        }
+        Assert.assertTrue(service.cancel(cancelledBatchRunId));
+        Assert.assertTrue(service.complete(completedBatchRunId));
+
+        try {
+            // sleep some time to be sure to get all requests to be consumed
+            Thread.sleep(500);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        Assert.assertEquals(2000, service.getNumberOfPriceRecords());
+        Assert.assertNull(service.getLastPrice("201"));
+        Assert.assertEquals(LocalDateTime.of(2021, 1, 20, 0, 0, 0).plusSeconds(99),
+                service.getLastPrice("200").asOf);
+
+        service.terminate();
+    }
+
+    /**
+     * A checkpoint publishes the chunks uploaded before it while its batch run stays open, and a cancel only
+     * discards the chunks uploaded after the last checkpoint. A checkpoint without new chunks commits nothing.
+     * [DESIGN DECISION]: The commits are asserted per batch run, by the instruments they contain, since the batch
+     * runs may be committed by different consumers in any order relative to each other.
+     */
+    @Test
+    public void testCheckpointsPublishPartsOfABatchRun() throws InterruptedException {
+        // the version of the commit of every instrument, each instrument is uploaded by a single chunk group
+        Map<String, Long> commitVersions = new ConcurrentHashMap<>();
+        // the listeners are called after the version is published
+        CountDownLatch commits = new CountDownLatch(4);
+        service.addCommitListener((version, priceRecords) -> {
+            priceRecords.forEach(priceRecord -> commitVersions.put(priceRecord.instrumentId, version));
+            commits.countDown();
+        });
+        service.run();
+
+        String cancelledBatchRunId = service.start();
+        for (int day = 1; day <= 10; day++) {
+            Assert.assertTrue(service.upload(cancelledBatchRunId, prepareSequentialPriceRecords("210", day, 100)));
+        }
+        Assert.assertTrue(service.checkpoint(cancelledBatchRunId));
+        awaitCommitVersion(1);
+        Assert.assertEquals(1000, service.getNumberOfPriceRecords());
+        Assert.assertEquals(LocalDateTime.of(2021, 1, 10, 0, 0, 0).plusSeconds(99),
+                service.getLastPrice("210").asOf);
+
+        Assert.assertTrue(service.upload(cancelledBatchRunId, prepareSequentialPriceRecords("211", 1, 100)));
+        Assert.assertTrue(service.checkpoint(cancelledBatchRunId));
+        for (int day = 1; day <= 10; day++) {
+            Assert.assertTrue(service.upload(cancelledBatchRunId, prepareSequentialPriceRecords("212", day, 100)));
+        }
+        Assert.assertTrue(service.cancel(cancelledBatchRunId));
+        Assert.assertFalse(service.checkpoint(cancelledBatchRunId));
+
+        String completedBatchRunId = service.start();
+        Assert.assertTrue(service.upload(completedBatchRunId, prepareSequentialPriceRecords("213", 1, 100)));
+        Assert.assertTrue(service.checkpoint(completedBatchRunId));
+        Assert.assertTrue(service.checkpoint(completedBatchRunId));
+        Assert.assertTrue(service.upload(completedBatchRunId, prepareSequentialPriceRecords("214", 1, 100)));
+        Assert.assertTrue(service.complete(completedBatchRunId));
+        awaitCommit(completedBatchRunId);
+        // a commit per checkpoint with records and one for the completion
+        Assert.assertTrue(commits.await(5, TimeUnit.SECONDS));
+
+        // the cancelled batch run: two checkpoint commits in order, the chunks after them are discarded
+        Assert.assertTrue(commitVersions.get("210") < commitVersions.get("211"));
+        Assert.assertFalse(commitVersions.containsKey("212"));
+        Assert.assertNotNull(service.getLastPrice("211"));
+        Assert.assertNull(service.getLastPrice("212"));
+        Assert.assertEquals(-1, service.getCommitVersion(cancelledBatchRunId));
+        // the completed batch run: one commit for its non-empty checkpoint, then the completion commit
+        Assert.assertTrue(commitVersions.get("213") < commitVersions.get("214"));
+        Assert.assertEquals((long) commitVersions.get("214"), service.getCommitVersion(completedBatchRunId));
+
+        Assert.assertEquals(4, new HashSet<>(commitVersions.values()).size());
+        Assert.assertEquals(4, service.getCommitVersion());
+        Assert.assertEquals(1300, service.getNumberOfPriceRecords());
+
+        service.terminate();
+    }
+
+    /**
+     * The statistics are maintained by the commits, records replaced by a later batch run must not be counted twice.
+     */
+    @Test
+    public void testStatisticsFollowCommits() {
+        Assert.assertEquals(0, service.getStatistics().getNumberOfRecords());
+        Assert.assertNull(service.getStatistics().getOldestAsOf());
+        service.run();
+
+        PriceRecord[] priceRecords = prepareSequentialPriceRecords("300", 1, 5);
+        String batchRunId = service.start();
+        Assert.assertTrue(service.upload(batchRunId, priceRecords));
+        Assert.assertTrue(service.upload(batchRunId, prepareSequentialPriceRecords("301", 2, 1)));
+        Assert.assertTrue(service.complete(batchRunId));
+        // batch runs may be committed out of order by different consumers
+        awaitCommit(batchRunId);
+
+        // replace the last record of instrument 300 with a heap payload
+        PriceRecord replacement = new PriceRecord("300", priceRecords[4].asOf, ByteBuffer.allocate(8).putDouble(1.0));
+        batchRunId = service.start();
+        Assert.assertTrue(service.upload(batchRunId, new PriceRecord[]{replacement}));
+        Assert.assertTrue(service.complete(batchRunId));
+
+        try {
+            // sleep some time to be sure to get all requests to be consumed
+            Thread.sleep(500);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        StoreStatistics statistics = service.getStatistics();
+        Assert.assertEquals(2, statistics.getVersion());
+        Assert.assertEquals(2, statistics.getNumberOfInstruments());
+        Assert.assertEquals(6, statistics.getNumberOfRecords());
+        Assert.assertEquals(6, service.getNumberOfPriceRecords());
+        Assert.assertEquals(5, statistics.getMaxRecordsPerInstrument());
+        // one instrument with 1 record, one instrument with 4 to 7 records
+        Assert.assertArrayEquals(new long[]{1, 0, 1}, statistics.getRecordsPerInstrumentHistogram());
+        Assert.assertEquals(priceRecords[0].asOf, statistics.getOldestAsOf());
+        Assert.assertEquals(LocalDateTime.of(2021, 1, 2, 0, 0, 0), statistics.getNewestAsOf());
+        long directPayloadBytes = service.getLastPrice("301").getPayloadSize();
+        for (int i = 0; i < 4; i++) {
+            directPayloadBytes += priceRecords[i].getPayloadSize();
+        }
+        Assert.assertEquals(directPayloadBytes, statistics.getDirectPayloadBytes());
+        Assert.assertEquals(8, statistics.getHeapPayloadBytes());
+
+        service.terminate();
+    }
+
+    /**
+     * A correction replaces the prices of its date times, while the lookups as known at the version before the
+     * correction still return the replaced prices, as long as they are retained.
+     */
+    @Test
+    public void testLookupAsKnownAtVersion() {
+        useStoreSettings(StoreSettings.defaults().withSupersededRetention(10));
+        service.run();
+
+        LocalDateTime day = LocalDateTime.of(2021, 5, 3, 0, 0);
+        String batchRunId = service.start();
+        Assert.assertTrue(service.upload(batchRunId, new PriceRecord[]{newPriceRecord("600", day, 1.0),
+                newPriceRecord("600", day.plusDays(1), 2.0)}));
+        Assert.assertTrue(service.complete(batchRunId));
+        awaitCommit(batchRunId);
+        long loadVersion = service.getCommitVersion(batchRunId);
+
+        String correctionId = service.start();
+        Assert.assertTrue(service.upload(correctionId, new PriceRecord[]{
+                newPriceRecord("600", day.plusDays(1), 20.0), newPriceRecord("600", day.plusDays(2), 3.0)}));
+        Assert.assertTrue(service.complete(correctionId));
+        awaitCommit(correctionId);
+        long beforeCorrection = service.getCommitVersion(correctionId) - 1;
+
+        Assert.assertEquals(20.0, service.getLastPrice("600", day.plusDays(1)).getPrice(), 0);
+        Assert.assertEquals(3.0, service.getLastPrice("600", day.plusDays(2)).getPrice(), 0);
+        Assert.assertEquals(2.0, service.getLastPrice("600", day.plusDays(1), beforeCorrection).getPrice(), 0);
+        // the record of the third day was not known before the correction
+        Assert.assertEquals(2.0, service.getLastPrice("600", day.plusDays(2), beforeCorrection).getPrice(), 0);
+        Assert.assertEquals(1.0, service.getLastPrice("600", day, beforeCorrection).getPrice(), 0);
+        Assert.assertNull(service.getLastPrice("600", day.plusDays(2), loadVersion - 1));
+        Assert.assertEquals(3.0, service.getLastPrice("600", day.plusDays(2), service.getCommitVersion()).getPrice(),
+                0);
+
+        service.terminate();
+    }
+
+    @Test
+    public void testSupersededRecordsRetention() {
+        PriceRecordStore store = new PriceRecordStore(StoreSettings.defaults().withSupersededRetention(1));
+        LocalDateTime day = LocalDateTime.of(2021, 5, 3, 0, 0);
+        long first = store.store(Collections.singletonList(newPriceRecord("700", day, 1.0)));
+        long second = store.store(Collections.singletonList(newPriceRecord("700", day, 2.0)));
+        Assert.assertEquals(1.0, store.getLatest("700", day, first).getPrice(), 0);
+
+        // the first record is not needed anymore for lookups from the second version on
+        long third = store.store(Collections.singletonList(newPriceRecord("700", day, 3.0)));
+        Assert.assertEquals(3.0, store.getLatest("700", day, third).getPrice(), 0);
+        Assert.assertEquals(2.0, store.getLatest("700", day, second).getPrice(), 0);
+        try {
+            store.getLatest("700", day, first);
+            Assert.fail("A record beyond the retention must not be returned");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertNull(store.getLatest("700", day.minusDays(1), first));
+    }
+
+    /**
+     * A snapshot keeps seeing the prices of its commit, including the replaced ones, until it is closed.
+     */
+    @Test
+    public void testPinnedSnapshot() {
+        service.run();
+
+        LocalDateTime day = LocalDateTime.of(2021, 6, 1, 0, 0);
+        String batchRunId = service.start();
+        Assert.assertTrue(service.upload(batchRunId, new PriceRecord[]{newPriceRecord("800", day, 1.0),
+                newPriceRecord("801", day, 10.0)}));
+        Assert.assertTrue(service.complete(batchRunId));
+        awaitCommit(batchRunId);
+
+        PriceSnapshot snapshot = service.openSnapshot();
+        Assert.assertEquals(service.getCommitVersion(), snapshot.getVersion());
+
+        batchRunId = service.start();
+        Assert.assertTrue(service.upload(batchRunId, new PriceRecord[]{newPriceRecord("800", day, 2.0),
+                newPriceRecord("800", day.plusDays(1), 3.0), newPriceRecord("802", day, 20.0)}));
+        Assert.assertTrue(service.complete(batchRunId));
+        awaitCommit(batchRunId);
+
+        Assert.assertEquals(3.0, service.getLastPrice("800").getPrice(), 0);
+        Assert.assertEquals(1.0, snapshot.getLastPrice("800").getPrice(), 0);
+        Assert.assertEquals(1.0, snapshot.getLastPrice("800", day).getPrice(), 0);
+        Assert.assertEquals(10.0, snapshot.getLastPrice("801").getPrice(), 0);
+        Assert.assertNull(snapshot.getLastPrice("802"));
+        Assert.assertEquals(1, service.getStatistics().getOpenSnapshots());
+
+        // an export takes its own snapshot of the last commit
+        ByteArrayOutputStream export = new ByteArrayOutputStream();
+        try {
+            Assert.assertEquals(3, service.exportLastPrices(day.plusDays(1), Channels.newChannel(export),
+                    PriceFileFormat.CSV));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        Assert.assertTrue(export.toString().contains("800,2021-06-02T00:00:00,3.0\n"));
+        Assert.assertTrue(export.toString().contains("802,2021-06-01T00:00:00,20.0\n"));
+
+        snapshot.close();
+        snapshot.close();
+        try {
+            snapshot.getLastPrice("800");
+            Assert.fail("A closed snapshot must not be used");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        service.terminate();
+    }
+
+    @Test
+    public void testSnapshotLeakGuard() {
+        PriceRecordStore store = new PriceRecordStore(StoreSettings.defaults().withMaxSnapshotAge(Duration.ZERO));
+        LocalDateTime day = LocalDateTime.of(2021, 6, 1, 0, 0);
+        store.store(Collections.singletonList(newPriceRecord("900", day, 1.0)));
+
+        StoreSnapshot<PriceRecord> expiring = store.openSnapshot();
+        Assert.assertEquals(1.0, expiring.getLatest("900", day).getPrice(), 0);
+        // the next commit expires the snapshot, so its replaced record is not retained
+        store.store(Collections.singletonList(newPriceRecord("900", day, 2.0)));
+        Assert.assertEquals(0, store.getStatistics().getOpenSnapshots());
+        try {
+            expiring.getLatest("900", day);
+            Assert.fail("An expired snapshot must not be used");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        store = new PriceRecordStore();
+        store.store(Collections.singletonList(newPriceRecord("900", day, 1.0)));
+        store.openSnapshot();
+        for (int i = 0; i < 100 && store.getStatistics().getLeakedSnapshots() == 0; i++) {
+            System.gc();
+            store.store(Collections.singletonList(newPriceRecord("900", day, i)));
+        }
+        Assert.assertEquals(1, store.getStatistics().getLeakedSnapshots());
+        Assert.assertEquals(0, store.getStatistics().getOpenSnapshots());
+    }
+
+    @Test
+    public void testLongTimelinesWithCorrections() {
+        useStoreSettings(StoreSettings.defaults().withRollupGranularities(Duration.ofHours(1)));
+        service.run();
+
+        // random minutes of a day uploaded out of order by batch runs which correct each other, many more records
+        // than a chunk of a timeline holds
+        LocalDateTime day = LocalDateTime.of(2021, 7, 1, 0, 0);
+        TreeMap<LocalDateTime, Double> expected = new TreeMap<>();
+        TreeMap<LocalDateTime, Double> expectedAtSnapshot = null;
+        PriceSnapshot snapshot = null;
+        Random random = new Random(42);
+        for (int run = 0; run < 6; run++) {
+            PriceRecord[] priceRecords = new PriceRecord[500];
+            for (int i = 0; i < priceRecords.length; i++) {
+                LocalDateTime asOf = day.plusMinutes(random.nextInt(1440)).plusNanos(random.nextInt(2));
+                priceRecords[i] = newPriceRecord("900", asOf, run * 1000 + i);
+                expected.put(asOf, (double) (run * 1000 + i));
+            }
+            String batchRunId = service.start();
+            Assert.assertTrue(service.upload(batchRunId, priceRecords));
+            Assert.assertTrue(service.complete(batchRunId));
+            awaitCommit(batchRunId);
+            if (run == 2) {
+                snapshot = service.openSnapshot();
+                expectedAtSnapshot = new TreeMap<>(expected);
+            }
+        }
+
+        Assert.assertEquals(expected.size(), service.getNumberOfPriceRecords());
+        Assert.assertEquals(expected.lastEntry().getValue(), service.getLastPriceValue("900").getAsDouble(), 0);
+        Assert.assertFalse(service.getLastPriceValue("901").isPresent());
+        Assert.assertFalse(service.getLastPriceValue(null, day).isPresent());
+        for (LocalDateTime asOf = day.minusMinutes(1); asOf.isBefore(day.plusDays(1)); asOf = asOf.plusSeconds(30)) {
+            assertPrice(expected.floorEntry(asOf), service.getLastPrice("900", asOf));
+            OptionalDouble price = service.getLastPriceValue("900", asOf);
+            Assert.assertEquals(expected.floorEntry(asOf) != null, price.isPresent());
+            if (price.isPresent()) Assert.assertEquals(expected.floorEntry(asOf).getValue(), price.getAsDouble(), 0);
+            assertPrice(expectedAtSnapshot.floorEntry(asOf), snapshot.getLastPrice("900", asOf));
+        }
+        snapshot.close();
+
+        List<PriceBar> bars = service.getPriceBars("900", Duration.ofHours(1), day, day.plusDays(1));
+        Assert.assertEquals(24, bars.size());
+        for (PriceBar bar : bars) {
+            SortedMap<LocalDateTime, Double> hour = expected.subMap(bar.start, bar.start.plusHours(1));
+            Assert.assertEquals(hour.size(), bar.getCount());
+            Assert.assertEquals(hour.get(hour.lastKey()), bar.getClose(), 0);
+            Assert.assertEquals(Collections.max(hour.values()), bar.getHigh(), 0);
+        }
+
+        service.terminate();
+    }
+
+    private static void assertPrice(Map.Entry<LocalDateTime, Double> expected, PriceRecord priceRecord) {
+        if (expected == null) {
+            Assert.assertNull(priceRecord);
+        } else {
+            Assert.assertEquals(expected.getKey(), priceRecord.asOf);
+            Assert.assertEquals(expected.getValue(), priceRecord.getPrice(), 0);
+        }
+    }
+
+    private static PriceRecord newPriceRecord(String instrumentId, LocalDateTime asOf, double price) {
+        return new PriceRecord(instrumentId, asOf, ByteBuffer.allocateDirect(64).putDouble(price));
+    }
+
+    /**
+     * Identical payloads are shared by the stored records, and a shared payload stays available to the other
+     * records when one of them is replaced.
+     */
+    @Test
+    public void testPayloadDeduplication() {
+        useStoreSettings(StoreSettings.defaults().withDeduplicatePayloads(true));
+        service.run();
+
+        LocalDateTime asOf = LocalDateTime.of(2021, 4, 1, 0, 0);
+        PriceRecord[] priceRecords = new PriceRecord[4];
+        for (int i = 0; i < priceRecords.length; i++) {
+            // instruments 500 to 502 resend an unchanged 1 KB payload, 503 has another price
+            priceRecords[i] = new PriceRecord(String.valueOf(500 + i), asOf,
+                    ByteBuffer.allocateDirect(1024).putDouble(i < 3 ? 7.0 : 8.0));
+        }
+        String batchRunId = service.start();
+        Assert.assertTrue(service.upload(batchRunId, priceRecords));
+        Assert.assertTrue(service.complete(batchRunId));
+        awaitCommit(batchRunId);
+
+        StoreStatistics statistics = service.getStatistics();
+        Assert.assertEquals(2, statistics.getDedupedRecords());
+        Assert.assertEquals(2048, statistics.getDedupSavedBytes());
+        Assert.assertEquals(4096, statistics.getDirectPayloadBytes());
+        Assert.assertEquals(2.0, statistics.getDedupRatio(), 0.0001);
+
+        // replace the record whose payload is shared by the others
+        batchRunId = service.start();
+        Assert.assertTrue(service.upload(batchRunId, new PriceRecord[]{new PriceRecord("500", asOf,
+                ByteBuffer.allocateDirect(1024).putDouble(9.0))}));
+        Assert.assertTrue(service.complete(batchRunId));
+        awaitCommit(batchRunId);
+
+        statistics = service.getStatistics();
+        Assert.assertEquals(1, statistics.getDedupedRecords());
+        Assert.assertEquals(1024, statistics.getDedupSavedBytes());
+        Assert.assertEquals(9.0, service.getLastPrice("500").getPrice(), 0);
+        Assert.assertEquals(7.0, service.getLastPrice("501").getPrice(), 0);
+        Assert.assertEquals(7.0, service.getLastPrice("502").getPrice(), 0);
+        Assert.assertEquals(1024, service.getLastPrice("502").getPayloadSize());
+
+        service.terminate();
+    }
+
+    /**
+     * A replaced record keeps its reference to a shared payload while it is retained as superseded, and releases it
+     * when it is pruned.
+     */
+    @Test
+    public void testPayloadDeduplicationOfRetainedRecords() {
+        useStoreSettings(StoreSettings.defaults().withDeduplicatePayloads(true).withSupersededRetention(1));
+        service.run();
+
+        LocalDateTime asOf = LocalDateTime.of(2021, 4, 1, 0, 0);
+        PriceRecord[] priceRecords = new PriceRecord[3];
+        for (int i = 0; i < priceRecords.length; i++) {
+            priceRecords[i] = new PriceRecord(String.valueOf(510 + i), asOf,
+                    ByteBuffer.allocateDirect(1024).putDouble(7.0));
+        }
+        String batchRunId = service.start();
+        Assert.assertTrue(service.upload(batchRunId, priceRecords));
+        Assert.assertTrue(service.complete(batchRunId));
+        awaitCommit(batchRunId);
+        Assert.assertEquals(2, service.getStatistics().getDedupedRecords());
+
+        // the replaced record is still visible to the lookups known at the first version
+        batchRunId = service.start();
+        Assert.assertTrue(service.upload(batchRunId, new PriceRecord[]{new PriceRecord("510", asOf,
+                ByteBuffer.allocateDirect(1024).putDouble(9.0))}));
+        Assert.assertTrue(service.complete(batchRunId));
+        awaitCommit(batchRunId);
+        Assert.assertEquals(2, service.getStatistics().getDedupedRecords());
+        Assert.assertEquals(2048, service.getStatistics().getDedupSavedBytes());
+
+        // the next commit moves the retention past the replacement, the replaced record is pruned
+        batchRunId = service.start();
+        Assert.assertTrue(service.upload(batchRunId, new PriceRecord[]{new PriceRecord("513", asOf,
+                ByteBuffer.allocateDirect(1024).putDouble(8.0))}));
+        Assert.assertTrue(service.complete(batchRunId));
+        awaitCommit(batchRunId);
+        Assert.assertEquals(1, service.getStatistics().getDedupedRecords());
+        Assert.assertEquals(1024, service.getStatistics().getDedupSavedBytes());
+        Assert.assertEquals(7.0, service.getLastPrice("511").getPrice(), 0);
+
+        service.terminate();
+    }
+
+    /**
+     * The bars are maintained by the commits, including the replacement of a record which lowers the high of its
+     * bar, and are read for a range at the granularities the store is created with.
+     */
+    @Test
+    public void testPriceBars() {
+        useStoreSettings(StoreSettings.defaults()
+                .withRollupGranularities(Duration.ofHours(1), Duration.ofDays(1)));
+        service.run();
+
+        LocalDateTime day = LocalDateTime.of(2021, 3, 1, 0, 0);
+        double[] prices = {10, 12, 9, 11, 20, 18};
+        PriceRecord[] priceRecords = new PriceRecord[prices.length];
+        for (int i = 0; i < prices.length; i++) {
+            // three records in each of the hours 10:00 and 11:00, uploaded in reverse order
+            LocalDateTime asOf = day.plusHours(10 + i / 3).plusMinutes(10 * (i % 3));
+            priceRecords[prices.length - 1 - i] = new PriceRecord("400", asOf,
+                    ByteBuffer.allocate(8).putDouble(prices[i]));
+        }
+        String batchRunId = service.start();
+        Assert.assertTrue(service.upload(batchRunId, priceRecords));
+        Assert.assertTrue(service.complete(batchRunId));
+        awaitCommit(batchRunId);
+
+        // the range starts within the 10:00 bucket
+        List<PriceBar> hourly = service.getPriceBars("400", Duration.ofHours(1), day.plusMinutes(630),
+                day.plusDays(1));
+        Assert.assertEquals(2, hourly.size());
+        assertBar(hourly.get(0), day.plusHours(10), 10, 12, 9, 9, 3);
+        assertBar(hourly.get(1), day.plusHours(11), 11, 20, 11, 18, 3);
+
+        // replace the high of the 11:00 bar
+        batchRunId = service.start();
+        Assert.assertTrue(service.upload(batchRunId, new PriceRecord[]{new PriceRecord("400",
+                day.plusHours(11).plusMinutes(10), ByteBuffer.allocate(8).putDouble(15))}));
+        Assert.assertTrue(service.complete(batchRunId));
+        awaitCommit(batchRunId);
+
+        hourly = service.getPriceBars("400", Duration.ofHours(1), day.plusHours(11), day.plusHours(12));
+        Assert.assertEquals(1, hourly.size());
+        assertBar(hourly.get(0), day.plusHours(11), 11, 18, 11, 18, 3);
+        List<PriceBar> daily = service.getPriceBars("400", Duration.ofDays(1), day, day.plusDays(7));
+        Assert.assertEquals(1, daily.size());
+        assertBar(daily.get(0), day, 10, 18, 9, 18, 6);
+
+        Assert.assertTrue(service.getPriceBars("400", Duration.ofHours(1), day, day.plusHours(10)).isEmpty());
+        Assert.assertTrue(service.getPriceBars("401", Duration.ofDays(1), day, day.plusDays(1)).isEmpty());
+        // a range which ends before the bucket of its start has no bars
+        Assert.assertTrue(service.getPriceBars("400", Duration.ofHours(1), day.plusMinutes(630),
+                day.plusMinutes(590)).isEmpty());
+        try {
+            service.getPriceBars("400", Duration.ofMinutes(1), day, day.plusDays(1));
+            Assert.fail("A granularity without a rollup must be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        service.terminate();
+    }
+
+    private static void assertBar(PriceBar bar, LocalDateTime start, double open, double high, double low,
+                                  double close, int count) {
+        Assert.assertEquals(start, bar.start);
+        Assert.assertEquals(open, bar.getOpen(), 0);
+        Assert.assertEquals(high, bar.getHigh(), 0);
+        Assert.assertEquals(low, bar.getLow(), 0);
+        Assert.assertEquals(close, bar.getClose(), 0);
+        Assert.assertEquals(count, bar.getCount());
+    }
+
+    @Test
+    public void testBatchRunTimeline() {
+        service.run();
+
+        String batchRunId = service.start();
+        long uploadedBytes = 0;
+        for (int day = 1; day <= 3; day++) {
+            PriceRecord[] priceRecords = prepareSequentialPriceRecords("400", day, 10);
+            for (PriceRecord priceRecord : priceRecords) {
+                uploadedBytes += priceRecord.getPayloadSize();
+            }
+            Assert.assertTrue(service.upload(batchRunId, priceRecords));
+        }
+        Assert.assertTrue(service.complete(batchRunId));
+
+        try {
+            // sleep some time to be sure to get all requests to be consumed
+            Thread.sleep(500);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        BatchRunTimeline timeline = service.getBatchRunTimeline(batchRunId);
+        logger.debug(timeline);
+        List<BatchRunEvent.Stage> stages = timeline.getEvents().stream().map(BatchRunEvent::getStage)
+                .collect(Collectors.toList());
+        Assert.assertEquals(BatchRunEvent.Stage.START, stages.get(0));
+        Assert.assertEquals(3, Collections.frequency(stages, BatchRunEvent.Stage.ENQUEUE));
+        Assert.assertEquals(3, Collections.frequency(stages, BatchRunEvent.Stage.STAGED));
+        // CREATE, 3 chunks and COMPLETE
+        Assert.assertEquals(5, Collections.frequency(stages, BatchRunEvent.Stage.DEQUEUE));
+        Assert.assertEquals(BatchRunEvent.Stage.COMMIT_START, stages.get(stages.size() - 2));
+        Assert.assertEquals(BatchRunEvent.Stage.COMMIT_END, stages.get(stages.size() - 1));
+        Assert.assertEquals(30, timeline.getEvents().get(stages.size() - 1).getRecords());
+        Assert.assertEquals(uploadedBytes, timeline.getUploadedBytes());
+        Assert.assertNotNull(timeline.getDuration(BatchRunEvent.Stage.START, BatchRunEvent.Stage.COMMIT_END));
+        Assert.assertFalse(timeline.getMaxQueueWait().isNegative());
+
+        service.terminate();
+    }
+
+    @Test
+    public void testBatchRunTracerSamplingAndCapacity() {
+        BatchRunTracer tracer = new BatchRunTracer(4, 1);
+        for (int i = 1; i <= 10; i++) {
+            tracer.record("B", BatchRunEvent.Stage.ENQUEUE, i, 1, 1);
+        }
+        // only the latest events are retained
+        BatchRunTimeline timeline = tracer.getTimeline("B");
+        Assert.assertEquals(4, timeline.getEvents().size());
+        Assert.assertEquals(7, timeline.getEvents().get(0).getChunk());
+        Assert.assertEquals(10, tracer.getRecordedEvents());
+
+        BatchRunTracer disabled = new BatchRunTracer(4, 0);
+        disabled.record("B", BatchRunEvent.Stage.START);
+        Assert.assertTrue(disabled.getTimeline("B").isEmpty());
+        Assert.assertEquals(0, disabled.getRecordedEvents());
+    }
+
     @Test
     public void testPriceRequestWithNullParams() {
         Assert.assertNull(service.getLastPrice(null));
@@ -1,5 +1,7 @@
 package com.example.service.price;
 
+import com.example.service.store.PriceRecordStore;
+import com.example.service.store.StoreSettings;
 import org.junit.After;
 import org.junit.Before;
 
@@ -85,10 +87,67 @@ public class LVPSTestBase {
         }
     }
 
+    /**
+     * Creates the service under test. Override it to run the same tests against another configuration of the
+     * service, e.g. another store engine.
+     */
+    LastValuePriceService createService() {
+        return LastValuePriceService.builder()
+                .recordStore(new PriceRecordStore())
+                .build();
+    }
+
+    /**
+     * Creates the service under test with a store which has the given optional features, e.g. rollups for a test
+     * of the price bars. Override it together with {@link #createService()} for another store engine.
+     */
+    LastValuePriceService createService(StoreSettings storeSettings) {
+        return LastValuePriceService.builder()
+                .recordStore(new PriceRecordStore(storeSettings))
+                .build();
+    }
+
+    /**
+     * Replaces the service under test, which is not running yet, by one with the given store features.
+     */
+    void useStoreSettings(StoreSettings storeSettings) {
+        service = createService(storeSettings);
+    }
+
+    /**
+     * Waits until the given batch run is committed, since the consumers commit the batch runs asynchronously.
+     */
+    void awaitCommit(String batchRunId) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (service.getCommitVersion(batchRunId) < 0) {
+            if (System.nanoTime() > deadline) throw new AssertionError("Batch run not committed: " + batchRunId);
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    /**
+     * Waits until the store has published the given commit version.
+     */
+    void awaitCommitVersion(long version) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (service.getCommitVersion() < version) {
+            if (System.nanoTime() > deadline) throw new AssertionError("Version not committed: " + version);
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
     @Before
     public void prepareTest() {
         // start each test with a fresh instance
-        service = new LastValuePriceService();
+        service = createService();
         resetFailure();
     }
 
@@ -0,0 +1,41 @@
+package com.example.service.price;
+
+import com.example.service.batch.BatchRunRequestQueue;
+import com.example.service.store.PriceRecordStore;
+import com.example.service.store.StripedPriceRecordStore;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+public class StoreEngineComparisonTest {
+    private final static Logger logger = LogManager.getLogger(StoreEngineComparisonTest.class);
+
+    /**
+     * Runs the standard load profile against the store engines and the consumer configurations of the service,
+     * and logs their throughput side by side. Add a candidate engine here to benchmark it on the same workload.
+     */
+    @Test
+    public void demonstrateStoreEngines() throws Exception {
+        Map<String, Supplier<LastValuePriceService>> configurations = new LinkedHashMap<>();
+        configurations.put("single lock, 1 consumer", () -> LastValuePriceService.builder()
+                .recordStore(new PriceRecordStore()).build());
+        configurations.put("single lock, 4 consumers", () -> LastValuePriceService.builder()
+                .recordStore(new PriceRecordStore()).consumers(4).build());
+        configurations.put("striped, 1 consumer, FIFO", () -> LastValuePriceService.builder()
+                .recordStore(new StripedPriceRecordStore()).queueType(BatchRunRequestQueue.Type.FIFO).build());
+        configurations.put("striped, 4 consumers", () -> LastValuePriceService.builder()
+                .recordStore(new StripedPriceRecordStore()).consumers(4).build());
+
+        StoreLoadProfile profile = StoreLoadProfile.STANDARD;
+        for (Map.Entry<String, Supplier<LastValuePriceService>> configuration : configurations.entrySet()) {
+            StoreLoadProfile.Result result = profile.run(configuration.getValue().get());
+            logger.info("{}: {}", configuration.getKey(), result);
+            Assert.assertEquals(profile.getNumberOfRecords(), result.records);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.service.price;
+
+import org.junit.Assert;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A standard workload to compare the store engines and the configurations of the service: producers upload
+ * batch runs of distinct records while requesters look up the latest prices of random instruments.
+ * The ingestion is measured from the first upload until all the batch runs are committed.
+ */
+class StoreLoadProfile {
+    static final StoreLoadProfile STANDARD = new StoreLoadProfile(4, 5, 20, 500, 1000, 64, 4);
+
+    final int producers;
+    final int batchRunsPerProducer;
+    final int chunksPerBatchRun;
+    final int recordsPerChunk;
+    final int instruments;
+    final int payloadSize;
+    final int requesters;
+
+    static final class Result {
+        final long records;
+        final long ingestNanos;
+        final long lookups;
+
+        private Result(long records, long ingestNanos, long lookups) {
+            this.records = records;
+            this.ingestNanos = ingestNanos;
+            this.lookups = lookups;
+        }
+
+        double getRecordsPerSecond() {
+            return records * 1e9 / ingestNanos;
+        }
+
+        double getLookupsPerSecond() {
+            return lookups * 1e9 / ingestNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d records in %d ms: %.0f records/s, %.0f lookups/s", records,
+                    TimeUnit.NANOSECONDS.toMillis(ingestNanos), getRecordsPerSecond(), getLookupsPerSecond());
+        }
+    }
+
+    StoreLoadProfile(int producers, int batchRunsPerProducer, int chunksPerBatchRun, int recordsPerChunk,
+                     int instruments, int payloadSize, int requesters) {
+        this.producers = producers;
+        this.batchRunsPerProducer = batchRunsPerProducer;
+        this.chunksPerBatchRun = chunksPerBatchRun;
+        this.recordsPerChunk = recordsPerChunk;
+        this.instruments = instruments;
+        this.payloadSize = payloadSize;
+        this.requesters = requesters;
+    }
+
+    long getNumberOfRecords() {
+        return (long) producers * batchRunsPerProducer * chunksPerBatchRun * recordsPerChunk;
+    }
+
+    /**
+     * Prepares the chunks of every producer, so that preparing them is not measured. The records are distinct:
+     * every record of a producer has its own date time.
+     */
+    private List<List<PriceRecord[]>> prepareChunks() {
+        LocalDateTime t0 = LocalDateTime.of(2021, 1, 1, 0, 0, 0);
+        List<List<PriceRecord[]>> producerChunks = new ArrayList<>(producers);
+        for (int p = 0; p < producers; p++) {
+            List<PriceRecord[]> chunks = new ArrayList<>();
+            long sequence = 0;
+            for (int c = 0; c < batchRunsPerProducer * chunksPerBatchRun; c++) {
+                PriceRecord[] chunk = new PriceRecord[recordsPerChunk];
+                for (int r = 0; r < recordsPerChunk; r++, sequence++) {
+                    chunk[r] = new PriceRecord(String.valueOf(sequence % instruments),
+                            t0.plusSeconds(sequence * producers + p),
+                            ByteBuffer.allocateDirect(payloadSize).putDouble(sequence));
+                }
+                chunks.add(chunk);
+            }
+            producerChunks.add(chunks);
+        }
+        return producerChunks;
+    }
+
+    Result run(LastValuePriceService service) throws Exception {
+        List<List<PriceRecord[]>> producerChunks = prepareChunks();
+        ExecutorService threads = Executors.newFixedThreadPool(producers + requesters);
+        AtomicBoolean ingesting = new AtomicBoolean(true);
+        LongAdder lookups = new LongAdder();
+        try {
+            service.run();
+            for (int r = 0; r < requesters; r++) {
+                threads.execute(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (ingesting.get()) {
+                        service.getLastPrice(String.valueOf(random.nextInt(instruments)));
+                        lookups.increment();
+                    }
+                });
+            }
+
+            long start = System.nanoTime();
+            List<Future<List<String>>> producerTasks = new ArrayList<>(producers);
+            for (List<PriceRecord[]> chunks : producerChunks) {
+                producerTasks.add(threads.submit(() -> {
+                    List<String> batchRunIds = new ArrayList<>(batchRunsPerProducer);
+                    for (int b = 0; b < batchRunsPerProducer; b++) {
+                        String batchRunId = service.start();
+                        for (PriceRecord[] chunk : chunks.subList(b * chunksPerBatchRun, (b + 1) * chunksPerBatchRun)) {
+                            Assert.assertTrue(service.upload(batchRunId, chunk));
+                        }
+                        Assert.assertTrue(service.complete(batchRunId));
+                        batchRunIds.add(batchRunId);
+                    }
+                    return batchRunIds;
+                }));
+            }
+            for (Future<List<String>> producerTask : producerTasks) {
+                for (String batchRunId : producerTask.get()) {
+                    while (service.getCommitVersion(batchRunId) < 0) {
+                        Thread.sleep(1);
+                    }
+                }
+            }
+            long ingestNanos = System.nanoTime() - start;
+            ingesting.set(false);
+            return new Result(service.getNumberOfPriceRecords(), ingestNanos, lookups.sum());
+        } finally {
+            ingesting.set(false);
+            threads.shutdownNow();
+            service.terminate();
+        }
+    }
+}
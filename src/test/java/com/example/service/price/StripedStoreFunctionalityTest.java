@@ -0,0 +1,22 @@
+package com.example.service.price;
+
+import com.example.service.store.StoreSettings;
+import com.example.service.store.StripedPriceRecordStore;
+
+/**
+ * Runs the functionality tests against the striped store engine, committed by many consumers.
+ */
+public class StripedStoreFunctionalityTest extends LVPSFunctionalityTest {
+    @Override
+    LastValuePriceService createService() {
+        return createService(StoreSettings.defaults());
+    }
+
+    @Override
+    LastValuePriceService createService(StoreSettings storeSettings) {
+        return LastValuePriceService.builder()
+                .recordStore(new StripedPriceRecordStore(8, storeSettings))
+                .consumers(4)
+                .build();
+    }
+}
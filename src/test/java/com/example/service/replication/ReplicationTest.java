@@ -0,0 +1,155 @@
+package com.example.service.replication;
+
+import com.example.service.price.LastValuePriceService;
+import com.example.service.price.PriceRecord;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+public class ReplicationTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private LastValuePriceService leaderService;
+    private ReplicationLeader leader;
+
+    private static PriceRecord newPriceRecord(String instrumentId, int day, double price) {
+        ByteBuffer payload = ByteBuffer.allocateDirect(64).putDouble(price);
+        return new PriceRecord(instrumentId, LocalDateTime.of(2021, 1, day, 0, 0, 0), payload);
+    }
+
+    /**
+     * Completes a batch run on the leader and waits until it is committed.
+     * @return the commit version of the batch run
+     */
+    private long commitBatchRun(PriceRecord... priceRecords) throws InterruptedException {
+        String batchRunId = leaderService.start();
+        Assert.assertTrue(leaderService.upload(batchRunId, priceRecords));
+        Assert.assertTrue(leaderService.complete(batchRunId));
+
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        long version;
+        while ((version = leaderService.getCommitVersion(batchRunId)) < 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertTrue(version > 0);
+        return version;
+    }
+
+    @Before
+    public void prepareTest() {
+        leaderService = new LastValuePriceService();
+        leader = new ReplicationLeader(16);
+        leaderService.addCommitListener(leader);
+        leaderService.run();
+    }
+
+    @After
+    public void endTest() {
+        leaderService.terminate();
+    }
+
+    @Test
+    public void testFollowersInSameJvm() throws InterruptedException {
+        try (ReplicationFollower follower1 = new ReplicationFollower();
+             ReplicationFollower follower2 = new ReplicationFollower()) {
+            leader.addFollower(follower1, follower1.getAppliedVersion());
+            leader.addFollower(follower2, follower2.getAppliedVersion());
+
+            long version1 = commitBatchRun(newPriceRecord("100", 1, 1.0), newPriceRecord("101", 1, 2.0));
+            long version2 = commitBatchRun(newPriceRecord("100", 2, 3.0));
+            Assert.assertEquals(version1 + 1, version2);
+
+            for (ReplicationFollower follower : new ReplicationFollower[]{follower1, follower2}) {
+                // read-your-commit: wait for the version of the batch run before reading it
+                Assert.assertTrue(follower.awaitVersion(version2, TIMEOUT));
+                Assert.assertEquals(3.0, follower.getLastPrice("100").getPrice(), 0);
+                Assert.assertEquals(1.0, follower.getLastPrice("100", LocalDateTime.of(2021, 1, 1, 12, 0, 0)).getPrice(), 0);
+                Assert.assertEquals(2.0, follower.getLastPrice("101").getPrice(), 0);
+                Assert.assertEquals(3, follower.getNumberOfPriceRecords());
+                Assert.assertEquals(0, follower.getVersionLag());
+                Assert.assertEquals(Duration.ZERO, follower.getReplicationLag());
+            }
+        }
+    }
+
+    @Test
+    public void testLateFollowerOverLoopback() throws InterruptedException, IOException {
+        long version1 = commitBatchRun(newPriceRecord("100", 1, 1.0));
+
+        try (ReplicationServer server = new ReplicationServer(leader,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             ReplicationFollower follower = new ReplicationFollower()) {
+            server.start();
+            ReplicationClient client = ReplicationClient.connect(server.getLocalAddress(), follower);
+            try {
+                // the first entry is replayed from the retained log
+                Assert.assertTrue(follower.awaitVersion(version1, TIMEOUT));
+                Assert.assertEquals(1.0, follower.getLastPrice("100").getPrice(), 0);
+
+                long version2 = commitBatchRun(newPriceRecord("100", 2, 2.0), newPriceRecord("102", 2, 4.0));
+                Assert.assertTrue(follower.awaitVersion(version2, TIMEOUT));
+                Assert.assertEquals(2.0, follower.getLastPrice("100").getPrice(), 0);
+                Assert.assertEquals(4.0, follower.getLastPrice("102").getPrice(), 0);
+                Assert.assertEquals(leader.getCommittedVersion(), follower.getAppliedVersion());
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFollowerBehindRetainedLogIsRejected() throws InterruptedException {
+        leader = new ReplicationLeader(1);
+        leaderService.addCommitListener(leader);
+        commitBatchRun(newPriceRecord("100", 1, 1.0));
+        commitBatchRun(newPriceRecord("100", 2, 2.0));
+
+        try (ReplicationFollower follower = new ReplicationFollower()) {
+            leader.addFollower(follower, follower.getAppliedVersion());
+        }
+    }
+
+    /**
+     * A follower stops at a gap instead of applying the entries after it, and resumes from the version it has
+     * applied once it is resynced.
+     */
+    @Test
+    public void testFollowerStopsAtGap() throws InterruptedException {
+        try (ReplicationFollower follower = new ReplicationFollower()) {
+            follower.append(new ReplicationLogEntry(1, 0, new PriceRecord[]{newPriceRecord("100", 1, 1.0)}));
+            follower.append(new ReplicationLogEntry(3, 0, new PriceRecord[]{newPriceRecord("100", 3, 3.0)}));
+            Assert.assertFalse(follower.awaitVersion(3, Duration.ofMillis(200)));
+            Assert.assertTrue(follower.isOutOfSync());
+            Assert.assertEquals(1, follower.getAppliedVersion());
+            Assert.assertEquals(1.0, follower.getLastPrice("100").getPrice(), 0);
+
+            Assert.assertEquals(1, follower.resync());
+            follower.append(new ReplicationLogEntry(2, 0, new PriceRecord[]{newPriceRecord("100", 2, 2.0)}));
+            follower.append(new ReplicationLogEntry(3, 0, new PriceRecord[]{newPriceRecord("100", 3, 3.0)}));
+            Assert.assertTrue(follower.awaitVersion(3, TIMEOUT));
+            Assert.assertEquals(3.0, follower.getLastPrice("100").getPrice(), 0);
+        }
+    }
+
+    /**
+     * A frame with a record which cannot be decoded, e.g. since its nanos are out of range, corrupts the stream.
+     */
+    @Test(expected = StreamCorruptedException.class)
+    public void testMalformedDateTimeCorruptsTheStream() throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(64);
+        frame.putInt(0).putLong(1).putLong(0).putInt(1)
+                .putShort((short) 0).putLong(0).putInt(1_000_000_000).putInt(0);
+        frame.putInt(0, frame.position() - Integer.BYTES).flip();
+        ReplicationCodec.read(Channels.newChannel(new ByteArrayInputStream(frame.array(), 0, frame.limit())));
+    }
+}